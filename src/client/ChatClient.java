@@ -25,12 +25,16 @@ import java.util.ArrayList;
 
 // Custom Imports
 import gui.ClientGUI;
+import server.ChatMessage;
 import server.ChatServerInterface;
+import server.HistoryPage;
+import server.PhiAccrualDetector;
 import server.Response;
 
 // Threading Imports
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ChatClient implements ClientInterface {
     /**
@@ -70,6 +74,19 @@ public class ChatClient implements ClientInterface {
     private int connectedPort;
     private String username;
 
+    // Most history messages shown when joining a room
+    private static final int HISTORY_PAGE = 200;
+
+    // The room whose history is shown and the sequence number of the next message not seen
+    private String historyRoom;
+    private AtomicInteger historySeq;
+
+    // Heartbeats of the connected server and when to give up on it.
+    // A server is only failed over from once it is suspected at failoverPhi.
+    private long heartbeatIntervalMs;
+    private double failoverPhi;
+    private PhiAccrualDetector serverDetector;
+
     /**
      * Empty constructor
      */
@@ -77,6 +94,11 @@ public class ChatClient implements ClientInterface {
         this.serverPorts = new ArrayList<Integer>();
         this.isLoggedIn = false;
         this.username = null;
+        this.historyRoom = null;
+        this.historySeq = new AtomicInteger(0);
+        this.heartbeatIntervalMs = ClientConfig.getLong("failover.heartbeatIntervalMs", 1000);
+        this.failoverPhi = ClientConfig.getDouble("failover.phi.threshold", 8);
+        this.serverDetector = newDetector();
         this.executorService = Executors.newFixedThreadPool(10);
     };
 
@@ -122,10 +144,12 @@ public class ChatClient implements ClientInterface {
                 if (chatStub.sendIsLeader()) {
                     this.remoteReg = currReg;
                     this.connectedPort = port;
+                    this.serverDetector = newDetector();
+                    setChatStub();
                     if (isLoggedIn && username != null) {
                         bindUserToRegistry(this.username);
+                        catchUpHistory();
                     }
-                    setChatStub();
                     break;
                 }
             }  catch (RemoteException re) {
@@ -138,6 +162,18 @@ public class ChatClient implements ClientInterface {
         }
     }
 
+    /**
+     * Make a failure detector for a newly connected server
+     * @return PhiAccrualDetector object
+     */
+    private PhiAccrualDetector newDetector() {
+        return new PhiAccrualDetector(this.failoverPhi,
+            ClientConfig.getInt("failover.phi.windowSize", 100),
+            ClientConfig.getLong("failover.phi.minStdDevMs", 200),
+            ClientConfig.getLong("failover.phi.acceptablePauseMs", 500),
+            this.heartbeatIntervalMs);
+    }
+
     /**
      * Get the remote registry
      * @return
@@ -241,6 +277,10 @@ public class ChatClient implements ClientInterface {
             ClientInterface clientStub = (ClientInterface)UnicastRemoteObject.exportObject(this, 0);
             remoteReg.bind(String.format("client:%s", user), clientStub);
             LOGGER.info(String.format("Successfully bound user: %s to registry", user));
+            // Hand the server the stub so it does not look it up for every message
+            if (this.chatStub != null) {
+                this.chatStub.bindClient(user, clientStub);
+            }
             return true;
         } catch (RemoteException re) {
             LOGGER.severe(re.toString());
@@ -318,7 +358,7 @@ public class ChatClient implements ClientInterface {
     /**
      * Log out of the application the current user
      * @param user The user to log out
-     * @return String success or fail
+     * @return String success, unconfirmed if it may have succeeded, or fail
      */
     public String logOutApp(String user) throws RemoteException{
         String serverResp = this.chatStub.logOutUser(user);
@@ -326,6 +366,8 @@ public class ChatClient implements ClientInterface {
             if (unBindUserToRegistry(user)) {
                 return "success";
             }
+        } else if (serverResp.equals("unconfirmed")) {
+            return serverResp;
         }
         return "fail";
     }
@@ -346,12 +388,53 @@ public class ChatClient implements ClientInterface {
     }
 
     /**
-     * Call server's remote method to get the currently active rooms and the number of users in them
+     * Call server's remote method to get the users of a single room
+     * @param chatname The chat room
+     * @return List of users in the room or null if the room does not exist
+     * @throws RemoteException
+     */
+    public List<String> getChatUsers(String chatname) throws RemoteException {
+        return this.chatStub.getChatUsers(chatname);
+    }
+
+    /**
+     * Call server's remote method to get the latest page of the chatroom's history
+     * and remember where it ends so a reconnect only fetches what was missed
      * @param chatName The chatroom's name
-     * @return Map of rooms and the list of users in each room
+     * @return List of the latest messages or null if the room does not exist
      */
     public List<String> getChatRoomHistory(String chatName) throws RemoteException {
-        return this.chatStub.getChatRoomMessageHistory(chatName);
+        HistoryPage page = this.chatStub.getChatRoomHistoryPage(chatName, -1, HISTORY_PAGE);
+        if (page == null) {
+            return null;
+        }
+        this.historyRoom = chatName;
+        this.historySeq.set(page.getNextSeq());
+        return page.getMessages();
+    }
+
+    /**
+     * After reconnecting to a leader, show the messages of the current room
+     * sent since the last one this client saw
+     */
+    private void catchUpHistory() {
+        String room = this.historyRoom;
+        if (room == null || !room.equals(this.theGUI.currChatRoom)) {
+            return;
+        }
+        try {
+            HistoryPage page;
+            do {
+                page = this.chatStub.getChatRoomHistorySince(room, this.historySeq.get());
+                if (page == null) {
+                    return;
+                }
+                this.theGUI.displayHistory(page.getMessages());
+                this.historySeq.set(page.getNextSeq());
+            } while (page.hasMore() && !page.getMessages().isEmpty());
+        } catch (RemoteException re) {
+            LOGGER.severe(String.format("Couldn't catch up on history for chatroom: %s", room));
+        }
     }
 
     // ======================================
@@ -409,10 +492,11 @@ public class ChatClient implements ClientInterface {
      * Notify other clients of joining or leaving. Call the server remote method.
      * @param chatname The chat room user joined or left
      * @param user The user joining or leaving
+     * @param joined True if joining, false if leaving
      * @throws RemoteException
      */
-    public void notifyOthersJoinLeave(String chatname, String user) throws RemoteException {
-        this.chatStub.notifyJoinLeave(chatname, user);
+    public void notifyOthersJoinLeave(String chatname, String user, boolean joined) throws RemoteException {
+        this.chatStub.notifyJoinLeave(chatname, user, joined);
     }
 
 
@@ -429,9 +513,21 @@ public class ChatClient implements ClientInterface {
     }
 
     @Override
-    public void notifyJoinLeave() {
-        // Update room list
-        this.theGUI.updateRoomMemberList();
+    public void displayMessages(List<ChatMessage> messages) {
+        this.theGUI.displayNewMessages(messages);
+        for (ChatMessage message : messages) {
+            // Resume after the newest message the server numbered, never move the cursor back
+            if (message.getSeq() >= 0) {
+                this.historySeq.accumulateAndGet(message.getSeq() + 1, Math::max);
+            }
+            LOGGER.info(message.getMessage());
+        }
+    }
+
+    @Override
+    public void notifyJoinLeave(String chatroom, String user, boolean joined) {
+        // Apply the change to the room list without asking the server for it
+        this.theGUI.applyMemberChange(chatroom, user, joined);
     }
 
     @Override
@@ -447,7 +543,8 @@ public class ChatClient implements ClientInterface {
 
     /**
      * Attempt to get the connected server's heartbeat.
-     * Reconnect to new leader if the currently connected one is down
+     * Reconnect to new leader if the currently connected one is no longer
+     * the leader, or once missed heartbeats make it suspected as down
      */
     public void getServerHeartBeat() {
         while(true) {
@@ -459,7 +556,12 @@ public class ChatClient implements ClientInterface {
                 }
 
                 // Check if it is alive
-                if (this.chatStub.sendHeartBeat()) {
+                // A logged in client's heartbeat also tells the server it is still here
+                boolean isAlive = isLoggedIn && username != null
+                    ? this.chatStub.clientHeartBeat(username)
+                    : this.chatStub.sendHeartBeat();
+                if (isAlive) {
+                    this.serverDetector.heartbeat();
                     // Check to see if it is the leader
                     if (!this.chatStub.sendIsLeader()) {
                         LOGGER.info(
@@ -470,15 +572,24 @@ public class ChatClient implements ClientInterface {
                     }
                 }
             } catch (RemoteException re) {
-                LOGGER.severe(
-                    String.format(
-                        "Error connecting to server on port: %d. Finding new leader...", 
-                        this.connectedPort));
-                setRemoteReg(this.host);
+                double phi = this.serverDetector.phi();
+                if (phi < this.failoverPhi) {
+                    LOGGER.severe(
+                        String.format(
+                            "Missed heartbeat of server on port: %d. Suspicion: %.2f", 
+                            this.connectedPort,
+                            phi));
+                } else {
+                    LOGGER.severe(
+                        String.format(
+                            "Error connecting to server on port: %d. Finding new leader...", 
+                            this.connectedPort));
+                    setRemoteReg(this.host);
+                }
             }
 
             try {
-                Thread.sleep(1000);
+                Thread.sleep(this.heartbeatIntervalMs);
             } catch (InterruptedException ie) {
                 LOGGER.severe("Interrupted sleeping heartbeat sensor");
             }
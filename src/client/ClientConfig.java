@@ -0,0 +1,92 @@
+package client;
+
+// Log Imports
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+// Java Imports
+import java.util.Properties;
+
+/**
+ * Client settings loaded from the client properties file.
+ * Every setting has a default so a missing file or key is not fatal.
+ */
+public class ClientConfig {
+    // Set up logging with a custom properties file
+    static Logger LOGGER = Logger.getLogger(ClientConfig.class.getName());
+    static {
+        String filePath = "../config/clientlogging.properties";
+        try {
+            LogManager.getLogManager().readConfiguration(new FileInputStream(filePath));
+        } catch (IOException io)  {
+            LOGGER.severe("Logging config file not found.");
+        }
+    }
+
+    private static Properties settings = new Properties();
+    static {
+        String filePath = "../config/client.properties";
+        try (FileInputStream in = new FileInputStream(filePath)) {
+            settings.load(in);
+        } catch (IOException io) {
+            LOGGER.severe("Client config file not found. Using default settings.");
+        }
+    }
+
+    /**
+     * Get a string setting
+     * @param key The setting name
+     * @param def The default value
+     * @return The setting or the default if it is not set
+     */
+    public static String getString(String key, String def) {
+        return settings.getProperty(key, def).trim();
+    }
+
+    /**
+     * Get an integer setting
+     * @param key The setting name
+     * @param def The default value
+     * @return The setting or the default if it is not set or not a number
+     */
+    public static int getInt(String key, int def) {
+        try {
+            return Integer.parseInt(getString(key, String.valueOf(def)));
+        } catch (NumberFormatException ne) {
+            LOGGER.severe(String.format("Setting %s is not a number. Using %d.", key, def));
+            return def;
+        }
+    }
+
+    /**
+     * Get a long setting
+     * @param key The setting name
+     * @param def The default value
+     * @return The setting or the default if it is not set or not a number
+     */
+    public static long getLong(String key, long def) {
+        try {
+            return Long.parseLong(getString(key, String.valueOf(def)));
+        } catch (NumberFormatException ne) {
+            LOGGER.severe(String.format("Setting %s is not a number. Using %d.", key, def));
+            return def;
+        }
+    }
+
+    /**
+     * Get a decimal setting
+     * @param key The setting name
+     * @param def The default value
+     * @return The setting or the default if it is not set or not a number
+     */
+    public static double getDouble(String key, double def) {
+        try {
+            return Double.parseDouble(getString(key, String.valueOf(def)));
+        } catch (NumberFormatException ne) {
+            LOGGER.severe(String.format("Setting %s is not a number. Using %s.", key, def));
+            return def;
+        }
+    }
+}
@@ -4,25 +4,43 @@ package client;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 
+// Java Imports
+import java.util.List;
+
+// Custom Imports
+import server.ChatMessage;
+
 /**
  * Remote interface for the chat client
  */
 public interface ClientInterface extends Remote {
     
     /**
-     * Called from the server to display messages from others to itself
+     * Called from the server to display messages from others to itself.
+     * The message carries no sequence number, so the history cursor stays put.
      * @param sender The sender of the message
      * @param message The message to display
      * @throws RemoteException
      */
     void displayMessage(String sender, String message) throws RemoteException;
 
+    /**
+     * Called from the server to display several messages in one call.
+     * The server batches messages that queued up for this client.
+     * @param messages The messages in the order they were sent
+     * @throws RemoteException
+     */
+    void displayMessages(List<ChatMessage> messages) throws RemoteException;
+
     /**
      * Notify self that a user has joined or left the chatroom
      * The server calls this function whenever a person joins or leaves a chatroom
+     * @param chatroom The chatroom
+     * @param user The user who joined or left
+     * @param joined True if the user joined, false if they left
      * @throws RemoteException
      */
-    void notifyJoinLeave() throws RemoteException;
+    void notifyJoinLeave(String chatroom, String user, boolean joined) throws RemoteException;
 
     /**
      * Send a heartbeat back to whoever called it.
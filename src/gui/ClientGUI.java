@@ -16,14 +16,16 @@ import javax.swing.*;
 // Java Utils
 import java.util.List;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Set;
 
 // Java Time
 import java.time.Instant;
 
 // Custom Imports
 import client.ChatClient;
+import server.ChatMessage;
 import server.Response;
 
 /**
@@ -48,6 +50,9 @@ public class ClientGUI {
   public ChatClient client;
   public String currChatRoom;
 
+  // Members of the current room, kept up to date from join/leave notices
+  private Set<String> roomMembers = new LinkedHashSet<String>();
+
   // GUI Components
   public JFrame frame;
   public JFrame regLogFrame;
@@ -139,6 +144,10 @@ public class ClientGUI {
           openPopUp("This user already logged in!");
           LOGGER.severe("FAIL: Already logged in.");
 
+        } else if (res.getServerReply().equals("unconfirmed")) {
+          openPopUp("Logging in may have succeeded. Log in again to check.");
+          LOGGER.warning("Login not confirmed.");
+
         } else {
           openPopUp("Failed logging in. Try again!");
           LOGGER.severe("FAIL: Unknown error.");
@@ -174,6 +183,9 @@ public class ClientGUI {
           LOGGER.info("User successfully logged in!");
           regLogFrame.dispose();
           openChatSelectionScreen();
+        } else if (res.getServerReply().equals("unconfirmed")) {
+          openPopUp("Registering may have succeeded. Log in to check before registering again.");
+          LOGGER.warning("Register not confirmed.");
         } else {
           openPopUp(res.getServerReply());
           LOGGER.severe(res.getServerReply());
@@ -207,6 +219,9 @@ public class ClientGUI {
       LOGGER.info(
         "Successfully logged out of application.");
       openStartScreen();
+    } else if (response.equals("unconfirmed")) {
+      LOGGER.warning("Log out not confirmed.");
+      openPopUp("Logging out may have succeeded. Try again to make sure.");
     } else {
       LOGGER.severe(
         "Error logging out of application");
@@ -246,28 +261,58 @@ public class ClientGUI {
   }
 
   /**
-   * Updates the current rooms member list
+   * Updates the current rooms member list by fetching the room's users
    */
   public void updateRoomMemberList() {
-    roomMembersTextArea.setText("");
     try {
-      final Map<String, List<String>> roomAndNumUsers = client.getChatRoomInformation();
-      if (roomAndNumUsers == null) {
-        LOGGER.severe("Room name not active.");
-        roomMembersTextArea.append(String.format("Room name: %s is not active!\n", currChatRoom));
-      } else {
-        List<String> roomUsers = roomAndNumUsers.get(currChatRoom);
-        List<String> listWithoutDuplicates = roomUsers.stream()
-            .distinct().collect(Collectors.toList());
-        
-        for (String user: listWithoutDuplicates) {
-          roomMembersTextArea.append(String.format("%s\n", user));
+      final List<String> roomUsers = client.getChatUsers(currChatRoom);
+      synchronized (roomMembers) {
+        roomMembers.clear();
+        if (roomUsers == null) {
+          LOGGER.severe("Room name not active.");
+          roomMembersTextArea.setText(String.format("Room name: %s is not active!\n", currChatRoom));
+          return;
         }
+        roomMembers.addAll(roomUsers);
       }
+      showRoomMembers();
     } catch (RemoteException re) {
       LOGGER.severe("Couldn't get the rooms and the number of users. Server might be down!");
-      roomMembersTextArea.append("Error retrieving participants!\n");
+      roomMembersTextArea.setText("Error retrieving participants!\n");
+    }
+  }
+
+  /**
+   * Apply a join or leave in a room to the member list
+   * @param chatroom The room
+   * @param user The user who joined or left
+   * @param joined True if the user joined, false if they left
+   */
+  public void applyMemberChange(String chatroom, String user, boolean joined) {
+    if (currChatRoom == null || !currChatRoom.equals(chatroom)) {
+      return;
+    }
+    synchronized (roomMembers) {
+      if (joined) {
+        roomMembers.add(user);
+      } else {
+        roomMembers.remove(user);
+      }
     }
+    showRoomMembers();
+  }
+
+  /**
+   * Show the current room's members in the member list
+   */
+  private void showRoomMembers() {
+    StringBuilder text = new StringBuilder();
+    synchronized (roomMembers) {
+      for (String user : roomMembers) {
+        text.append(String.format("%s\n", user));
+      }
+    }
+    roomMembersTextArea.setText(text.toString());
   }
 
   // =================================
@@ -334,6 +379,30 @@ public class ClientGUI {
     this.chatroomTextArea.append(message + "\n");
   }
 
+  /**
+   * Display messages read from the room's history with a single append
+   * @param messages The messages in order
+   */
+  public void displayHistory(List<String> messages) {
+    StringBuilder text = new StringBuilder();
+    for (String message : messages) {
+      text.append(message).append("\n");
+    }
+    this.chatroomTextArea.append(text.toString());
+  }
+
+  /**
+   * Display a batch of new messages with a single append
+   * @param messages The messages in the order they were sent
+   */
+  public void displayNewMessages(List<ChatMessage> messages) {
+    StringBuilder text = new StringBuilder();
+    for (ChatMessage message : messages) {
+      text.append(message.getMessage()).append("\n");
+    }
+    this.chatroomTextArea.append(text.toString());
+  }
+
   /**
    * The action performed when the send button is pressed.
    * Must be a message of at least length 1.
@@ -394,7 +463,7 @@ public class ClientGUI {
             String.format("%s has joined the chat.", client.getUsername()));
 
             // Notify all members of the room
-            client.notifyOthersJoinLeave(currChatRoom, client.getUsername());
+            client.notifyOthersJoinLeave(currChatRoom, client.getUsername(), true);
         } catch (RemoteException re) {
           LOGGER.severe(
             String.format(
@@ -403,6 +472,9 @@ public class ClientGUI {
               currChatRoom));
         }
         openChatroomScreen();
+      } else if (response.equals("unconfirmed")) {
+        openPopUp("Joining may have succeeded. Refresh the chatroom list before trying again.");
+        LOGGER.warning("Join not confirmed.");
       } else {
         openPopUp("Chatroom name does not exist!");
         LOGGER.severe("Error joining chatroom. Chatroom does not exist.");
@@ -449,6 +521,9 @@ public class ClientGUI {
         }
       } else if (res.equalsIgnoreCase("exists")) {
         openPopUp("A chatroom with that name already exists!");
+      } else if (res.equals("unconfirmed")) {
+        openPopUp("Creating the chatroom may have succeeded. Refresh the chatroom list before trying again.");
+        LOGGER.warning("Create not confirmed.");
       } else {
         openPopUp("Error creating chatroom. Try again!");
         LOGGER.severe("Error from server creating chatroom.");
@@ -479,7 +554,7 @@ public class ClientGUI {
       try {
         client.sendMessage(currTime, "SYSTEM", currChatRoom,
           String.format("%s has left the chat.", client.getUsername()));
-          client.notifyOthersJoinLeave(currChatRoom, client.getUsername());
+          client.notifyOthersJoinLeave(currChatRoom, client.getUsername(), false);
           currChatRoom = null;
       } catch (RemoteException re) {
         LOGGER.severe(
@@ -488,6 +563,9 @@ public class ClientGUI {
             client.getUsername(), 
             currChatRoom));
       }
+    } else if (response.equals("unconfirmed")) {
+      LOGGER.warning(String.format("Leaving chatroom: %s not confirmed.", currChatRoom));
+      openPopUp("Leaving the chatroom may have succeeded. Refresh the chatroom list before trying again.");
     } else {
       LOGGER.severe(String.format("Error leaving chatroom: %s", chatroomName));
       openPopUp("Error leaving the chatroom. Try again.");
@@ -542,9 +620,7 @@ public class ClientGUI {
     try {
       List<String> messageHistory = client.getChatRoomHistory(currChatRoom);
       if (messageHistory != null) {
-        for (String mess : messageHistory) {
-          this.chatroomTextArea.append(mess + "\n");
-        }
+        displayHistory(messageHistory);
       }
     } catch (RemoteException re) {
       LOGGER.severe(String.format("Couldn't get history for chatroom: %s", currChatRoom));
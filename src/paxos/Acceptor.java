@@ -6,8 +6,16 @@ import java.util.logging.Logger;
 import java.io.FileInputStream;
 import java.io.IOException;
 
+// Java Imports
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 // Custom Imports
-import server.DBOperation;
+import server.DBBatch;
+import server.Promise;
 
 public class Acceptor extends Thread {
     // Set up logging with a custom properties file
@@ -21,99 +29,221 @@ public class Acceptor extends Thread {
         }
     }
 
-    private int prevProposalId;
-    private int prevAcceptedId;
-    
-    private DBOperation prevVal;
+    // Highest proposal ID this acceptor has promised
+    private int promisedId;
+
+    // Log slot : proposal ID and value accepted for that slot
+    private Map<Integer, Integer> acceptedIds;
+    private Map<Integer, DBBatch> acceptedVals;
+
+    // Every log slot up to this one was applied and dropped from the maps
+    private int compactedSlot;
+
+    // Promises and accepts are logged here before they are sent back
+    private WriteAheadLog wal;
 
     /**
-     * Set the previously accepted proposal ID
-     * @param pId The previous ID
+     * The empty constructor
      */
-    public void setPrevProposalId(int pId) {
-        this.prevProposalId = pId;
+    public Acceptor() {
+        this.promisedId = 0;
+        this.acceptedIds = new ConcurrentHashMap<Integer, Integer>();
+        this.acceptedVals = new ConcurrentHashMap<Integer, DBBatch>();
+        this.compactedSlot = 0;
     }
 
     /**
-     * Get the proposal ID
+     * Get the highest promised proposal ID
      * @return Integer proposal ID
      */
-    public int getProposalId() {
-        return this.prevProposalId;
+    public int getPromisedId() {
+        return this.promisedId;
     }
 
     /**
-     * Set the prev accepted ID
-     * @param pId The ID
+     * Set the log promises and accepts are written to
+     * @param wal The write ahead log
      */
-    public void setPrevAcceptedId(int pId) {
-        this.prevProposalId = pId;
+    public void setLog(WriteAheadLog wal) {
+        this.wal = wal;
     }
 
     /**
-     * Get the previous accepted ID
-     * @return
+     * Get the value accepted for the log slot
+     * @param slot The log slot
+     * @return DBBatch object or null if nothing was accepted
      */
-    public int getPrevAcceptedId() {
-        return this.prevProposalId;
+    public DBBatch getBatch(int slot) {
+        return this.acceptedVals.get(slot);
     }
 
     /**
-     * Set the DBOperation to be done
-     * @param dbOp The DBOperation object
+     * Get the values accepted with the proposal ID in a range of slots.
+     * A leader proposes one value per slot, so once it reports a slot as
+     * committed the value accepted with its proposal ID is the chosen one.
+     * @param prop The leader's proposal ID
+     * @param fromSlot The first slot
+     * @param toSlot The last slot
+     * @return Map of log slot to accepted batch, stopping at the first slot not accepted with the ID
      */
-    public void setDBOp(DBOperation dbOp) {
-        this.prevVal = dbOp;
-    }
-    
-    /**
-     * Get the DBOperation object
-     * @return DBOperation object
-     */
-    public DBOperation getDBOp() {
-        return this.prevVal;
+    public synchronized Map<Integer, DBBatch> getAcceptedWith(int prop, int fromSlot, int toSlot) {
+        Map<Integer, DBBatch> chosen = new HashMap<Integer, DBBatch>();
+        for (int slot = Math.max(fromSlot, compactedSlot + 1); slot <= toSlot; slot++) {
+            Integer acceptedId = acceptedIds.get(slot);
+            if (acceptedId == null || acceptedId != prop) {
+                break;
+            }
+            chosen.put(slot, acceptedVals.get(slot));
+        }
+        return chosen;
     }
 
     /**
      * Receive a prepare message from the proposer
      * and check sent message's ID is greater than the previous one.
+     * The promise covers every log slot from the given slot onwards.
      * @param prop The proposal ID
-     * @return True for a "promise" or false
+     * @param fromSlot The first log slot the proposer is preparing
+     * @return Promise with the values already accepted at or after the slot
      */
-    public boolean prepare(int prop) {
-
-        if (!(prop > this.prevProposalId)) {
-            // Rejection
-            return false;
+    public Promise prepare(int prop, int fromSlot) {
+        Promise promise;
+        long seq;
+        synchronized (this) {
+            if (!(prop > this.promisedId)) {
+                // Rejection
+                return new Promise(false, this.promisedId);
+            }
+
+            // This keeps track of most recently received proposal ID
+            // ONLY if it is greater than the previous proposal ID.
+            this.promisedId = prop;
+            seq = log(WriteAheadLog.promiseRecord(prop));
+
+            // Send the "promise" back with anything the new leader has to finish
+            promise = new Promise(true, prop);
+            promise.setCompactedSlot(compactedSlot);
+            for (Map.Entry<Integer, DBBatch> accepted : acceptedVals.entrySet()) {
+                int slot = accepted.getKey();
+                if (slot >= fromSlot) {
+                    promise.addAccepted(slot, acceptedIds.get(slot), accepted.getValue());
+                }
+            }
         }
 
-        // This keeps track of most recently received proposal ID
-        // ONLY if it is greater than the previous proposal ID.
-        setPrevProposalId(prop);
-        // Send the "promise" back that it's ready to accept
-        return true;
+        // Wait for the log outside the lock so other promises and accepts share the flush
+        if (!durable(seq)) {
+            return new Promise(false, prop);
+        }
+        return promise;
     }
 
     /**
-     * Receive a request to accept the proposal.
-     * Check the proposal ID to make sure it is still greater than
-     * any other received proposal
+     * Receive a request to accept the proposal for a log slot.
+     * Check the proposal ID to make sure it is not lower than
+     * any other promised proposal
      * @param prop The prosposal ID
-     * @return The operation if accepting the proposal
+     * @param slot The log slot
+     * @param val The proposed value
+     * @return The batch if accepting the proposal
      */
-    public DBOperation accept(int prop, DBOperation val) {
-        if (!(prop > this.prevAcceptedId)) {
-            // Rejection
-            return null;
+    public DBBatch accept(int prop, int slot, DBBatch val) {
+        long seq;
+        synchronized (this) {
+            if (prop < this.promisedId) {
+                // Rejection
+                return null;
+            }
+
+            // A leader that skipped phase 1 still moves the promise forward
+            this.promisedId = prop;
+
+            // The slot was already chosen and compacted, nothing to remember
+            if (slot <= compactedSlot) {
+                return val;
+            }
+            acceptedIds.put(slot, prop);
+            acceptedVals.put(slot, val);
+            seq = log(WriteAheadLog.acceptRecord(prop, slot, val));
         }
 
-        // This keeps track of most recently received proposal ID
-        // ONLY if it is greater than the previous proposal ID.
-        setPrevAcceptedId(prop);
-        setDBOp(val);
+        if (!durable(seq)) {
+            return null;
+        }
 
         // Send the acceptance back to the proposer
-        return prevVal;
+        return val;
+    }
+
+    /**
+     * Drop accepted values for slots the learner has applied and compacted.
+     * Those slots are chosen, so a new leader never needs them again.
+     * @param upToSlot The last compacted log slot
+     */
+    public synchronized void truncate(int upToSlot) {
+        if (upToSlot <= compactedSlot) {
+            return;
+        }
+        for (int slot = compactedSlot + 1; slot <= upToSlot; slot++) {
+            acceptedIds.remove(slot);
+            acceptedVals.remove(slot);
+        }
+        compactedSlot = upToSlot;
     }
 
+    /**
+     * Records that rebuild this acceptor's state when the log rolls to a new segment.
+     * Must hold the acceptor's lock while the log rolls.
+     * @return List of promise and accept records
+     */
+    public synchronized List<byte[]> checkpoint() {
+        List<byte[]> records = new ArrayList<byte[]>();
+        records.add(WriteAheadLog.promiseRecord(promisedId));
+        for (Map.Entry<Integer, DBBatch> accepted : acceptedVals.entrySet()) {
+            int slot = accepted.getKey();
+            records.add(WriteAheadLog.acceptRecord(acceptedIds.get(slot), slot, accepted.getValue()));
+        }
+        return records;
+    }
+
+    /**
+     * Replay a logged promise
+     * @param prop The promised proposal ID
+     */
+    public synchronized void restorePromise(int prop) {
+        this.promisedId = Math.max(this.promisedId, prop);
+    }
+
+    /**
+     * Replay a logged accept
+     * @param prop The proposal ID
+     * @param slot The log slot
+     * @param val The accepted value
+     */
+    public synchronized void restoreAccepted(int prop, int slot, DBBatch val) {
+        this.promisedId = Math.max(this.promisedId, prop);
+        Integer acceptedId = acceptedIds.get(slot);
+        if (acceptedId == null || prop >= acceptedId) {
+            acceptedIds.put(slot, prop);
+            acceptedVals.put(slot, val);
+        }
+    }
+
+    /**
+     * Write the record to the log if there is one
+     * @param record The encoded record
+     * @return The record's sequence number
+     */
+    private long log(byte[] record) {
+        return wal == null ? 0 : wal.append(record);
+    }
+
+    /**
+     * Wait for the record to reach the log
+     * @param seq The record's sequence number
+     * @return True if the record is durable or there is no log
+     */
+    private boolean durable(long seq) {
+        return wal == null || wal.sync(seq);
+    }
 }
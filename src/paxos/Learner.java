@@ -5,15 +5,32 @@ import java.util.logging.LogManager;
 import java.util.logging.Logger;
 import java.io.FileInputStream;
 import java.io.IOException;
+
+// Java Imports
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-// Java Imports
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 // Custom Imports
+import server.DBBatch;
 import server.DBOperation;
+import server.MessageStore;
+import server.RoomMembers;
+import server.RoomHistory;
+import server.ServerConfig;
+import server.Snapshot;
+import server.VersionedMap;
+import server.VersionedSet;
 
 /**
  * Learner class that serves as the replication factor. This class is the one
@@ -31,81 +48,849 @@ public class Learner extends Thread {
         }
     }
 
-    private Map<Integer, DBOperation> acceptedVals;
+    // Applied log: log slot : committed batch
+    private Map<Integer, DBBatch> acceptedVals;
+
+    // Results of the applied slots still in the applied log: log slot : result of each operation
+    private Map<Integer, List<String>> appliedResults;
+
+    // Committed slots waiting for an earlier slot to be applied first
+    private TreeMap<Integer, LogEntry> pending;
+
+    // Next log slot to apply
+    private int nextApply;
+
+    // How long a gap in the log may stay open before fetching it from a peer
+    private long gapTimeoutMs;
+
+    // Where missed slots are fetched from
+    private LogSource logSource;
+
+    // Only one waiting commit fetches missed slots at a time
+    private AtomicBoolean catchingUp;
+
+    // Latest snapshot of the applied state
+    private Snapshot snapshot;
+
+    // Take a snapshot every this many applied slots
+    private int snapshotInterval;
+
+    // Applied slots kept after a snapshot so peers can still catch up from the log
+    private int retainSlots;
+
+    // Every log slot up to this one was dropped from the applied log
+    private int compactedIndex;
+
+    // Applied slots are logged here before their results are sent back
+    private WriteAheadLog wal;
+
+    // Room histories store their messages here
+    private MessageStore messageStore;
+
+    // Single threaded stripes operations are applied on, null to apply on the committing thread
+    private ExecutorService[] applyStripes;
+
+    // Set while a thread applies slots outside the learner's lock
+    private boolean applying;
+
+    // Log slot : room histories an installed snapshot or a create replaced in it,
+    // released once a snapshot at or after the slot is saved. Guarded by itself,
+    // creates add to it on the stripes outside the learner's lock.
+    private TreeMap<Integer, List<RoomHistory>> replacedRooms;
+
+    // Number of times to catch up before giving up on a commit
+    private static final int MAX_CATCH_UPS = 3;
+
+    // Number of slots to fetch per catch up
+    private static final int CATCH_UP_SLOTS = 256;
+
+    // Result of an operation in a slot that was applied before and whose results were compacted away
+    public static final String ALREADY_APPLIED = "applied";
+
+    // Result of a sent message, followed by the sequence number it got in the room's history
+    public static final String SENT = "success:";
+
+    /**
+     * A committed batch and the results once it is applied
+     */
+    private static class LogEntry {
+        DBBatch batch;
+        List<String> results;
+        long seq;
+
+        LogEntry(DBBatch batch) {
+            this.batch = batch;
+        }
+    }
 
     /**
      * The empty constructor
      */
     public Learner() {
-        this.acceptedVals = new ConcurrentHashMap<Integer, DBOperation>();
+        this.acceptedVals = new ConcurrentHashMap<Integer, DBBatch>();
+        this.appliedResults = new HashMap<Integer, List<String>>();
+        this.pending = new TreeMap<Integer, LogEntry>();
+        this.nextApply = 1;
+        this.gapTimeoutMs = ServerConfig.getLong("paxos.gapTimeoutMs", 1000);
+        this.catchingUp = new AtomicBoolean(false);
+        this.snapshotInterval = ServerConfig.getInt("paxos.snapshot.interval", 1000);
+        this.retainSlots = ServerConfig.getInt("paxos.snapshot.retainSlots", 256);
+        this.compactedIndex = 0;
+        this.replacedRooms = new TreeMap<Integer, List<RoomHistory>>();
+
+        int stripes = ServerConfig.getInt("paxos.apply.stripes", 4);
+        if (stripes > 1) {
+            this.applyStripes = new ExecutorService[stripes];
+            for (int i = 0; i < stripes; i++) {
+                this.applyStripes[i] = Executors.newSingleThreadExecutor((task) -> {
+                    Thread stripe = new Thread(task, "learner-apply");
+                    stripe.setDaemon(true);
+                    return stripe;
+                });
+            }
+        }
+    }
+
+    /**
+     * Stop the threads applying operations in parallel, the replica went down
+     */
+    public void close() {
+        if (this.applyStripes != null) {
+            for (ExecutorService stripe : this.applyStripes) {
+                stripe.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Set where missed log slots are fetched from
+     * @param source The log source
+     */
+    public void setLogSource(LogSource source) {
+        this.logSource = source;
+    }
+
+    /**
+     * Set the log applied slots are written to
+     * @param wal The write ahead log
+     */
+    public void setLog(WriteAheadLog wal) {
+        this.wal = wal;
+    }
+
+    /**
+     * Set where room histories store their messages
+     * @param store The message store, or null to keep histories in memory
+     */
+    public void setMessageStore(MessageStore store) {
+        this.messageStore = store;
+    }
+
+    /**
+     * Get the highest log slot applied so far
+     * @return Integer log slot
+     */
+    public synchronized int getAppliedIndex() {
+        return this.nextApply - 1;
+    }
+
+    /**
+     * Wait until the log slot is applied
+     * @param slot The log slot
+     * @param timeoutMs How long to wait
+     * @return True if the slot was applied in time
+     */
+    public synchronized boolean awaitSlot(int slot, long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (this.nextApply <= slot) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException ie) {
+                LOGGER.severe("Interrupted waiting for a log slot to be applied.");
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the latest snapshot of the applied state
+     * @return Snapshot object or null if none was taken yet
+     */
+    public synchronized Snapshot getSnapshot() {
+        return this.snapshot;
+    }
+
+    /**
+     * Get the slot the applied log was compacted up to
+     * @return Integer log slot
+     */
+    public synchronized int getCompactedIndex() {
+        return this.compactedIndex;
+    }
+
+    /**
+     * Get applied log slots so a lagging peer can catch up.
+     * Slots that were compacted away are not returned.
+     * @param fromSlot The first slot wanted
+     * @param maxEntries The most slots to return
+     * @return Map of log slot to committed batch
+     */
+    public Map<Integer, DBBatch> getCommittedLog(int fromSlot, int maxEntries) {
+        Map<Integer, DBBatch> log = new HashMap<Integer, DBBatch>();
+        if (fromSlot <= getCompactedIndex()) {
+            return log;
+        }
+        for (int slot = fromSlot; slot < fromSlot + maxEntries; slot++) {
+            DBBatch batch = acceptedVals.get(slot);
+            if (batch == null) {
+                break;
+            }
+            log.put(slot, batch);
+        }
+        return log;
     }
 
     /**
-     * The commit method that manipulates the data store
-     * @param propId The current proposal ID
+     * The commit method that manipulates the data store.
+     * Slots are applied strictly in log order. A slot that arrives early waits
+     * for the earlier slots, and a gap that stays open too long is fetched
+     * from a peer.
+     * One thread at a time applies the ready slots, outside the learner's
+     * lock, with their operations spread over the apply stripes by room and
+     * user. Results are handed out in slot order once the whole run of
+     * slots is applied, so other commits never see a partly applied batch.
+     * A log slot is only applied once, so a new leader finishing
+     * an already committed slot does not apply it twice. A repeated commit
+     * gets the slot's real results back, or ALREADY_APPLIED for each
+     * operation once they were compacted away.
+     * @param slot The log slot
      * @param userStore The user stored database
      * @param chatRoomUsers The chatroom and its users
      * @param chatRoomHistory The chatroom's history
      * @param activeUsers Currently active users
-     * @param dbOp The operation to commit
-     * @return success or failure string
+     * @param batch The operations to commit
+     * @return success, failure or ALREADY_APPLIED string for each operation in the batch,
+     * or null if the slot could not be applied in time
      */
-    public synchronized String commit(int propId, Map<String,String> userStore, 
-                                        Map<String, List<String>> chatRoomUsers,
-                                        Map<String, List<String>> chatRoomHistory,
-                                        Set<String> activeUsers,
-                                        DBOperation dbOp) {
-        acceptedVals.put(propId, dbOp);
+    public List<String> commit(int slot, Map<String,String> userStore, 
+                                RoomMembers chatRoomUsers,
+                                Map<String, List<String>> chatRoomHistory,
+                                Set<String> activeUsers,
+                                DBBatch batch) {
+        LogEntry entry;
+        synchronized (this) {
+            if (slot < nextApply) {
+                LOGGER.info(String.format("Log slot: %d already committed.", slot));
+                List<String> results = appliedResults.get(slot);
+                return results != null ? results : alreadyApplied(batch);
+            }
+            entry = pending.get(slot);
+            if (entry == null) {
+                entry = new LogEntry(batch);
+                pending.put(slot, entry);
+            }
+        }
+        applyReady(userStore, chatRoomUsers, chatRoomHistory, activeUsers);
 
-        // Commit the specified operation
-        if (dbOp.getOp().equals("register")){
-            userStore.put(dbOp.getUsername(), dbOp.getPassword());
-            activeUsers.add(dbOp.getUsername());
-            return "success";
-
-        } else if (dbOp.getOp().equals("login")){
-            activeUsers.add(dbOp.getUsername());
-            return "success";
-
-        } else if (dbOp.getOp().equals("logout")){
-            for (Map.Entry<String, List<String>> roomUsers: chatRoomUsers.entrySet()) {
-                if (roomUsers.getValue().size() > 0) {
-                  roomUsers.getValue().remove(dbOp.getUsername());
+        // Wait for the earlier slots, catching up from a peer if they do not show up
+        int catchUps = 0;
+        while (true) {
+            synchronized (this) {
+                long deadline = System.currentTimeMillis() + gapTimeoutMs;
+                while (entry.results == null) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException ie) {
+                        LOGGER.severe("Interrupted waiting for earlier log slots.");
+                        Thread.currentThread().interrupt();
+                        return null;
+                    }
+                }
+                if (entry.results != null) {
+                    break;
                 }
             }
-            activeUsers.remove(dbOp.getUsername());
-            return "success";
 
-        } else if (dbOp.getOp().equals("create")) {
-            // Initialize the room history and room users
-            List<String> chatUsers = new ArrayList<String>();
-            chatUsers.add(dbOp.getUsername());
-            List<String> chatHistory = new ArrayList<String>();
+            if (catchUps == MAX_CATCH_UPS) {
+                LOGGER.severe(String.format("Log slot: %d could not be applied. Gap at slot: %d.", slot, getAppliedIndex() + 1));
+                return null;
+            }
+            catchUps++;
+            catchUp(userStore, chatRoomUsers, chatRoomHistory, activeUsers);
+        }
 
-            chatRoomUsers.put(dbOp.getChatroom(), chatUsers);
-            chatRoomHistory.put(dbOp.getChatroom(), chatHistory);
-            return "success";
-        } else if (dbOp.getOp().equals("join")) {
-            // Add user to the room if it contains the key (Room exists)
+        // Wait for the commit record outside the lock so other commits share the flush
+        if (wal != null && !wal.sync(entry.seq)) {
+            return null;
+        }
+        return entry.results;
+    }
 
-            if (chatRoomHistory.containsKey(dbOp.getChatroom())) {
-                chatRoomUsers.get(dbOp.getChatroom()).add(dbOp.getUsername());
-                return "success";
+    /**
+     * Fetch the missing slots from a peer and apply them
+     * @param userStore The user stored database
+     * @param chatRoomUsers The chatroom and its users
+     * @param chatRoomHistory The chatroom's history
+     * @param activeUsers Currently active users
+     */
+    private void catchUp(Map<String,String> userStore, 
+                            RoomMembers chatRoomUsers,
+                            Map<String, List<String>> chatRoomHistory,
+                            Set<String> activeUsers) {
+        if (logSource == null || !catchingUp.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            int fromSlot = getAppliedIndex() + 1;
+            LOGGER.info(String.format("Catching up log from slot: %d", fromSlot));
+            Map<Integer, DBBatch> missed = logSource.fetchCommitted(fromSlot, CATCH_UP_SLOTS);
+
+            applyFetched(missed, userStore, chatRoomUsers, chatRoomHistory, activeUsers);
+        } finally {
+            catchingUp.set(false);
+        }
+    }
+
+    /**
+     * Apply committed slots fetched from a peer
+     * @param fetched Map of log slot to committed batch
+     * @param userStore The user stored database
+     * @param chatRoomUsers The chatroom and its users
+     * @param chatRoomHistory The chatroom's history
+     * @param activeUsers Currently active users
+     * @return The highest log slot applied afterwards
+     */
+    public int applyFetched(Map<Integer, DBBatch> fetched,
+                            Map<String,String> userStore, 
+                            RoomMembers chatRoomUsers,
+                            Map<String, List<String>> chatRoomHistory,
+                            Set<String> activeUsers) {
+        synchronized (this) {
+            for (Map.Entry<Integer, DBBatch> slotBatch : fetched.entrySet()) {
+                int slot = slotBatch.getKey();
+                if (slot >= nextApply && !pending.containsKey(slot)) {
+                    pending.put(slot, new LogEntry(slotBatch.getValue()));
+                }
             }
-            return "fail";
-        } else if (dbOp.getOp().equals("send")) {
-            // Add it to the room's message history
-            chatRoomHistory.get(dbOp.getChatroom()).add(dbOp.getMessage());
-
-            return "success";
-        } else if (dbOp.getOp().equals("leave")){
-            // Attempt to remove the user
-            if (chatRoomUsers.get(dbOp.getChatroom()).remove(dbOp.getUsername())) {
-                return "success";
+        }
+        applyReady(userStore, chatRoomUsers, chatRoomHistory, activeUsers);
+        return getAppliedIndex();
+    }
+
+    /**
+     * Apply every pending slot that has no gap before it and wake up
+     * the commits waiting on them. Waits for a thread already applying,
+     * then applies the slots outside the learner's lock so commits can
+     * queue their slots meanwhile, and keeps going while more are ready.
+     * Must not hold the learner's lock.
+     * @param userStore The user stored database
+     * @param chatRoomUsers The chatroom and its users
+     * @param chatRoomHistory The chatroom's history
+     * @param activeUsers Currently active users
+     */
+    private void applyReady(Map<String,String> userStore, 
+                            RoomMembers chatRoomUsers,
+                            Map<String, List<String>> chatRoomHistory,
+                            Set<String> activeUsers) {
+        while (true) {
+            List<LogEntry> ready = new ArrayList<LogEntry>();
+            int first;
+            synchronized (this) {
+                awaitIdle();
+                first = nextApply;
+                // The entries stay pending until they complete, so a repeated commit waits on them
+                while (pending.containsKey(first + ready.size())) {
+                    ready.add(pending.get(first + ready.size()));
+                }
+                if (ready.isEmpty()) {
+                    return;
+                }
+                applying = true;
+            }
+
+            List<List<String>> results = null;
+            try {
+                results = applyEntries(ready, first, userStore, chatRoomUsers, chatRoomHistory, activeUsers);
+            } finally {
+                synchronized (this) {
+                    // Slots that could not be applied stay pending for the next commit to try
+                    if (results != null) {
+                        completeEntries(ready, results, userStore, chatRoomUsers, chatRoomHistory, activeUsers);
+                    }
+                    applying = false;
+                    notifyAll();
+                }
             }
+        }
+    }
+
+    /**
+     * Hand out the results of applied slots in slot order, log them and
+     * snapshot the applied state when it is due. Must hold the learner's
+     * lock while no other thread applies.
+     * @param ready The applied log entries in slot order, starting at nextApply
+     * @param results The results of each entry
+     * @param userStore The user stored database
+     * @param chatRoomUsers The chatroom and its users
+     * @param chatRoomHistory The chatroom's history
+     * @param activeUsers Currently active users
+     */
+    private void completeEntries(List<LogEntry> ready,
+                                    List<List<String>> results,
+                                    Map<String,String> userStore, 
+                                    RoomMembers chatRoomUsers,
+                                    Map<String, List<String>> chatRoomHistory,
+                                    Set<String> activeUsers) {
+        for (int e = 0; e < ready.size(); e++) {
+            LogEntry entry = ready.get(e);
+            entry.results = results.get(e);
+            pending.remove(nextApply);
+            acceptedVals.put(nextApply, entry.batch);
+            appliedResults.put(nextApply, entry.results);
+            if (wal != null) {
+                entry.seq = wal.append(WriteAheadLog.commitRecord(nextApply, entry.batch));
+            }
+            nextApply++;
+        }
+
+        int lastSnapshotSlot = snapshot == null ? 0 : snapshot.getLastSlot();
+        if (nextApply - 1 - lastSnapshotSlot >= snapshotInterval) {
+            takeSnapshot(userStore, chatRoomUsers, chatRoomHistory, activeUsers);
+        }
+    }
+
+    /**
+     * Wait until no thread applies slots. Must hold the learner's lock.
+     */
+    private void awaitIdle() {
+        boolean interrupted = false;
+        while (applying) {
+            try {
+                wait();
+            } catch (InterruptedException ie) {
+                // The applying thread always finishes, keep waiting for it
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Apply the operations of consecutive log slots. Operations are ordered by
+     * the room or user they change, and each key always goes to the same
+     * single threaded stripe, so operations on one key are applied in log
+     * order while operations on other keys run in parallel. An operation
+     * without a key waits for everything before it and runs alone.
+     * Runs without the learner's lock on the one thread applying.
+     * @param ready The log entries in slot order
+     * @param first The log slot of the first entry
+     * @param userStore The user stored database
+     * @param chatRoomUsers The chatroom and its users
+     * @param chatRoomHistory The chatroom's history
+     * @param activeUsers Currently active users
+     * @return The results of each entry
+     */
+    private List<List<String>> applyEntries(List<LogEntry> ready,
+                                int first,
+                                Map<String,String> userStore, 
+                                RoomMembers chatRoomUsers,
+                                Map<String, List<String>> chatRoomHistory,
+                                Set<String> activeUsers) {
+        int opCount = 0;
+        for (LogEntry entry : ready) {
+            opCount += entry.batch.size();
+        }
+
+        List<String[]> results = new ArrayList<String[]>();
+        List<Future<?>> inFlight = new ArrayList<Future<?>>();
+        for (int e = 0; e < ready.size(); e++) {
+            final int slot = first + e;
+            final String[] entryResults = new String[ready.get(e).batch.size()];
+            results.add(entryResults);
+
+            List<DBOperation> ops = ready.get(e).batch.getOps();
+            for (int i = 0; i < ops.size(); i++) {
+                final int index = i;
+                final DBOperation dbOp = ops.get(i);
+                String key = stripeKey(dbOp);
+                if (applyStripes == null || opCount < 2 || key == null) {
+                    // Run alone, after everything before it
+                    awaitApplied(inFlight);
+                    entryResults[index] = applySafely(userStore, chatRoomUsers, chatRoomHistory, activeUsers, dbOp, slot);
+                    continue;
+                }
+                ExecutorService stripe = applyStripes[Math.floorMod(key.hashCode(), applyStripes.length)];
+                inFlight.add(stripe.submit(() -> {
+                    entryResults[index] = applySafely(userStore, chatRoomUsers, chatRoomHistory, activeUsers, dbOp, slot);
+                }));
+            }
+        }
+        awaitApplied(inFlight);
+
+        List<List<String>> applied = new ArrayList<List<String>>();
+        for (String[] res : results) {
+            applied.add(new ArrayList<String>(Arrays.asList(res)));
+        }
+        return applied;
+    }
+
+    /**
+     * Get the key that orders an operation against others
+     * @param dbOp The operation
+     * @return The room or user it changes, or null if it changes several rooms
+     */
+    private static String stripeKey(DBOperation dbOp) {
+        switch (dbOp.getOpCode()) {
+            case DBOperation.REGISTER:
+            case DBOperation.LOGIN:
+                return "user:" + dbOp.getUsername();
+
+            case DBOperation.CREATE:
+            case DBOperation.JOIN:
+            case DBOperation.SEND:
+            case DBOperation.LEAVE:
+                return "room:" + dbOp.getChatroom();
+
+            default:
+                // Logout leaves every room the user is in and a barrier comes after everything before it
+                return null;
+        }
+    }
+
+    /**
+     * Wait for the operations handed to the stripes
+     * @param inFlight The stripes' futures, cleared once they are done
+     */
+    private static void awaitApplied(List<Future<?>> inFlight) {
+        boolean interrupted = false;
+        for (Future<?> future : inFlight) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException ie) {
+                    // The log must be applied in full, finish waiting first
+                    interrupted = true;
+                } catch (ExecutionException ee) {
+                    LOGGER.severe(String.format("Error applying an operation. %s", ee.getCause().toString()));
+                    break;
+                }
+            }
+        }
+        inFlight.clear();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Apply an operation, a bad one fails instead of stopping the log from being applied
+     * @param userStore The user stored database
+     * @param chatRoomUsers The chatroom and its users
+     * @param chatRoomHistory The chatroom's history
+     * @param activeUsers Currently active users
+     * @param dbOp The operation to apply
+     * @param slot The log slot it is in
+     * @return success or failure string
+     */
+    private String applySafely(Map<String,String> userStore, 
+                                RoomMembers chatRoomUsers,
+                                Map<String, List<String>> chatRoomHistory,
+                                Set<String> activeUsers,
+                                DBOperation dbOp,
+                                int slot) {
+        try {
+            return apply(userStore, chatRoomUsers, chatRoomHistory, activeUsers, dbOp, slot);
+        } catch (RuntimeException re) {
+            LOGGER.severe(String.format("Error applying %s in slot: %d. %s", dbOp.getOp(), slot, re.toString()));
             return "fail";
         }
+    }
+
+    /**
+     * Snapshot the applied state and drop the applied log before it,
+     * keeping the last few slots for peers that are only slightly behind.
+     * Must hold the learner's lock while no other thread applies. The
+     * users, rooms and logged in users are copied by the snapshot's first
+     * reader, not here.
+     * @param userStore The user stored database
+     * @param chatRoomUsers The chatroom and its users
+     * @param chatRoomHistory The chatroom's history
+     * @param activeUsers Currently active users
+     */
+    private void takeSnapshot(Map<String,String> userStore, 
+                                RoomMembers chatRoomUsers,
+                                Map<String, List<String>> chatRoomHistory,
+                                Set<String> activeUsers) {
+        // Only one copy of the state is open at a time, the snapshot thread normally finished it long ago
+        if (snapshot != null) {
+            snapshot.finishCopies();
+        }
+        snapshot = new Snapshot(nextApply - 1, (VersionedMap<String, String>) userStore, chatRoomUsers,
+            chatRoomHistory, (VersionedSet<String>) activeUsers);
 
-        return "fail";
+        int truncateTo = snapshot.getLastSlot() - retainSlots;
+        for (int slot = compactedIndex + 1; slot <= truncateTo; slot++) {
+            acceptedVals.remove(slot);
+            appliedResults.remove(slot);
+        }
+        compactedIndex = Math.max(compactedIndex, truncateTo);
+        LOGGER.info(String.format("Snapshot taken at slot: %d. Log compacted up to slot: %d.", 
+            snapshot.getLastSlot(), compactedIndex));
+    }
+
+    /**
+     * Replace the applied state with a snapshot that is ahead of it, from a
+     * saved snapshot on startup or from a peer when rejoining. Commits
+     * waiting on slots the snapshot covers are answered, those slots are chosen.
+     * @param installed The snapshot
+     * @param userStore The user stored database
+     * @param chatRoomUsers The chatroom and its users
+     * @param chatRoomHistory The chatroom's history
+     * @param activeUsers Currently active users
+     * @return True if the snapshot was installed, false if it was behind the applied state
+     */
+    public boolean installSnapshot(Snapshot installed,
+                                    Map<String,String> userStore, 
+                                    RoomMembers chatRoomUsers,
+                                    Map<String, List<String>> chatRoomHistory,
+                                    Set<String> activeUsers) {
+        if (!replaceState(installed, userStore, chatRoomUsers, chatRoomHistory, activeUsers)) {
+            return false;
+        }
+        applyReady(userStore, chatRoomUsers, chatRoomHistory, activeUsers);
+        return true;
+    }
+
+    /**
+     * Replace the applied state with the snapshot once no thread applies slots
+     * @param installed The snapshot
+     * @param userStore The user stored database
+     * @param chatRoomUsers The chatroom and its users
+     * @param chatRoomHistory The chatroom's history
+     * @param activeUsers Currently active users
+     * @return True if the state was replaced, false if the snapshot was behind it
+     */
+    private synchronized boolean replaceState(Snapshot installed,
+                                                Map<String,String> userStore, 
+                                                RoomMembers chatRoomUsers,
+                                                Map<String, List<String>> chatRoomHistory,
+                                                Set<String> activeUsers) {
+        awaitIdle();
+        int lastSlot = installed.getLastSlot();
+        if (lastSlot < nextApply) {
+            return false;
+        }
+
+        // The replaced state must not change under the current snapshot's open copies
+        if (snapshot != null) {
+            snapshot.finishCopies();
+        }
+        userStore.clear();
+        userStore.putAll(installed.getUserDB());
+        chatRoomUsers.replaceWith(installed.getChatRoomUsers());
+        for (List<String> replaced : chatRoomHistory.values()) {
+            replaceRoom((RoomHistory) replaced, lastSlot);
+        }
+        chatRoomHistory.clear();
+        for (Map.Entry<String, RoomHistory.Mark> room : installed.getChatRoomHistory().entrySet()) {
+            chatRoomHistory.put(room.getKey(), RoomHistory.restore(messageStore, room.getValue()));
+        }
+        activeUsers.clear();
+        activeUsers.addAll(installed.getActiveUsers());
+
+        // Answer the commits the snapshot already covers, their results are not known here
+        Map<Integer, LogEntry> covered = pending.headMap(lastSlot, true);
+        for (LogEntry entry : covered.values()) {
+            entry.results = alreadyApplied(entry.batch);
+        }
+        covered.clear();
+
+        acceptedVals.clear();
+        appliedResults.clear();
+        this.snapshot = installed;
+        this.nextApply = lastSlot + 1;
+        this.compactedIndex = lastSlot;
+        notifyAll();
+
+        LOGGER.info(String.format("Installed snapshot at slot: %d", lastSlot));
+        return true;
+    }
+
+    /**
+     * Keep a replaced room history until a snapshot no longer marks it
+     * @param replaced The replaced history
+     * @param slot The log slot it was replaced in
+     */
+    private void replaceRoom(RoomHistory replaced, int slot) {
+        synchronized (replacedRooms) {
+            replacedRooms.computeIfAbsent(slot, (s) -> new ArrayList<RoomHistory>()).add(replaced);
+        }
+    }
+
+    /**
+     * Take the room histories replaced up to a snapshot. Their messages
+     * may be released once that snapshot is saved, older snapshots marking
+     * them were replaced by it.
+     * @param snapshotSlot The last slot of the saved snapshot
+     * @return The replaced histories
+     */
+    public List<RoomHistory> takeReplacedRooms(int snapshotSlot) {
+        List<RoomHistory> replaced = new ArrayList<RoomHistory>();
+        synchronized (replacedRooms) {
+            Map<Integer, List<RoomHistory>> released = replacedRooms.headMap(snapshotSlot, true);
+            for (List<RoomHistory> rooms : released.values()) {
+                replaced.addAll(rooms);
+            }
+            released.clear();
+        }
+        return replaced;
+    }
+
+    /**
+     * Get the results of a batch that was applied before its results were known here
+     * @param batch The batch
+     * @return ALREADY_APPLIED for each operation
+     */
+    private static List<String> alreadyApplied(DBBatch batch) {
+        List<String> results = new ArrayList<String>();
+        for (int i = 0; i < batch.size(); i++) {
+            results.add(ALREADY_APPLIED);
+        }
+        return results;
+    }
+
+    /**
+     * Replay a logged commit. Call applyLogged once every record is replayed.
+     * @param slot The log slot
+     * @param batch The committed batch
+     */
+    public synchronized void restoreCommitted(int slot, DBBatch batch) {
+        if (slot >= nextApply && !pending.containsKey(slot)) {
+            pending.put(slot, new LogEntry(batch));
+        }
+    }
+
+    /**
+     * Apply the replayed commits
+     * @param userStore The user stored database
+     * @param chatRoomUsers The chatroom and its users
+     * @param chatRoomHistory The chatroom's history
+     * @param activeUsers Currently active users
+     */
+    public void applyLogged(Map<String,String> userStore, 
+                            RoomMembers chatRoomUsers,
+                            Map<String, List<String>> chatRoomHistory,
+                            Set<String> activeUsers) {
+        applyReady(userStore, chatRoomUsers, chatRoomHistory, activeUsers);
+        // Slots after a gap in the log are fetched from a peer when the next commit comes in
+        LOGGER.info(String.format("Replayed log up to slot: %d", getAppliedIndex()));
+    }
+
+    /**
+     * Records for the slots applied after the snapshot, used when the log
+     * rolls to a new segment. Must hold the learner's lock while the log rolls.
+     * @param afterSlot The snapshot's last slot
+     * @return List of commit records
+     */
+    public synchronized List<byte[]> checkpoint(int afterSlot) {
+        List<byte[]> records = new ArrayList<byte[]>();
+        for (int slot = afterSlot + 1; slot < nextApply; slot++) {
+            DBBatch batch = acceptedVals.get(slot);
+            if (batch != null) {
+                records.add(WriteAheadLog.commitRecord(slot, batch));
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Apply a single operation to the data store
+     * @param userStore The user stored database
+     * @param chatRoomUsers The chatroom and its users
+     * @param chatRoomHistory The chatroom's history
+     * @param activeUsers Currently active users
+     * @param dbOp The operation to apply
+     * @param slot The log slot it is in
+     * @return success or failure string
+     */
+    private String apply(Map<String,String> userStore, 
+                            RoomMembers chatRoomUsers,
+                            Map<String, List<String>> chatRoomHistory,
+                            Set<String> activeUsers,
+                            DBOperation dbOp,
+                            int slot) {
+        // Commit the specified operation
+        switch (dbOp.getOpCode()) {
+            case DBOperation.REGISTER:
+                userStore.put(dbOp.getUsername(), dbOp.getPassword());
+                activeUsers.add(dbOp.getUsername());
+                return "success";
+
+            case DBOperation.LOGIN:
+                activeUsers.add(dbOp.getUsername());
+                return "success";
+
+            case DBOperation.LOGOUT:
+                // Only the rooms the user is in are touched
+                chatRoomUsers.logout(dbOp.getUsername());
+                activeUsers.remove(dbOp.getUsername());
+                return "success";
+
+            case DBOperation.CREATE: {
+                // Initialize the room history and room users
+                List<String> chatHistory = new RoomHistory(messageStore);
+
+                chatRoomUsers.create(dbOp.getChatroom(), dbOp.getUsername());
+                List<String> replaced = chatRoomHistory.put(dbOp.getChatroom(), chatHistory);
+                // Creating a room again starts it empty, the old messages go once no snapshot marks them
+                if (replaced != null) {
+                    replaceRoom((RoomHistory) replaced, slot);
+                }
+                return "success";
+            }
+
+            case DBOperation.JOIN:
+                // Add user to the room if it contains the key (Room exists)
+                if (chatRoomHistory.containsKey(dbOp.getChatroom())
+                    && chatRoomUsers.join(dbOp.getChatroom(), dbOp.getUsername())) {
+                    return "success";
+                }
+                return "fail";
+
+            case DBOperation.SEND: {
+                // Add it to the room's message history, its position is its sequence number
+                List<String> history = chatRoomHistory.get(dbOp.getChatroom());
+                int seq = history.size();
+                history.add(dbOp.getMessage());
+                return SENT + seq;
+            }
+
+            case DBOperation.LEAVE:
+                // Attempt to remove the user, leaving a room twice changes nothing
+                if (chatRoomUsers.leave(dbOp.getChatroom(), dbOp.getUsername())) {
+                    return "success";
+                }
+                return "fail";
+
+            case DBOperation.BARRIER:
+                // Changes nothing, a read waits until it is applied
+                return "success";
+
+            default:
+                return "fail";
+        }
     }
 }
@@ -0,0 +1,21 @@
+package paxos;
+
+// Java Imports
+import java.util.Map;
+
+// Custom Imports
+import server.DBBatch;
+
+/**
+ * Somewhere a learner can fetch committed log slots it missed from.
+ */
+public interface LogSource {
+
+    /**
+     * Fetch committed log slots starting at the given slot
+     * @param fromSlot The first missing log slot
+     * @param maxEntries The most slots to return
+     * @return Map of log slot to committed batch, empty if none were found
+     */
+    Map<Integer, DBBatch> fetchCommitted(int fromSlot, int maxEntries);
+}
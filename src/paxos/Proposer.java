@@ -11,15 +11,39 @@ import java.util.logging.Level;
 // RMI Imports
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
 // Java Imports
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntSupplier;
+
+// Threading support
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 // Self Imports
 import server.ChatServerInterface;
 import server.Response;
+import server.DBBatch;
 import server.DBOperation;
+import server.Promise;
+import server.ReplicaStubCache;
+import server.ServerConfig;
 
 public class Proposer extends Thread {
     // Set up logging with a custom properties file
@@ -33,44 +57,184 @@ public class Proposer extends Thread {
         }
     }
 
+    // Proposal IDs of one lease ballot, the ballot is the ID divided by this
+    public static final int BALLOT_SPAN = 1 << 12;
+
+    // Result of an operation in a chosen slot that no learner applied in time
+    public static final String UNKNOWN = "unknown";
+
     // Proposal ID that will be sent to acceptors
     private int propId;
 
-    // Proposed "value" to accept and commit
-    DBOperation proposedVal;
+    // The leader lease ballot this replica proposes under
+    private IntSupplier leaseBallot;
+
+    // Next free log slot
+    private int nextSlot;
+
+    // Every log slot up to this one is known to be committed
+    private int commitIndex;
+
+    // Committed log slots above the commit index
+    private TreeSet<Integer> committedSlots;
+
+    // Multi-Paxos: keep the prepared proposal ID until it is preempted
+    private boolean multiPaxos;
+
+    // Phase 1 has been done for the current proposal ID
+    private boolean isPrepared;
+
+    // Held by the one instance running phase 1, apart from the proposer's lock
+    private final Object prepareLock = new Object();
+
+    // Operations waiting to be proposed in the next batch
+    private BlockingQueue<PendingOp> pendingOps;
+
+    // Largest batch and how long to wait for it to fill up
+    private int maxBatchSize;
+    private long batchWindowMs;
+
+    // Limits the number of Paxos instances in flight at once
+    private Semaphore window;
+
+    // Longest a caller waits for its operation to be committed and applied
+    private long proposeTimeoutMs;
+
+    // Threads running the in flight Paxos instances
+    private ExecutorService pipelinePool;
 
     // List of servers
     List<Integer> serverPorts;
 
+    // The Paxos group this proposer proposes in
+    private int group;
+
+    // The replica this proposer runs on, called directly instead of over RMI
+    private ChatServerInterface localServer;
+    private int localPort;
+
+    // Threads for sending a phase to all replicas at once
+    private ExecutorService rpcPool;
+
+    // Set once the proposer is closed, the batching loop is interrupted on purpose
+    private volatile boolean closed;
+
     /**
-     * Empty constructor
-     * Initializes the proposal ID
+     * Constructor
+     * Initializes the proposal ID and the log slots
+     * @param group The Paxos group this proposer proposes in
      */
-    public Proposer() {
+    public Proposer(int group) {
+        this.group = group;
         this.propId = 0;
+        this.nextSlot = 1;
+        this.commitIndex = 0;
+        this.committedSlots = new TreeSet<Integer>();
+        this.multiPaxos = ServerConfig.getBoolean("paxos.multi", true);
+        this.isPrepared = false;
+        this.rpcPool = Executors.newCachedThreadPool();
+        this.pendingOps = new LinkedBlockingQueue<PendingOp>();
+        this.maxBatchSize = ServerConfig.getInt("paxos.batch.size", 64);
+        this.batchWindowMs = ServerConfig.getLong("paxos.batch.windowMs", 2);
+        this.window = new Semaphore(ServerConfig.getInt("paxos.pipeline.window", 8));
+        this.proposeTimeoutMs = ServerConfig.getLong("paxos.proposeTimeoutMs", 10000);
+        this.pipelinePool = Executors.newCachedThreadPool();
+        this.setDaemon(true);
+    }
+
+    /**
+     * An operation waiting for its batch to be committed
+     */
+    private static class PendingOp {
+        DBOperation op;
+        CompletableFuture<Response> result = new CompletableFuture<Response>();
+
+        PendingOp(DBOperation op) {
+            this.op = op;
+        }
+    }
+
+    /**
+     * Move the proposal ID to this replica's next round under the current
+     * lease ballot. IDs are ballot * BALLOT_SPAN + round * replicas + the
+     * replica's index, so no two replicas ever propose with the same ID and
+     * every ID of a newer lease is above every ID of an older one.
+     * @return False if the ID already passed this replica's lease ballot or its rounds ran out
+     */
+    public synchronized boolean incrementPropID() {
+        int replicas = serverPorts == null ? 1 : Math.max(serverPorts.size(), 1);
+        int index = serverPorts == null ? 0 : Math.max(serverPorts.indexOf(localPort), 0);
+        int base = getLeaseBallot() * BALLOT_SPAN;
+        int round = propId < base ? 1 : (propId - base) / replicas + 1;
+        if (round * replicas + index >= BALLOT_SPAN) {
+            return false;
+        }
+        propId = base + round * replicas + index;
+        return true;
+    }
+
+    /**
+     * Get the lease ballot a proposal ID was made under
+     * @param prop The proposal ID
+     * @return Integer ballot
+     */
+    public static int ballotOf(int prop) {
+        return prop / BALLOT_SPAN;
+    }
+
+    /**
+     * Set where the lease ballot this replica proposes under comes from
+     * @param ballot The lease ballot
+     */
+    public void setLeaseBallot(IntSupplier ballot) {
+        this.leaseBallot = ballot;
     }
 
     /**
-     * Increments the proposal ID
+     * Get the lease ballot this replica proposes under
+     * @return Integer ballot, 0 before one is known
      */
-    public void incrementPropID() {
-        propId++;
+    private int getLeaseBallot() {
+        return leaseBallot == null ? 0 : leaseBallot.getAsInt();
     }
 
     /**
      * Get the proposal ID
      * @return The proposal ID
      */
-    public int getPropId() {
+    public synchronized int getPropId() {
         return this.propId;
     }
 
     /**
-     * Set the proposal ID
+     * Set the proposal ID.
+     * The next proposal has to run phase 1 again with it.
      * @param prop Integer of the proposal ID
      */
-    public void setPropId(int prop) {
+    public synchronized void setPropId(int prop) {
         this.propId = prop;
+        this.isPrepared = false;
+    }
+
+    /**
+     * Get the log slot every earlier slot is known to be committed up to
+     * @return Integer log slot
+     */
+    public synchronized int getCommitIndex() {
+        return this.commitIndex;
+    }
+
+    /**
+     * Set the commit index when taking over from another leader.
+     * Phase 1 will recover any slot after it.
+     * @param index The previous leader's commit index
+     */
+    public synchronized void setCommitIndex(int index) {
+        if (index > this.commitIndex) {
+            this.commitIndex = index;
+            this.committedSlots.headSet(index, true).clear();
+        }
+        this.nextSlot = Math.max(this.nextSlot, this.commitIndex + 1);
     }
 
     /**
@@ -80,226 +244,741 @@ public class Proposer extends Thread {
     public void setPorts(List<Integer> otherPorts) {
         this.serverPorts = otherPorts;
     }
+
+    /**
+     * Set the replica this proposer runs on
+     * @param local The local replica
+     * @param port The local replica's port
+     */
+    public void setLocalServer(ChatServerInterface local, int port) {
+        this.localServer = local;
+        this.localPort = port;
+    }
+
+    /**
+     * Get the replica on the port, the local one without going through RMI
+     * @param port The replica's port
+     * @return The replica
+     * @throws RemoteException
+     * @throws NotBoundException
+     */
+    private ChatServerInterface getReplica(int port) throws RemoteException, NotBoundException {
+        if (port == localPort && localServer != null) {
+            return localServer;
+        }
+        return ReplicaStubCache.getStub(port);
+    }
     
     /**
-     * Start paxos proposal
+     * Start paxos proposal. The operation is queued and proposed together
+     * with any other operations that arrive within the batch window.
      * @param operation The operation - Register or send message or join/create chatroom
      * @param key If registering, the username/password
      * @param val The value of the operation
      * @param message String message if operation is sending a message
      * @param chatroom Chatroom name if joining or creating a chatroom
-     * @return Response object with the server's reply
+     * @return Response object with the server's reply, UNKNOWN if it was proposed but did not finish in time
      */
     public Response propose(String operation, String key, String val, String message, String chatroom) {
-        // On each propose, increment the proposal ID
-        incrementPropID();
-
-        // Keep track of the majority of the servers
-        int majority = (serverPorts.size() / 2) + 1;
-
-        // Keep track of the proposed value
-        // In this case the value is the new operation
-        proposedVal = new DBOperation(operation, key, val, message, chatroom);
-
-        // Send prepare messages to acceptors
-        // Phase 1a: Prepare
-        int numPromises = sendPrepares();
-        
-        int numAccept = 0;
-        // Check that majority of acceptors sent back a promise
-        if (numPromises > majority) {
+        if (closed) {
+            return new Response(Level.SEVERE, "fail");
+        }
+        PendingOp pending = new PendingOp(new DBOperation(operation, key, val, message, chatroom));
+        pendingOps.add(pending);
+
+        // close() may have drained the queue between the check and the add
+        if (closed && pendingOps.remove(pending)) {
+            return new Response(Level.SEVERE, "fail");
+        }
+
+        try {
+            return pending.result.get(proposeTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            LOGGER.severe("Interrupted waiting for the proposal.");
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ee) {
+            LOGGER.severe(ee.toString());
+        } catch (TimeoutException te) {
+            // Still queued means it was never proposed, otherwise it may have been chosen
+            if (!pendingOps.remove(pending)) {
+                LOGGER.warning(String.format("Timed out waiting for %s in group %d.", operation, group));
+                return new Response(Level.SEVERE, UNKNOWN);
+            }
+        }
+        return new Response(Level.SEVERE, "fail");
+    }
+
+    /**
+     * Stop batching proposals and the threads running instances and phases,
+     * the replica went down. Operations still queued were never proposed,
+     * they fail.
+     */
+    public void close() {
+        this.closed = true;
+        this.interrupt();
+        this.pipelinePool.shutdownNow();
+        this.rpcPool.shutdownNow();
+        List<PendingOp> queued = new ArrayList<PendingOp>();
+        pendingOps.drainTo(queued);
+        failAll(queued);
+    }
+
+    /**
+     * Fail operations that were never proposed
+     * @param ops The operations
+     */
+    private static void failAll(List<PendingOp> ops) {
+        for (PendingOp pending : ops) {
+            pending.result.complete(new Response(Level.SEVERE, "fail"));
+        }
+    }
+
+    /**
+     * Batching loop. Takes the queued operations, bounded by the batch size
+     * and the batch window, and starts one Paxos instance for all of them.
+     * Up to the pipeline window of instances run at the same time, each in
+     * its own log slot. Operations keep queueing up while the window is full.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            List<PendingOp> batch = new ArrayList<PendingOp>();
+            try {
+                window.acquire();
+            } catch (InterruptedException ie) {
+                if (!closed) {
+                    LOGGER.severe("Interrupted batching proposals.");
+                }
+                return;
+            }
+            try {
+                batch.add(pendingOps.take());
+                pendingOps.drainTo(batch, maxBatchSize - batch.size());
+
+                // Give concurrent operations a short window to join the batch
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchWindowMs);
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    PendingOp next = pendingOps.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    pendingOps.drainTo(batch, maxBatchSize - batch.size());
+                }
+            } catch (InterruptedException ie) {
+                if (!closed) {
+                    LOGGER.severe("Interrupted batching proposals.");
+                }
+                failAll(batch);
+                window.release();
+                return;
+            }
+
+            try {
+                pipelinePool.submit(() -> {
+                    try {
+                        proposeBatch(batch);
+                    } finally {
+                        window.release();
+                    }
+                });
+            } catch (RejectedExecutionException ree) {
+                // close() shut the pool down after the batch was taken
+                failAll(batch);
+                window.release();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Run one Paxos instance for the batch and hand each operation its result
+     * @param batch The queued operations
+     */
+    private void proposeBatch(List<PendingOp> batch) {
+        List<DBOperation> ops = new ArrayList<DBOperation>();
+        for (PendingOp pending : batch) {
+            ops.add(pending.op);
+        }
+        DBBatch proposedVal = new DBBatch(ops);
+
+        // Phase 1: Prepare
+        // With Multi-Paxos this only runs when leadership is not established yet
+        if (!prepareLeadership()) {
+            for (PendingOp pending : batch) {
+                pending.result.complete(new Response(Level.SEVERE, String.format(
+                    "Consensus not reached for prepare. Aborted: %s",
+                    pending.op.getOp())));
+            }
+            return;
+        }
+
+        int prop = getPropId();
+        int slot = nextLogSlot();
+        LOGGER.info(String.format("Proposing batch of %d operations for slot: %d in group: %d", ops.size(), slot, group));
+
+        // Phase 2: Accept and commit
+        List<String> res = acceptAndCommit(prop, slot, proposedVal);
+
+        // Classic Paxos prepares again for every batch
+        if (!multiPaxos) {
+            resetPrepared(prop);
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            PendingOp pending = batch.get(i);
+            if (res == null) {
+                Level logLevel = Level.SEVERE;
+                String serverReply = String.format(
+                    "Consensus not reached for acceptance. Aborting: %s.",
+                    pending.op.getOp());
+                pending.result.complete(new Response(logLevel, serverReply));
+            } else {
+                // Parse the resultant message from learner and send back the Response object
+                pending.result.complete(makeResponse(res.get(i), slot));
+            }
+        }
+    }
+
+    /**
+     * Run phase 1 for every log slot after the commit index if this proposer
+     * is not prepared yet. Values a previous leader left accepted but not
+     * committed are finished with the new proposal ID.
+     * One instance at a time runs phase 1, and the others wait for it on
+     * the prepare lock. The proposer's lock is only held to read and
+     * install state, never across a round trip, so instances already in
+     * phase 2 keep taking slots and committing meanwhile.
+     * @return True if this proposer holds a prepared proposal ID
+     */
+    private boolean prepareLeadership() {
+        if (isPreparedUnderLease()) {
+            return true;
+        }
+        synchronized (prepareLock) {
+            // Another instance prepared while this one waited
+            if (isPreparedUnderLease()) {
+                return true;
+            }
+
+            int prop = 0;
+            int fromSlot = getCommitIndex() + 1;
+            List<Promise> promises = null;
+
+            // A second try is only worth it if an acceptor had promised the same or a higher ID,
+            // which is normal after the replicas restarted from their logs or after another
+            // replica led the same Paxos group
+            for (int attempt = 0; attempt < 2; attempt++) {
+                // Every phase 1 uses a new proposal ID
+                if (!incrementPropID()) {
+                    LOGGER.severe(String.format("Prop ID: %d is past lease ballot: %d! Aborting...", getPropId(), getLeaseBallot()));
+                    return false;
+                }
+                prop = getPropId();
+
+                // Phase 1a: Prepare
+                AtomicInteger highestSeen = new AtomicInteger(0);
+                promises = sendPrepares(prop, fromSlot, highestSeen);
+
+                // Check that majority of acceptors sent back a promise
+                if (promises.size() >= getMajority()) {
+                    break;
+                }
+                LOGGER.severe(
+                    String.format("Prop ID: %d failed reaching majority promises! Aborting...", 
+                    prop));
+                if (highestSeen.get() < prop) {
+                    return false;
+                }
+                // Outbid the highest proposal ID seen on the next attempt
+                raisePropId(highestSeen.get());
+            }
+            if (promises.size() < getMajority()) {
+                return false;
+            }
+
             LOGGER.info(
-                String.format("Prop ID: %d reached majority promises! Proceeding...", 
-                getPropId()));
-            // Send a request to acceptors to accept the proposal
-            // Phase 2a: Accept
-            numAccept = sendAccepts(proposedVal);
-        } else {
-            LOGGER.severe(
-                String.format("Prop ID: %d failed reaching majority promises! Aborting...", 
-                getPropId()));
-            return new Response(Level.SEVERE, String.format(
-                "Consensus not reached for prepare. Aborted: %s",
-                proposedVal.getOp()));
-        }
-        
-        String res = "";
+                String.format("Prop ID: %d reached majority promises for slots %d onwards! Proceeding...", 
+                prop,
+                fromSlot));
+
+            if (!recoverSlots(prop, fromSlot, promises)) {
+                return false;
+            }
+            return markPrepared(prop);
+        }
+    }
+
+    /**
+     * Check if phase 1 was done under the current lease ballot.
+     * A newer lease fences off the old ballot's IDs, so phase 1 runs again under it.
+     * @return True if this proposer holds a prepared proposal ID
+     */
+    private synchronized boolean isPreparedUnderLease() {
+        return isPrepared && ballotOf(propId) >= getLeaseBallot();
+    }
+
+    /**
+     * Raise the proposal ID to one an acceptor promised, so the next one outbids it
+     * @param seen The highest proposal ID seen
+     */
+    private synchronized void raisePropId(int seen) {
+        propId = Math.max(propId, seen);
+    }
+
+    /**
+     * Record that phase 1 and the recovery finished for the proposal ID,
+     * unless a newer ID replaced it meanwhile
+     * @param prop The prepared proposal ID
+     * @return True if the proposal ID is still the current one
+     */
+    private synchronized boolean markPrepared(int prop) {
+        if (prop != propId) {
+            return false;
+        }
+        isPrepared = true;
+        return true;
+    }
+
+    /**
+     * Finish the log slots the promises reported as accepted. Each slot gets the
+     * value accepted with the highest proposal ID, holes in between get a no-op.
+     * The slots to finish are picked under the proposer's lock and
+     * finished without it.
+     * @param prop The prepared proposal ID
+     * @param fromSlot The first prepared log slot
+     * @param promises The promises from the majority
+     * @return True if every recovered slot was committed
+     */
+    private boolean recoverSlots(int prop, int fromSlot, List<Promise> promises) {
+        Map<Integer, Integer> highestIds = new HashMap<Integer, Integer>();
+        Map<Integer, DBBatch> recovered = new HashMap<Integer, DBBatch>();
+        int lastSlot = fromSlot - 1;
+
+        // Slots an acceptor compacted were chosen and applied already
+        for (Promise promise : promises) {
+            if (promise.getCompactedSlot() >= fromSlot) {
+                fromSlot = promise.getCompactedSlot() + 1;
+            }
+        }
+        lastSlot = Math.max(lastSlot, fromSlot - 1);
+
+        for (Promise promise : promises) {
+            for (Map.Entry<Integer, DBBatch> accepted : promise.getAcceptedVals().entrySet()) {
+                int slot = accepted.getKey();
+                if (slot < fromSlot) {
+                    continue;
+                }
+                int acceptedId = promise.getAcceptedIds().get(slot);
+                if (!highestIds.containsKey(slot) || acceptedId > highestIds.get(slot)) {
+                    highestIds.put(slot, acceptedId);
+                    recovered.put(slot, accepted.getValue());
+                }
+                lastSlot = Math.max(lastSlot, slot);
+            }
+        }
+
+        TreeMap<Integer, DBBatch> toFinish = new TreeMap<Integer, DBBatch>();
+        synchronized (this) {
+            setCommitIndex(fromSlot - 1);
+
+            // Slots this proposer handed out but did not commit are finished as well
+            lastSlot = Math.max(lastSlot, nextSlot - 1);
+            nextSlot = Math.max(nextSlot, lastSlot + 1);
+
+            for (int slot = fromSlot; slot <= lastSlot; slot++) {
+                if (committedSlots.contains(slot)) {
+                    continue;
+                }
+                DBBatch recoveredVal = recovered.get(slot);
+                if (recoveredVal == null) {
+                    // Nothing was chosen for the slot, fill it with an empty batch
+                    recoveredVal = new DBBatch();
+                }
+                toFinish.put(slot, recoveredVal);
+            }
+        }
+
+        for (Map.Entry<Integer, DBBatch> slotVal : toFinish.entrySet()) {
+            LOGGER.info(String.format("Recovering log slot: %d with %d operations", slotVal.getKey(), slotVal.getValue().size()));
+            if (acceptAndCommit(prop, slotVal.getKey(), slotVal.getValue()) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Take the next free log slot
+     * @return Integer log slot
+     */
+    private synchronized int nextLogSlot() {
+        return nextSlot++;
+    }
+
+    /**
+     * Force the next proposal to run phase 1 again.
+     * An instance still running with an older proposal ID does not
+     * undo a newer phase 1.
+     * @param prop The proposal ID the instance ran with
+     */
+    private synchronized void resetPrepared(int prop) {
+        if (prop == propId) {
+            isPrepared = false;
+        }
+    }
+
+    /**
+     * Record the log slot as committed and move the commit index forward
+     * over every slot that is committed without a gap.
+     * @param slot The committed log slot
+     */
+    private synchronized void markCommitted(int slot) {
+        if (slot <= commitIndex) {
+            return;
+        }
+        committedSlots.add(slot);
+        while (committedSlots.contains(commitIndex + 1)) {
+            commitIndex++;
+            committedSlots.remove(commitIndex);
+        }
+    }
+
+    /**
+     * Phase 2 for one log slot. Send the accepts and commit once a majority accepted.
+     * Losing the majority means another proposal ID preempted this one.
+     * @param prop The proposal ID
+     * @param slot The log slot
+     * @param val The batch to accept
+     * @return The commit result of each operation or null if the majority did not accept
+     */
+    private List<String> acceptAndCommit(int prop, int slot, DBBatch val) {
+        // Send a request to acceptors to accept the proposal
+        // Phase 2a: Accept
+        int numAccept = sendAccepts(prop, slot, val);
+
         // Check majority of servers accepted the proposal
         // If it did, then commit the action on all servers
-        if (numAccept > majority) {
-            LOGGER.info(
-                String.format("Prop ID: %d reached majority accepts! Proceeding...", 
-                getPropId()));
-            res = sendCommits();
-        } else {
+        if (numAccept < getMajority()) {
             LOGGER.severe(
-                String.format("Prop ID: %d failed reaching majority accepts! Aborting...", 
-                getPropId()));
-            Level logLevel = Level.SEVERE;
-            String serverReply = String.format(
-                "Consensus not reached for acceptance. Aborting: %s.",
-                proposedVal.getOp());
-            return new Response(logLevel, serverReply);
+                String.format("Prop ID: %d failed reaching majority accepts for slot: %d! Aborting...", 
+                prop,
+                slot));
+            resetPrepared(prop);
+            return null;
         }
 
-        // Parse the resultant message from learner and send back the Response object
-        return makeResponse(res);
+        LOGGER.info(
+            String.format("Prop ID: %d reached majority accepts for slot: %d! Proceeding...", 
+            prop,
+            slot));
+        List<String> res = sendCommits(slot, val);
+        markCommitted(slot);
+        return res;
     }
 
     /**
-     * Send a prepare message to the "Quorum" of Acceptors
-     * @return The total number of accept replies
+     * A single remote call made to one replica during a Paxos phase.
+     * Implementations return null when the replica denied the request
+     * or could not be reached.
+     */
+    private interface ReplicaCall<T> {
+        T call(int port);
+    }
+
+    /**
+     * Get the number of replicas that make up a majority
+     * @return Integer majority size
      */
-    private int sendPrepares() {
-        int numPrepped = 0;
+    private int getMajority() {
+        return (serverPorts.size() / 2) + 1;
+    }
 
+    /**
+     * Send the phase's call to every replica at the same time and wait only
+     * until a majority has replied. Slower replicas keep running on the
+     * RPC pool in the background and their replies are just logged.
+     * @param call The remote call to make against each replica
+     * @return The non-null replies received before the majority was reached
+     */
+    private <T> List<T> fanOut(ReplicaCall<T> call) {
+        int majority = getMajority();
+        CompletionService<T> completion = new ExecutorCompletionService<T>(rpcPool);
         for (int port: serverPorts) {
+            completion.submit(() -> call.call(port));
+        }
+
+        List<T> replies = new ArrayList<T>();
+        int pending = serverPorts.size();
+        // Stop once a majority replied or once a majority can no longer be reached
+        while (pending > 0 && replies.size() < majority && replies.size() + pending >= majority) {
+            try {
+                T reply = completion.take().get();
+                if (reply != null) {
+                    replies.add(reply);
+                }
+            } catch (InterruptedException ie) {
+                LOGGER.severe("Interrupted waiting for replica replies.");
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException ee) {
+                LOGGER.severe(ee.toString());
+            }
+            pending--;
+        }
+        return replies;
+    }
+
+    /**
+     * Send a prepare message to the "Quorum" of Acceptors
+     * @param prop The proposal ID
+     * @param fromSlot The first log slot to prepare
+     * @param highestSeen Raised to the highest proposal ID a rejecting acceptor promised
+     * @return The promises received
+     */
+    private List<Promise> sendPrepares(int prop, int fromSlot, AtomicInteger highestSeen) {
+        return fanOut((port) -> {
             // For each server, send a prepare message to it
             // with the current proposal ID
             try {
-                Registry reg = LocateRegistry.getRegistry(port);
-                ChatServerInterface chatStub = (ChatServerInterface) reg.lookup("chat");
-                boolean serverPrepped = chatStub.prepare(getPropId());
-                if (serverPrepped) {
-                    numPrepped++;
+                ChatServerInterface chatStub = getReplica(port);
+                Promise promise = chatStub.prepare(group, prop, fromSlot);
+                if (promise.isPromised()) {
                     LOGGER.info(
                         String.format("Server port: %d, sent back a promise to prop ID: %d!", 
                         port,
-                        getPropId()));
-                } else {
-                    LOGGER.severe(
-                        String.format("Server port: %d, did NOT promise the proposal with ID: %d!", 
-                        port,
-                        getPropId()));
+                        prop));
+                    return promise;
                 }
+                highestSeen.accumulateAndGet(promise.getPromisedId(), Math::max);
+                LOGGER.severe(
+                    String.format("Server port: %d, did NOT promise the proposal with ID: %d!", 
+                    port,
+                    prop));
             } catch (RemoteException e) {
+                ReplicaStubCache.invalidate(port);
                 LOGGER.severe(e.toString());
                 LOGGER.severe(
                     String.format(
                     "Remote exception for server port: %d!.",
                     port));
-                continue;
             } catch (NotBoundException e) {
                 LOGGER.severe(
                     String.format(
                     "Could not bind registry for server on port: %d! Registry name not found!",
                             port));
-                continue;
             } catch (SocketTimeoutException ste) {
                 LOGGER.severe(
                     String.format(
                     "Timed out for server on port: %d! Could not accept proposal!",
                             port));
-                continue;
             }
-        }
-        return numPrepped;
+            return null;
+        });
     }
 
     /**
      * Send accept messages to Acceptors to get them to accept the proposal
+     * @param prop The proposal ID
+     * @param slot The log slot
+     * @param propVal The proposed value
      * @return Number of Acceptors that accepted the proposal
      */
-    private int sendAccepts(DBOperation propVal) {
-        int numAccept = 0;
-        for(int port: serverPorts) {
+    private int sendAccepts(int prop, int slot, DBBatch propVal) {
+        // Followers that missed a commit learn it from the commit index
+        int knownCommitted = getCommitIndex();
+        List<DBBatch> accepted = fanOut((port) -> {
             try {
-                Registry reg = LocateRegistry.getRegistry(port);
-                ChatServerInterface chatStub = (ChatServerInterface) reg.lookup("chat");
-                DBOperation serverAccept = chatStub.accept(getPropId(), propVal);
+                ChatServerInterface chatStub = getReplica(port);
+                DBBatch serverAccept = chatStub.accept(group, prop, slot, propVal, knownCommitted);
                 if (serverAccept != null) {
-                    numAccept++;
-                    proposedVal = serverAccept;
                     LOGGER.info(
                         String.format("Server port: %d, accepted the proposal with ID: %d!", 
                         port,
-                        getPropId()));
-                } else {
-                    LOGGER.severe(
-                        String.format("Server port: %d, denied the proposal with ID: %d!", 
-                        port,
-                        getPropId()));
-                } 
+                        prop));
+                    return serverAccept;
+                }
+                LOGGER.severe(
+                    String.format("Server port: %d, denied the proposal with ID: %d!", 
+                    port,
+                    prop));
             } catch (RemoteException e) {
+                ReplicaStubCache.invalidate(port);
                 LOGGER.severe(
                     String.format(
                     "Remote exception for server port: %d!. Could not accept proposal.",
                     port));
-                continue;
             } catch (NotBoundException e) {
                 LOGGER.severe(
                     String.format(
                     "Could not bind registry for server on port: %d! Registry name not found! Could not accept proposal!",
                             port));
-                continue;
             } catch (SocketTimeoutException ste) {
                 LOGGER.severe(
                     String.format(
                     "Socket timed out for server on port: %d! Could not accept proposal!",
                             port));
-                continue;
             }
-        }
-        return numAccept;
+            return null;
+        });
+
+        return accepted.size();
     }
 
     /**
      * Send commit messages to the Learners.
-     * @return String The final status of the commit
+     * Returns once a majority has durably applied the slot, the rest commit in the
+     * background and also learn it from the commit index on the next accept.
+     * The local learner's result is used when it is part of the majority.
+     * A majority accepted the batch already, so it is chosen whatever the
+     * learners answer in time. Operations no learner reported a result for
+     * wait for the local learner, and are UNKNOWN if it cannot apply the
+     * slot either, never a failure a client would retry.
+     * @param slot The log slot
+     * @param commitVal The accepted batch
+     * @return The final status of the commit for each operation in the batch
      */
-    private String sendCommits() {
-        String res = "fail";
+    private List<String> sendCommits(int slot, DBBatch commitVal) {
+        AtomicReference<List<String>> localRes = new AtomicReference<List<String>>();
 
-        // Iterate through all servers to commit the action using the proposed val
-        for(int port: serverPorts) {
+        // Commit the action on all servers using the proposed val
+        List<List<String>> results = fanOut((port) -> {
             try {
-                Registry reg = LocateRegistry.getRegistry(port);
-                ChatServerInterface chatStub = (ChatServerInterface) reg.lookup("chat");
-                res = chatStub.commit(this.propId, proposedVal);
+                ChatServerInterface chatStub = getReplica(port);
+                List<String> res = chatStub.commit(group, slot, commitVal);
+                // A learner that applied the slot earlier may no longer know its results
+                if (port == localPort && res != null && !res.contains(Learner.ALREADY_APPLIED)) {
+                    localRes.set(res);
+                }
 
-                if (res.equals("fail")) {
+                if (res == null) {
                     LOGGER.severe(
-                        String.format("Server port: %d, commit failed!", 
+                        String.format("Server port: %d, could not apply slot: %d in time!", 
                         port,
+                        slot));
+                } else if (res.contains("fail")) {
+                    LOGGER.severe(
+                        String.format("Server port: %d, commit of slot: %d had failures! Result: %s", 
+                        port,
+                        slot,
                         res));
                 } else {
                     LOGGER.info(
-                        String.format("Server port: %d, committed. Result: %s", 
+                        String.format("Server port: %d, committed slot: %d. Result: %s", 
                         port,
+                        slot,
                         res));
                 }
+                return res;
             } catch (RemoteException e) {
+                ReplicaStubCache.invalidate(port);
                 LOGGER.severe(
                     String.format(
                     "Remote exception for server port: %d!. Could not commit!",
                     port));
-                continue;
             } catch (NotBoundException e) {
                 LOGGER.severe(
                     String.format(
                     "Could not bind registry for server on port: %d! Registry name not found! Could not commit!",
                             port));
-                continue;
-            }    
+            }
+            return null;
+        });
+
+        if (localRes.get() != null) {
+            return localRes.get();
         }
-        return res;
+        if (results.size() < getMajority()) {
+            LOGGER.severe(
+                String.format("Only %d learners applied chosen slot: %d in time! Waiting for the local learner...", 
+                results.size(),
+                slot));
+        }
+
+        // Learners apply the same value in the same order, so every learner
+        // that still knows an operation's result reports the same one
+        List<String> finalRes = findResults(results, commitVal.size());
+        if (finalRes.contains(null) && localServer != null) {
+            try {
+                // Waits on the same commit if the local learner is still applying the slot
+                List<String> local = localServer.commit(group, slot, commitVal);
+                if (local != null) {
+                    results.add(local);
+                    finalRes = findResults(results, commitVal.size());
+                }
+            } catch (RemoteException e) {
+                LOGGER.severe(
+                    String.format("Local learner could not apply chosen slot: %d! %s", 
+                    slot,
+                    e.toString()));
+            }
+        }
+
+        // Only if every learner applied the slot before without its results
+        // were they compacted away, otherwise nobody applied it in time
+        boolean anyReplied = !results.isEmpty();
+        for (int i = 0; i < finalRes.size(); i++) {
+            if (finalRes.get(i) == null) {
+                finalRes.set(i, anyReplied ? Learner.ALREADY_APPLIED : UNKNOWN);
+            }
+        }
+        return finalRes;
+    }
+
+    /**
+     * Get the result of each operation from the learners' replies
+     * @param results The learners' replies
+     * @param size The number of operations in the batch
+     * @return The first known result of each operation, null where no learner knew it
+     */
+    private static List<String> findResults(List<List<String>> results, int size) {
+        List<String> finalRes = new ArrayList<String>();
+        for (int i = 0; i < size; i++) {
+            String res = null;
+            for (List<String> serverRes : results) {
+                if (!serverRes.get(i).equals(Learner.ALREADY_APPLIED)) {
+                    res = serverRes.get(i);
+                    break;
+                }
+            }
+            finalRes.add(res);
+        }
+        return finalRes;
     }
 
     /**
      * Put together the final response to send back to the calling client.
      * @param res The result from the commits
+     * @param slot The log slot the operation was committed in
      * @return Response object
      */
-    private Response makeResponse(String res) {
+    private Response makeResponse(String res, int slot) {
         String serverReply = "";
         Level logLevel = Level.SEVERE;
 
+        int seq = -1;
         if (res.equals("success")) {
             serverReply = "success";
             logLevel = Level.INFO;
+        } else if (res.startsWith(Learner.SENT)) {
+            // A sent message, the client resumes its history after this sequence number
+            serverReply = "success";
+            logLevel = Level.INFO;
+            seq = Integer.parseInt(res.substring(Learner.SENT.length()));
+        } else if (res.equals(Learner.ALREADY_APPLIED)) {
+            // Committed before, but whether it succeeded is no longer known
+            serverReply = Learner.ALREADY_APPLIED;
+            logLevel = Level.WARNING;
+        } else if (res.equals(UNKNOWN)) {
+            // Chosen, but no learner applied it in time to tell whether it succeeded
+            serverReply = UNKNOWN;
+            logLevel = Level.WARNING;
         } else {
             serverReply = "fail";
         }
-        return new Response(logLevel, serverReply);
+        Response response = new Response(logLevel, serverReply);
+        response.setSlot(slot);
+        response.setSeq(seq);
+        return response;
     }
 }
@@ -0,0 +1,597 @@
+package paxos;
+
+// Log Imports
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+// File Imports
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// Java Imports
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+// Custom Imports
+import server.DBBatch;
+import server.ServerConfig;
+import server.Snapshot;
+
+/**
+ * Append only write ahead log for the acceptor's promises and accepts and the
+ * learner's commits. Batches use the same compact encoding as the wire. Records are written by a single flusher thread so that
+ * many appends waiting at the same time share one write and one fsync.
+ *
+ * The log is split into segments. When a snapshot is saved the log rolls to
+ * a new segment that starts with a checkpoint of everything after the
+ * snapshot, and the older segments are deleted.
+ */
+public class WriteAheadLog extends Thread {
+    // Set up logging with a custom properties file
+    static Logger LOGGER = Logger.getLogger(WriteAheadLog.class.getName());
+    static {
+        String filePath = "../config/serverlogging.properties";
+        try {
+            LogManager.getLogManager().readConfiguration(new FileInputStream(filePath));
+        } catch (IOException io)  {
+            LOGGER.severe("Logging config file not found.");
+        }
+    }
+
+    // Record types
+    private static final byte PROMISE = 1;
+    private static final byte ACCEPT = 2;
+    private static final byte COMMIT = 3;
+
+    // Length and checksum in front of every record
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * When appends wait for the disk
+     * ALWAYS: fsync before the append returns, shared by every waiting append
+     * INTERVAL: written before the append returns, fsync on a timer
+     * NEVER: written before the append returns, the OS decides when to flush
+     */
+    public enum FsyncPolicy { ALWAYS, INTERVAL, NEVER }
+
+    /**
+     * Receives the records of the log on startup
+     */
+    public interface Replayer {
+        void promise(int propId);
+        void accept(int propId, int slot, DBBatch val);
+        void commit(int slot, DBBatch val);
+    }
+
+    private Path dir;
+    private int port;
+    // Files are named after the port, and the Paxos group for every group but the first
+    private String name;
+    private FsyncPolicy policy;
+    private long fsyncIntervalMs;
+
+    private volatile FileChannel channel;
+    private int segment;
+
+    // Records waiting for the flusher
+    private List<byte[]> queued;
+
+    // Sequence numbers of the last appended and the last written record
+    private long appendedSeq;
+    private long writtenSeq;
+
+    // Set once the log is closed, the flusher writes what is queued and stops
+    private boolean closed;
+
+    private boolean failed;
+
+    /**
+     * Constructor. Nothing is opened until the log is replayed.
+     * @param port The port of the server the log belongs to
+     * @param group The Paxos group the log belongs to
+     */
+    public WriteAheadLog(int port, int group) {
+        this.dir = Paths.get(ServerConfig.getString("paxos.wal.dir", "../data"));
+        this.port = port;
+        this.name = group == 0 ? Integer.toString(port) : String.format("%dg%d", port, group);
+        this.policy = FsyncPolicy.valueOf(ServerConfig.getString("paxos.wal.fsync", "always").toUpperCase());
+        this.fsyncIntervalMs = ServerConfig.getLong("paxos.wal.fsyncIntervalMs", 10);
+        this.queued = new ArrayList<byte[]>();
+        this.appendedSeq = 0;
+        this.writtenSeq = 0;
+        this.failed = false;
+        this.closed = false;
+        this.setDaemon(true);
+    }
+
+    // =========================
+
+    //      Startup and replay
+
+    // =========================
+
+    /**
+     * Load the saved snapshot for this server
+     * @return Snapshot object or null if there is none
+     */
+    public Snapshot loadSnapshot() {
+        Path file = dir.resolve(String.format("snapshot-%s.bin", name));
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (ObjectInputStream in = new ObjectInputStream(Files.newInputStream(file))) {
+            return (Snapshot) in.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            LOGGER.severe(String.format("Could not read snapshot for server port: %d. %s", port, e.toString()));
+            return null;
+        }
+    }
+
+    /**
+     * Replay every record in the log in order, then open the last segment
+     * for appending and start the flusher. Only the last segment may end
+     * in a torn record. Replay stops at the first segment that ends early,
+     * its tail is cut off and the segments after it are deleted, so the
+     * log stays a prefix of what was written.
+     * @param replayer Receives the records
+     * @throws IOException
+     */
+    public void replay(Replayer replayer) throws IOException {
+        Files.createDirectories(dir);
+        TreeMap<Integer, Path> segments = listSegments();
+
+        long validLength = 0;
+        Integer last = null;
+        for (Map.Entry<Integer, Path> file : segments.entrySet()) {
+            validLength = replaySegment(file.getValue(), replayer);
+            last = file.getKey();
+            if (validLength < Files.size(file.getValue())) {
+                break;
+            }
+        }
+        if (last != null) {
+            // Records after a cut were written after the lost ones, replaying them would skip slots
+            for (Path later : segments.tailMap(last, false).values()) {
+                LOGGER.severe(String.format("Log segment: %s follows a cut off segment. Deleting it.", later));
+                Files.delete(later);
+            }
+        }
+
+        if (last == null) {
+            segment = 1;
+            channel = openSegment(segment);
+        } else {
+            segment = last;
+            channel = openSegment(segment);
+            channel.truncate(validLength);
+        }
+        LOGGER.info(String.format("Replayed %d log segments for server port: %d", segments.size(), port));
+        this.start();
+    }
+
+    /**
+     * Replay the records of a single segment. A torn or corrupt record ends
+     * the valid part of the segment: a length that is not positive or runs
+     * past the end of the file, a checksum that does not match, or a
+     * record that does not decode. A zero filled tail ends it the same way.
+     * @param file The segment file
+     * @param replayer Receives the records
+     * @return The length of the segment up to the last good record
+     * @throws IOException
+     */
+    private long replaySegment(Path file, Replayer replayer) throws IOException {
+        long validLength = 0;
+        try (FileChannel segmentChannel = FileChannel.open(file);
+             DataInputStream in = new DataInputStream(Channels.newInputStream(segmentChannel))) {
+            long size = segmentChannel.size();
+            while (true) {
+                int length;
+                int checksum;
+                byte[] record;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length <= 0 || length > size - validLength - HEADER_SIZE) {
+                        LOGGER.severe(String.format("Bad record length: %d in log segment: %s. Cutting it off.", length, file));
+                        break;
+                    }
+                    record = new byte[length];
+                    in.readFully(record);
+                } catch (IOException eof) {
+                    break;
+                }
+                if (checksum != checksum(record)) {
+                    LOGGER.severe(String.format("Bad record in log segment: %s. Cutting it off.", file));
+                    break;
+                }
+                if (!applyRecord(record, replayer)) {
+                    LOGGER.severe(String.format("Undecodable record in log segment: %s. Cutting it off.", file));
+                    break;
+                }
+                validLength += HEADER_SIZE + length;
+            }
+        }
+        return validLength;
+    }
+
+    /**
+     * Decode a record and hand it to the replayer. Nothing is handed over
+     * unless the whole record decodes.
+     * @param record The record bytes
+     * @param replayer Receives the record
+     * @return False if the record does not decode
+     */
+    private static boolean applyRecord(byte[] record, Replayer replayer) {
+        byte type;
+        int propId = 0;
+        int slot = 0;
+        DBBatch batch = null;
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            type = in.readByte();
+            if (type == PROMISE) {
+                propId = in.readInt();
+            } else if (type == ACCEPT) {
+                propId = in.readInt();
+                slot = in.readInt();
+                batch = DBBatch.read(in);
+            } else if (type == COMMIT) {
+                slot = in.readInt();
+                batch = DBBatch.read(in);
+            } else {
+                return false;
+            }
+        } catch (IOException | RuntimeException bad) {
+            return false;
+        }
+
+        if (type == PROMISE) {
+            replayer.promise(propId);
+        } else if (type == ACCEPT) {
+            replayer.accept(propId, slot, batch);
+        } else {
+            replayer.commit(slot, batch);
+        }
+        return true;
+    }
+
+    // =========================
+
+    //      Appending records
+
+    // =========================
+
+    /**
+     * Queue a record for the flusher. Call while holding the lock that
+     * orders the records, then call sync outside of it.
+     * @param record The encoded record
+     * @return The record's sequence number
+     */
+    public synchronized long append(byte[] record) {
+        queued.add(record);
+        appendedSeq++;
+        notifyAll();
+        return appendedSeq;
+    }
+
+    /**
+     * Wait until the record is as durable as the fsync policy asks for
+     * @param seq The record's sequence number
+     * @return True if the record made it to the log
+     */
+    public synchronized boolean sync(long seq) {
+        while (writtenSeq < seq && !failed) {
+            try {
+                wait();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return !failed;
+    }
+
+    /**
+     * Flusher loop. Writes every queued record with one write and, with the
+     * ALWAYS policy, one fsync before waking up the appends waiting on them.
+     */
+    @Override
+    public void run() {
+        long lastForce = System.currentTimeMillis();
+        while (true) {
+            List<byte[]> records;
+            long seq;
+            synchronized (this) {
+                while (queued.isEmpty()) {
+                    if (closed) {
+                        return;
+                    }
+                    try {
+                        if (policy == FsyncPolicy.INTERVAL) {
+                            wait(fsyncIntervalMs);
+                            break;
+                        }
+                        wait();
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+                records = queued;
+                queued = new ArrayList<byte[]>();
+                seq = appendedSeq;
+            }
+
+            try {
+                synchronized (channel) {
+                    write(channel, records);
+                    if (policy == FsyncPolicy.ALWAYS) {
+                        channel.force(false);
+                    } else if (policy == FsyncPolicy.INTERVAL
+                                && System.currentTimeMillis() - lastForce >= fsyncIntervalMs) {
+                        channel.force(false);
+                        lastForce = System.currentTimeMillis();
+                    }
+                }
+            } catch (IOException io) {
+                LOGGER.severe(String.format("Could not write log for server port: %d. %s", port, io.toString()));
+                synchronized (this) {
+                    failed = true;
+                    notifyAll();
+                }
+                return;
+            }
+
+            synchronized (this) {
+                writtenSeq = seq;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Write the queued records, stop the flusher and close the active
+     * segment. Appends after this never become durable.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            this.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (channel != null) {
+                synchronized (channel) {
+                    channel.force(false);
+                    channel.close();
+                }
+            }
+        } catch (IOException io) {
+            LOGGER.severe(String.format("Could not close log for server port: %d. %s", port, io.toString()));
+        }
+        synchronized (this) {
+            // Nothing is written any more, waiting appends give up
+            failed = true;
+            notifyAll();
+        }
+    }
+
+    // =========================
+
+    //      Snapshots
+
+    // =========================
+
+    /**
+     * Save the snapshot, replacing the previous one
+     * @param snapshot The snapshot to save
+     * @return True if the snapshot was saved
+     */
+    public boolean saveSnapshot(Snapshot snapshot) {
+        Path tmp = dir.resolve(String.format("snapshot-%s.tmp", name));
+        try {
+            // Write the snapshot next to the old one and swap it in
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                    ObjectOutputStream objOut = new ObjectOutputStream(Channels.newOutputStream(out))) {
+                objOut.writeObject(snapshot);
+                objOut.flush();
+                out.force(true);
+            }
+            Files.move(tmp, dir.resolve(String.format("snapshot-%s.bin", name)),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException io) {
+            LOGGER.severe(String.format("Could not save snapshot for server port: %d. %s", port, io.toString()));
+            return false;
+        }
+    }
+
+    /**
+     * Roll the log to a new segment that starts with the checkpoint records
+     * and delete the older segments. The caller must hold the locks that
+     * order the records so nothing is appended while the log rolls.
+     * @param checkpoint Records still needed after the saved snapshot
+     */
+    public void roll(List<byte[]> checkpoint) {
+        // Records queued before the checkpoint are covered by it, wait for them first
+        sync(appendedSeq());
+        try {
+            synchronized (channel) {
+                FileChannel next = openSegment(segment + 1);
+                write(next, checkpoint);
+                next.force(false);
+                channel.close();
+                channel = next;
+                segment++;
+            }
+
+            for (Map.Entry<Integer, Path> old : listSegments().entrySet()) {
+                if (old.getKey() < segment) {
+                    Files.deleteIfExists(old.getValue());
+                }
+            }
+            LOGGER.info(String.format("Rolled to log segment: %d with %d checkpoint records", segment, checkpoint.size()));
+        } catch (IOException io) {
+            LOGGER.severe(String.format("Could not roll log for server port: %d. %s", port, io.toString()));
+        }
+    }
+
+    private synchronized long appendedSeq() {
+        return appendedSeq;
+    }
+
+    // =========================
+
+    //      Encoding
+
+    // =========================
+
+    /**
+     * Encode a promise record
+     * @param propId The promised proposal ID
+     * @return The record bytes
+     */
+    public static byte[] promiseRecord(int propId) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(PROMISE);
+            out.writeInt(propId);
+        } catch (IOException io) {
+            // Writing to memory does not fail
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Encode an accept record
+     * @param propId The proposal ID
+     * @param slot The log slot
+     * @param val The accepted batch
+     * @return The record bytes
+     */
+    public static byte[] acceptRecord(int propId, int slot, DBBatch val) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(ACCEPT);
+            out.writeInt(propId);
+            out.writeInt(slot);
+            val.write(out);
+        } catch (IOException io) {
+            // Writing to memory does not fail
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Encode a commit record
+     * @param slot The log slot
+     * @param val The committed batch
+     * @return The record bytes
+     */
+    public static byte[] commitRecord(int slot, DBBatch val) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(COMMIT);
+            out.writeInt(slot);
+            val.write(out);
+        } catch (IOException io) {
+            // Writing to memory does not fail
+        }
+        return bytes.toByteArray();
+    }
+
+    // =========================
+
+    //      Files
+
+    // =========================
+
+    /**
+     * Write framed records to the channel in a single write
+     * @param out The channel
+     * @param records The records
+     * @throws IOException
+     */
+    private static void write(FileChannel out, List<byte[]> records) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[records.size() * 2];
+        for (int i = 0; i < records.size(); i++) {
+            byte[] record = records.get(i);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(record.length);
+            header.putInt(checksum(record));
+            header.flip();
+            buffers[i * 2] = header;
+            buffers[i * 2 + 1] = ByteBuffer.wrap(record);
+        }
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= out.write(buffers);
+        }
+    }
+
+    private static int checksum(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Open a segment for appending
+     * @param number The segment number
+     * @return The channel
+     * @throws IOException
+     */
+    private FileChannel openSegment(int number) throws IOException {
+        Path file = dir.resolve(String.format("wal-%s-%d.log", name, number));
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * List this server's segments by segment number
+     * @return Map of segment number to file
+     * @throws IOException
+     */
+    private TreeMap<Integer, Path> listSegments() throws IOException {
+        TreeMap<Integer, Path> segments = new TreeMap<Integer, Path>();
+        String prefix = String.format("wal-%s-", name);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    segments.put(Integer.parseInt(name.substring(prefix.length(), name.length() - 4)), file);
+                } catch (NumberFormatException ne) {
+                    LOGGER.severe(String.format("Ignoring log file: %s", name));
+                }
+            }
+        }
+        return segments;
+    }
+}
@@ -2,11 +2,8 @@ package server;
 
 // Java Utils
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 // Logging imports
 import java.util.logging.LogManager;
@@ -30,8 +27,6 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ConcurrentHashMap;
 
-import client.ClientInterface;
-
 /**
  * Chat coordinator class
  */
@@ -59,255 +54,62 @@ public class ChatCoordinator {
     // Threading support
     private static ExecutorService executorService = Executors.newFixedThreadPool(10);
 
-    // Snapshots of which ever is the lead server
-    private static int largestPropId = 0;
-    private static int currLeader = 0;
-    private static Set<String> connectedUsers = new HashSet<String>();
-    private static Map<String, String> leaderUserDB = new ConcurrentHashMap<String, String>();
-    private static Map<String, List<String>> leaderChatRoomUsers = new ConcurrentHashMap<String, List<String>>();
-    private static Map<String, List<String>> leaderChatRoomHistory = new ConcurrentHashMap<String, List<String>>();
+    // Failure detector of every replica by port
+    private static Map<Integer, PhiAccrualDetector> serverDetectors = new ConcurrentHashMap<Integer, PhiAccrualDetector>();
+    private static long heartBeatIntervalMs = ServerConfig.getLong("failure.heartbeatIntervalMs", 1000);
 
     /**
-     * Keep track of connected clients to the leader.
-     * Clean up dead clients from the server
+     * Get the failure detector of the replica, making it on first use
+     * @param port The replica's port
+     * @return The replica's detector
      */
-    private static void getLeaderConnClientsheartBeats() {
-        while (true) {
-            ChatServerImpl leaderServer = chatServers.get(currLeader);
-            Set<String> connClients = leaderServer.getLoggedInUsers();
-            boolean isAlive = false;
-            if (connClients.size() > 0){
-                Registry remoteReg = leaderServer.getRegistry();
-                for (String client: connClients) {
-                    try {
-                        ClientInterface connClient = (ClientInterface)remoteReg.lookup(String.format("client:%s", client));
-                        isAlive = connClient.sendHeartBeat();
-                        if (isAlive) {
-                            LOGGER.info(String.format("Client: %s is still connected.", client));
-                        }
-                    } catch (RemoteException re) {
-                        LOGGER.severe(String.format("Remote Client: %s is dead!", client));
-                        leaderServer.cleanUpClients(client);
-                        connectedUsers.remove(client);
-                    } catch (NotBoundException nbe) {
-                        LOGGER.severe(String.format("Client name: %s is not bound!", client));
-                        leaderServer.cleanUpClients(client);
-                        connectedUsers.remove(client);
-                    }
-                }
-            } else {
-                LOGGER.info(String.format("No connected clients to server on port: %d",leaderServer.getPort()));
-            }
-            
-            // Sleep thread for 5 seconds. Essentially check clients every 3 seconds.
-            try {
-                Thread.sleep(3000);
-            } catch (InterruptedException ie) {
-                LOGGER.severe("Interrupted sleeping client heartbeat sensor");
-            }
-        } 
-    }
-
-    /**
-     * Merge current leader's data with the snapshot data
-     * @param clientMap The current server's map
-     * @param dataType The type of data to backup
-     */
-    private synchronized static void mergeMaps(Map<String, List<String>> clientMap, String dataType) {
-        Map<String, List<String>> theMap;
-        if(dataType.equals("history")) {
-            theMap = leaderChatRoomHistory;
-        } else {
-            theMap = leaderChatRoomUsers;
-        }
-        clientMap.forEach(
-            (key, value) -> theMap.merge(key, value, (v1, v2) -> 
-            {
-                //Add items from Lists into Set
-                Set<String> set = new LinkedHashSet<>(v1);
-                // Add all items from second value
-                set.addAll(v2);
-                //Convert Set to ArrayList
-                return new ArrayList<>(set);
-                
-            })
-        );
-    }
-
-    /**
-     * Merge the lead server's user database with the snapshot one in the coordinator
-     * @param clientMap The lead server's user database
-     */
-    private synchronized static void mergeUserDB(Map<String, String> clientMap) {
-        clientMap.forEach(
-            (key, value) -> leaderUserDB.merge(key, value, (v1, v2) -> v2));
+    private static PhiAccrualDetector detectorFor(int port) {
+        return serverDetectors.computeIfAbsent(port, (p) -> new PhiAccrualDetector(
+            Double.parseDouble(ServerConfig.getString("failure.phi.threshold", "8")),
+            ServerConfig.getInt("failure.phi.windowSize", 100),
+            ServerConfig.getLong("failure.phi.minStdDevMs", 200),
+            ServerConfig.getLong("failure.phi.acceptablePauseMs", 500),
+            heartBeatIntervalMs));
     }
 
     /**
      * Keep track of which servers are down
-     * If the leader is down, elect a new one
+     * A failed heartbeat only raises the replica's suspicion level, and the
+     * replica is reported dead once its level reaches failure.phi.threshold.
+     * The replicas elect their leader among themselves, so this only watches.
      */
     private static void getServerHeartBeats() {
         while (true) {
-            boolean isAlive = false;
             for (int i = 0; i < chatServers.size(); i++) {
-                ChatServerImpl currServer = chatServers.get(i);
-                if (i == currLeader) {
-                    // Keep track of leader's information
-                    largestPropId = currServer.getProposer().getPropId();
-                    connectedUsers.addAll(currServer.getLoggedInUsers());
-                    mergeMaps(currServer.getChatRoomHistory(), "history");
-                    mergeMaps(currServer.getChatRoomUsers(), "users");
-                    mergeUserDB(currServer.getUserDB());
-
-                // Reset leadership if the server was elected leader before but is now not the leader.
-                } else {
-                    if (currServer.getIsLeader()) {
-                        currServer.setIsLeader(false);
-                    }
-                }
-
-                int serverPort = currServer.getPort();
+                int serverPort = chatServers.get(i).getPort();
                 try {
-                    Registry registry = LocateRegistry.getRegistry(serverPort);
-                    ChatServerInterface chatStub = (ChatServerInterface) registry.lookup("chat");
-                    isAlive = chatStub.sendHeartBeat();
-                    if (isAlive) {
-                        // If the current leader's ID is greater than the checked server's ID
-                        // Re-elect the leader since the server is back up
-                        if (currLeader > i) {
-                            electNewLeader();
-                        }
+                    ChatServerInterface chatStub = ReplicaStubCache.getStub(serverPort);
+                    if (chatStub.sendHeartBeat()) {
+                        detectorFor(serverPort).heartbeat();
                     }
                 } catch (RemoteException re) {
-                    LOGGER.severe(String.format("Server on port: %d is dead!", serverPort));
-                    if (i == currLeader) {
-                        LOGGER.severe(String.format("Server leader on port: %d is down! Need to re-elect a leader", serverPort));
-                        electNewLeader();
+                    ReplicaStubCache.invalidate(serverPort);
+                    PhiAccrualDetector detector = detectorFor(serverPort);
+                    double phi = detector.phi();
+                    if (phi < detector.getThreshold()) {
+                        LOGGER.severe(String.format("Server on port: %d missed a heartbeat. Suspicion: %.2f", serverPort, phi));
+                    } else {
+                        LOGGER.severe(String.format("Server on port: %d is dead! Suspicion: %.2f", serverPort, phi));
                     }
                 } catch (NotBoundException nbe) {
                     LOGGER.severe(String.format("Server on port: %d is not bound! Restart servers!", serverPort));
                 }
             }
             
-            // Get server heartbeats every second
+            // Get server heartbeats every interval
             try {
-                Thread.sleep(1000);
+                Thread.sleep(heartBeatIntervalMs);
             } catch (InterruptedException ie) {
                 LOGGER.severe("Interrupted sleeping server heartbeat sensor");
             }
         }
     }
 
-    /**
-     * Check to see if lower PID servers are alive and return the lowest PID found to be alive so far
-     * @param proposedLeader The proposed leader should be alive
-     * @return Integer PID of the lowest alive server
-     */
-    private static int checkLowerPids(int proposedLeader) {
-        LOGGER.info(String.format("Checking lower pids than: %d", proposedLeader));
-        Registry reg;
-        ChatServerImpl currServer;
-        int serverPort;
-        
-        for (int i = proposedLeader - 1; i >= 0; i--) {
-            currServer = chatServers.get(i);
-            serverPort = currServer.getPort();
-            try {
-                reg = LocateRegistry.getRegistry(serverPort);
-                ChatServerInterface chatStub = (ChatServerInterface)reg.lookup("chat");
-                if (chatStub.sendHeartBeat()) {
-                    LOGGER.info(String.format("Process #: %d is alive!", i));
-                    return i;
-                }
-            } catch (RemoteException re) {
-                continue;
-            } catch (NotBoundException bne) {
-                continue;
-            }
-        }
-
-        LOGGER.info(
-            String.format(
-                "No suitable lower pIDs found to be leader. Server #: %d is leader.", 
-                proposedLeader));
-
-        return proposedLeader;
-    }
-
-    /**
-     * Bully algorithm to elect new leader except using lowest process ID instead
-     * of highest process ID
-     */
-    private static void electNewLeader() {
-        LOGGER.info("Electing new leader...");
-        
-        int nextServer = currLeader;
-        Registry reg;
-        // Keep trying to elect a new leader no matter what
-        // for at least 15 retries
-        int retries = 15;
-        while (retries > 0) {
-            // Choose potential next leader
-            nextServer = (nextServer + 1) % chatServers.size();
-            // See if it is alive
-            ChatServerImpl currServer = chatServers.get(nextServer);
-            int serverPort = currServer.getPort();
-            try {
-                reg = LocateRegistry.getRegistry(serverPort);
-                ChatServerInterface chatStub = (ChatServerInterface)reg.lookup("chat");
-                // Send message to lower processes to see if they are alive
-                if (chatStub.sendHeartBeat()) {
-                    int leader = nextServer;
-
-                    while (true) {
-                        // Keep checking lower PID numbers until the first server is pinged
-                        int found = checkLowerPids(leader);
-                        
-                        if (found < leader) {
-                            leader = found;
-                            continue;
-                        } else {
-                            break;
-                        }
-                    } 
-                    
-                    // If a lower PID is found, that is the new leader
-                    currLeader = leader;
-                    ChatServerImpl newLeader = chatServers.get(leader);
-                    newLeader.setIsLeader(true);
-                    // Set the proposal ID to be the last leader's proposal ID
-                    newLeader.getProposer().setPropId(largestPropId + 1);
-
-                    // Catch up new leader to the most recent snapshot
-                    newLeader.setLoggedInUsers(connectedUsers);
-                    newLeader.setChatRoomHistory(leaderChatRoomHistory);
-                    newLeader.setChatRoomUsers(leaderChatRoomUsers);
-                    newLeader.setUserDB(leaderUserDB);
-                    LOGGER.info(
-                        String.format(
-                            "New leader found! Server on port %d is now leader.", 
-                            chatServers.get(leader).getPort()));
-                    break;
-                }
-            }  catch (RemoteException re) {
-                LOGGER.severe(String.format("Server on port: %d is dead!", serverPort));
-            } catch (NotBoundException nbe) {
-                LOGGER.severe(String.format("Server on port: %d is not bound! Restart servers!", serverPort));
-            }
-            try {
-                LOGGER.info("Sleeping election retry for 1 second.");
-                Thread.sleep(1000);
-            } catch (InterruptedException ie) {
-                LOGGER.severe("Interrupted sleeping election retry sensor");
-            }
-            retries--;
-        }
-        if (retries == 0) {
-            LOGGER.severe("Max number of retries for election reached. Restart all servers!");
-        }
-    }
-
     /**
      * Parse port arguments for the server replicas
      * I want 5 replicas at least
@@ -368,13 +170,6 @@ public class ChatCoordinator {
 
                 newServer.setPid(i);
                 
-                // Set the first replica as the leader
-                if (i == 0) {
-                    newServer.setIsLeader(true);
-                } else {
-                    newServer.setIsLeader(false);
-                }
-
                 // Add a new chat server impl
                 chatServers.add(newServer);
 
@@ -401,10 +196,7 @@ public class ChatCoordinator {
             }
         }
 
-        // Get any connected clients to the leader's heartbeat
-        executorService.submit(() -> {
-            getLeaderConnClientsheartBeats();
-        });
+        // Clients of the leader are watched by the leader's own client sweeper
 
         // Make sure all servers are still alive or at least the leader is alive
         executorService.submit(() -> {
@@ -427,6 +219,9 @@ public class ChatCoordinator {
             try {
                 LOGGER.info("Stopping server 1:5555...");
                 UnicastRemoteObject.unexportObject(chatServers.get(0), true);
+                // A crashed server's threads, logs and message store close with it,
+                // the replica started in its place reopens them
+                chatServers.get(0).close();
             } catch (NoSuchObjectException noObj) {
                 LOGGER.severe("ERROR stopping server 1.");
             }
@@ -434,6 +229,7 @@ public class ChatCoordinator {
             try {
                 LOGGER.info("Stopping server 2:5556...");
                 UnicastRemoteObject.unexportObject(chatServers.get(1), true);
+                chatServers.get(1).close();
             } catch (NoSuchObjectException noObj) {
                 LOGGER.severe("ERROR stopping server 2.");
             }
@@ -447,6 +243,7 @@ public class ChatCoordinator {
 
             try {
                 LOGGER.info("Restarting server 2:5556...");
+                ReplicaStubCache.invalidate(5556);
                 // Stub the remote object
                 chatServers.set(1, new ChatServerImpl(5556));
                 ChatServerInterface chatStub1 = (ChatServerInterface) UnicastRemoteObject.
@@ -457,8 +254,10 @@ public class ChatCoordinator {
                 Registry registry1 = LocateRegistry.getRegistry(5556);
                 registry1.rebind("chat", chatStub1);
                 chatServers.get(1).setRegistry(registry1);
-                ChatServerInterface newStub =  (ChatServerInterface) registry1.lookup("chat");
+                ChatServerInterface newStub = ReplicaStubCache.getStub(5556);
                 newStub.setServers(serverPorts, 5555);
+                // Load the state the replica missed from a peer in the background
+                chatServers.get(1).rejoin();
 
             } catch (NoSuchObjectException noObj) {
                 LOGGER.severe("ERROR no such object starting server 2.");
@@ -478,6 +277,7 @@ public class ChatCoordinator {
 
             try {
                 LOGGER.info("Restarting server port 5555...");
+                ReplicaStubCache.invalidate(5555);
                 chatServers.set(0, new ChatServerImpl(5555));
                 // Stub the remote object
                 ChatServerInterface chatStub1 = (ChatServerInterface) UnicastRemoteObject.
@@ -488,8 +288,9 @@ public class ChatCoordinator {
                 
                 registry2.rebind("chat", chatStub1);
                 chatServers.get(0).setRegistry(registry2);
-                ChatServerInterface newStub =  (ChatServerInterface) registry2.lookup("chat");
+                ChatServerInterface newStub = ReplicaStubCache.getStub(5555);
                 newStub.setServers(serverPorts, 5555);
+                chatServers.get(0).rejoin();
                 
             } catch (NoSuchObjectException noObj) {
                 LOGGER.severe("ERROR no such object starting server 1.");
@@ -510,9 +311,8 @@ public class ChatCoordinator {
      */
     private static void registerServerInfo(int port){
         try{
-            // Look up the bound registry for the specified port
-            Registry registry = LocateRegistry.getRegistry(port);
-            ChatServerInterface chatStub = (ChatServerInterface) registry.lookup("chat");
+            // Look up the replica's stub for the specified port
+            ChatServerInterface chatStub = ReplicaStubCache.getStub(port);
 
             // For each server, keep track of all server ports
             chatStub.setServers(serverPorts, port);
@@ -527,6 +327,7 @@ public class ChatCoordinator {
                     "Could not bind registry for server port: %d! Access error.", 
                     port));
         } catch (RemoteException e) {
+            ReplicaStubCache.invalidate(port);
             LOGGER.severe(
                 String.format(
                 "Remote exception for server port: %d!.",
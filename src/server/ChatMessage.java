@@ -0,0 +1,49 @@
+package server;
+
+import java.io.Serializable;
+
+/**
+ * A chat message delivered to a client, the sender, the formatted message
+ * and the sequence number the message got in the room's history
+ */
+public class ChatMessage implements Serializable {
+    private String sender;
+    private String message;
+    private int seq;
+
+    /**
+     * Constructor
+     * @param sender The sender of the message
+     * @param message The formatted message
+     * @param seq The message's sequence number in the room's history
+     */
+    public ChatMessage(String sender, String message, int seq) {
+        this.sender = sender;
+        this.message = message;
+        this.seq = seq;
+    }
+
+    /**
+     * Get the sender
+     * @return String sender's username
+     */
+    public String getSender() {
+        return this.sender;
+    }
+
+    /**
+     * Get the formatted message
+     * @return String message
+     */
+    public String getMessage() {
+        return this.message;
+    }
+
+    /**
+     * Get the message's sequence number in the room's history
+     * @return Integer sequence number
+     */
+    public int getSeq() {
+        return this.seq;
+    }
+}
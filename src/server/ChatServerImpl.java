@@ -4,11 +4,12 @@ package server;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 import java.io.FileInputStream;
 import java.io.IOException;
 
 // RMI Registry Imports
+import java.rmi.ConnectException;
+import java.rmi.NoSuchObjectException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.Registry;
@@ -19,7 +20,8 @@ import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 
 // Java Imports
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -30,9 +32,11 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 // Paxos Specific
-import paxos.Acceptor;
 import paxos.Learner;
 import paxos.Proposer;
 
@@ -61,50 +65,119 @@ public class ChatServerImpl implements ChatServerInterface {
     private int port;
     private boolean isLeader;
 
+    // Elects the leader among the replicas with a leader lease
+    private LeaderElection election;
 
-    // Paxos
-    private Proposer proposer;
-    private Acceptor acceptor;
-    private Learner learner;
+    // Paxos groups on this replica. Group 0 holds the user accounts,
+    // the rest hold the rooms the ring places on them
+    private PaxosGroup[] groups;
+    private GroupRing ring;
+
+    // How long to wait to apply an operation another replica's group leader committed
+    private long groupApplyTimeoutMs;
+
+    // Proposes an operation in several groups at once, apart from the pool the client calls run on
+    private ExecutorService groupPool;
+    private long groupFanOutTimeoutMs;
+
+    // Groups whose leader could not be reached, led by this replica for the term it took them over in
+    private Map<Integer, Integer> takenOver;
+
+    // How long to wait before asking a group's leader again that did not know of the lease yet
+    private static final long GROUP_RETRY_MS = 50;
+
+    // Times a read proposes a barrier before giving up
+    private static final int BARRIER_ATTEMPTS = 3;
+
+    // Reply to a write sent to a replica that does not hold the leader lease
+    private static final String NOT_LEADER = "Server is not the leader. Try again.";
+
+    // Reply to a write whose log slot was chosen but whose result is not known, it may have succeeded
+    private static final String UNCONFIRMED = "unconfirmed";
 
     // Threading support
     private ExecutorService executorService;
 
-    private Set<String> loggedInUsers;
+    // Most messages returned in one page of chat room history
+    private int maxHistoryPage;
+
+    // Where room histories store their messages, null to keep them in memory
+    private MessageStore messageStore;
 
-    // User database
-    // Should be a map of username : user stat object like their PW or if they are active
-    private Map<String, String> userDatabase;
+    private Registry remoteReg;
 
-    // The rooms and associated users
-    // Name of room : List of users in the room
-    private Map<String, List<String>> chatRoomUsers;
+    // Stubs of the clients connected to this server
+    private ClientSessions sessions;
 
-    // The rooms and their chat histories
-    // Room name: List of messages
-    private Map<String, List<String>> chatRoomHistory;
+    // Drops clients that stopped heartbeating and do not answer a probe
+    private ClientSweeper clientSweeper;
 
-    private Registry remoteReg;
+    // Outbound message queue per client and the workers delivering them
+    private Map<String, ClientOutbox> outboxes;
+    private ScheduledExecutorService deliveryTimer;
+    private ExecutorService deliveryPool;
+    private int outboxCapacity;
+    private ClientOutbox.OverflowPolicy overflowPolicy;
+    private int deliveryBatchSize;
+    private long deliveryBatchWindowMs;
+
+    // All server replica ports
+    private List<Integer> serverPorts;
 
     /**
      * Empty constructor initializing the store.
      */
     public ChatServerImpl(int p) {
-        this.userDatabase = new ConcurrentHashMap<String, String>();
-        this.chatRoomUsers = new ConcurrentHashMap<String, List<String>>();
-        this.chatRoomHistory = new ConcurrentHashMap<String, List<String>>();
-        this.loggedInUsers = new HashSet<String>();
-
-        // Paxos proposer,acceptor,learner
-        // Every server is it's own proposer, acceptor, and learner
-        this.proposer = new Proposer();
-        this.acceptor = new Acceptor();
-        this.learner = new Learner();
         this.isLeader = false;
+        this.port = p;
+        this.maxHistoryPage = ServerConfig.getInt("history.maxPage", 500);
+        this.groupApplyTimeoutMs = ServerConfig.getLong("paxos.groups.applyTimeoutMs", 1000);
+        this.groupFanOutTimeoutMs = ServerConfig.getLong("paxos.groups.fanOutTimeoutMs", 5000);
+        this.takenOver = new ConcurrentHashMap<Integer, Integer>();
+        this.groupPool = Executors.newCachedThreadPool((task) -> {
+            Thread fanOut = new Thread(task, "group-fan-out");
+            fanOut.setDaemon(true);
+            return fanOut;
+        });
+        openMessageStore();
 
         executorService = Executors.newFixedThreadPool(50);
 
-        this.port = p;
+        // Every server is a proposer, acceptor and learner in every Paxos group.
+        // Each group rebuilds its state from its snapshot and log of an earlier run
+        int roomGroups = Math.max(ServerConfig.getInt("paxos.groups", 4), 1);
+        this.ring = new GroupRing(roomGroups, ServerConfig.getInt("paxos.groups.virtualNodes", 64));
+        this.groups = new PaxosGroup[roomGroups + 1];
+        for (int group = 0; group < this.groups.length; group++) {
+            this.groups[group] = new PaxosGroup(group, p, this.messageStore, executorService);
+        }
+        // Every room of the snapshots is reopened, what the earlier runs stored past them is replayed again
+        if (this.messageStore != null) {
+            this.messageStore.dropUnreached();
+        }
+
+        this.sessions = new ClientSessions();
+        this.outboxes = new ConcurrentHashMap<String, ClientOutbox>();
+        // The timer only starts drains, each draining client gets a worker so a stalled one holds up no other
+        this.deliveryTimer = Executors.newSingleThreadScheduledExecutor((task) -> {
+            Thread timer = new Thread(task, "delivery-timer");
+            timer.setDaemon(true);
+            return timer;
+        });
+        this.deliveryPool = Executors.newCachedThreadPool((task) -> {
+            Thread worker = new Thread(task, "client-delivery");
+            worker.setDaemon(true);
+            return worker;
+        });
+        this.outboxCapacity = ServerConfig.getInt("delivery.queueSize", 256);
+        this.overflowPolicy = ClientOutbox.parsePolicy(ServerConfig.getString("delivery.overflow", "dropOldest"));
+        this.deliveryBatchSize = ServerConfig.getInt("delivery.batchSize", 64);
+        this.deliveryBatchWindowMs = ServerConfig.getLong("delivery.batchWindowMs", 5);
+        this.clientSweeper = new ClientSweeper(this.sessions, (dead) -> {
+            this.outboxes.remove(dead);
+            cleanUpClients(dead);
+        });
+        this.election = new LeaderElection(this, p);
 
         // Set some timeouts for RMI calls
         // Only allow 1 second between calls
@@ -119,6 +192,7 @@ public class ChatServerImpl implements ChatServerInterface {
      */
     public void setRegistry(Registry currReg) {
         this.remoteReg = currReg;
+        this.sessions.setRegistry(currReg);
     }
 
     /**
@@ -135,15 +209,49 @@ public class ChatServerImpl implements ChatServerInterface {
      * @param port The port this server is on
      */
     public void setServers(List<Integer> otherPorts, int port) {
-        this.proposer.setPorts(otherPorts);
+        this.serverPorts = otherPorts;
+        for (PaxosGroup group : this.groups) {
+            group.setServers(otherPorts, this);
+            group.setLeaseBallot(this.election::getGrantedBallot);
+        }
+        // Knowing the other replicas, take part in electing the leader
+        this.election.start(otherPorts);
     }
 
     /**
-     * Set this server as the leader or not
+     * Shut the server down for good. Stops the election, the client
+     * sweeper, the thread pools and every Paxos group's threads, then
+     * writes out and closes the logs and the message store. The server
+     * must be unexported first so no calls come in while it closes.
+     */
+    public void close() {
+        this.election.close();
+        setIsLeader(false);
+        this.executorService.shutdownNow();
+        this.groupPool.shutdownNow();
+        this.deliveryTimer.shutdownNow();
+        this.deliveryPool.shutdownNow();
+        for (PaxosGroup group : this.groups) {
+            group.close();
+        }
+        if (this.messageStore != null) {
+            this.messageStore.close();
+        }
+        LOGGER.info(String.format("Closed server on port: %d", this.port));
+    }
+
+    /**
+     * Set this server as the leader or not. Only the leader runs the
+     * client sweeper, it is the server the clients are connected to.
      * @param lead Boolean true if leader or false if not
      */
     public void setIsLeader(boolean lead) {
         this.isLeader = lead;
+        if (lead) {
+            this.clientSweeper.start(getLoggedInUsers());
+        } else {
+            this.clientSweeper.stop();
+        }
     }
 
     /**
@@ -159,23 +267,24 @@ public class ChatServerImpl implements ChatServerInterface {
      * @return Set
      */
     public Set<String> getLoggedInUsers() {
-        return this.loggedInUsers;
+        return accounts().getLoggedInUsers();
     }
 
     /**
-     * Set the logged in user set
-     * @param activeUsers Set of the logged in users
+     * Get the session table of the connected clients
+     * @return ClientSessions object
      */
-    public void setLoggedInUsers(Set<String> activeUsers) {
-        this.loggedInUsers.addAll(activeUsers);
+    public ClientSessions getSessions() {
+        return this.sessions;
     }
 
     /**
-     * Get the proposer
+     * Get the proposer of the Paxos group holding the user accounts,
+     * the group this server leads while it is the leader
      * @return Proposer object
      */
     public Proposer getProposer() {
-        return this.proposer;
+        return accounts().getProposer();
     }
 
     /**
@@ -207,47 +316,110 @@ public class ChatServerImpl implements ChatServerInterface {
      * @return All chat rooms and their histories
      */
     public Map<String, List<String>> getChatRoomHistory() {
-        return this.chatRoomHistory;
+        Map<String, List<String>> history = new HashMap<String, List<String>>();
+        for (PaxosGroup group : this.groups) {
+            history.putAll(group.getChatRoomHistory());
+        }
+        return history;
+    }
+
+    /**
+     * Get the servers chatroom and their users
+     * @return The chatroom user map
+     */
+    public Map<String, List<String>> getChatRoomUsers() {
+        Map<String, List<String>> users = new HashMap<String, List<String>>();
+        for (PaxosGroup group : this.groups) {
+            users.putAll(group.getRoomMembers().toMap());
+        }
+        return users;
     }
 
     /**
-     * Set the chatroom history map
-     * @param history The chatroom history map
+     * Get the server's user database
+     * @return Map of usernames and passwords
      */
-    public void setChatRoomHistory(Map<String, List<String>> history) {
-        this.chatRoomHistory = history;
+    public Map<String, String> getUserDB() {
+        return accounts().getUserDB();
     }
 
     /**
-     * Get the servers chatroom and their users
-     * @return The chatroom user map
+     * Get the lease ballot of the highest proposal ID this replica promised
+     * in any Paxos group, including what it promised before a restart
+     * @return Integer ballot
      */
-    public Map<String, List<String>> getChatRoomUsers() {
-        return this.chatRoomUsers;
+    public int getPromisedBallot() {
+        int ballot = 0;
+        for (PaxosGroup group : this.groups) {
+            ballot = Math.max(ballot, group.getPromisedBallot());
+        }
+        return ballot;
     }
 
     /**
-     * Set the server's chatrooms and their users
-     * @param users Map of chatrooms and their users
+     * Get the highest log slot this replica applied in every Paxos group
+     * @return Applied log slot by group number
      */
-    public void setChatRoomUsers(Map<String, List<String>> users) {
-        this.chatRoomUsers = users;
+    public int[] getAppliedIndexes() {
+        int[] applied = new int[this.groups.length];
+        for (int group = 0; group < this.groups.length; group++) {
+            applied[group] = this.groups[group].getAppliedIndex();
+        }
+        return applied;
     }
 
     /**
-     * Set the user database
-     * @param userdb The Map of usernames and passwords
+     * Bring every Paxos group up to the log slots the last leader applied
+     * before this replica takes over. A group that is behind loads what it
+     * missed from the live peers in turn, a peer's snapshot first if the
+     * missing slots were compacted away. Reads of each group wait until it
+     * got that far.
+     * @param appliedIndexes Log slot by group number the last leader applied
      */
-    public void setUserDB(Map<String, String> userdb) {
-        this.userDatabase = userdb;
+    public void catchUpTo(int[] appliedIndexes) {
+        for (int group = 0; group < Math.min(appliedIndexes.length, this.groups.length); group++) {
+            PaxosGroup paxosGroup = this.groups[group];
+            paxosGroup.raiseReadIndex(appliedIndexes[group]);
+            for (int donor : this.serverPorts) {
+                if (paxosGroup.getAppliedIndex() >= appliedIndexes[group]) {
+                    break;
+                }
+                if (donor != this.port) {
+                    paxosGroup.rejoin(donor);
+                }
+            }
+            if (paxosGroup.getAppliedIndex() < appliedIndexes[group]) {
+                LOGGER.severe(String.format("Group: %d could only catch up to log slot: %d of %d.",
+                    group, paxosGroup.getAppliedIndex(), appliedIndexes[group]));
+            }
+        }
     }
 
     /**
-     * Get the server's user database
-     * @return Map of usernames and passwords
+     * Commit a barrier in every Paxos group through the group's leader and
+     * wait to apply it. The group leader prepares again once it hears of
+     * the new lease ballot, and its phase 1 finishes every slot the last
+     * leader got accepted. Reads under the new lease then see every write
+     * the last leader acknowledged. Group leaders other than this replica
+     * keep leading their groups, so no group's stable leader is preempted.
+     * @return True if every group applied its barrier
      */
-    public Map<String, String> getUserDB() {
-        return this.userDatabase;
+    public boolean commitBarriers() {
+        for (PaxosGroup group : this.groups) {
+            boolean applied = false;
+            for (int attempt = 0; attempt < BARRIER_ATTEMPTS && !applied; attempt++) {
+                Response res = proposeThroughLeader(group, "barrier", "", "", "", "");
+                applied = res.getSlot() > 0 && group.awaitSlot(res.getSlot(), this.groupApplyTimeoutMs);
+                if (applied) {
+                    group.raiseReadIndex(res.getSlot());
+                }
+            }
+            if (!applied) {
+                LOGGER.severe(String.format("Could not commit a barrier in group: %d as leader.", group.getGroup()));
+                return false;
+            }
+        }
+        return true;
     }
 
     // =========================
@@ -258,7 +430,11 @@ public class ChatServerImpl implements ChatServerInterface {
 
     @Override
     public Response registerUser(String username, String password) {
+        if (!leadsWrite("register")) {
+            return new Response(Level.INFO, NOT_LEADER);
+        }
         // If username already in the store, user must choose a different username
+        Map<String, String> userDatabase = accounts().getUserDB();
         if (userDatabase.containsKey(username)) {
             String mess = String.format("Username: %s already exists!", username);
             LOGGER.severe(mess);
@@ -266,7 +442,7 @@ public class ChatServerImpl implements ChatServerInterface {
         }
         // Start paxos for registering
         Future<Response> future = executorService.submit(() -> {
-            return this.proposer.propose("register", username, password, "", "");
+            return propose(0, "register", username, password, "", "");
         });
         
         // Get the final result and send to client if it was successful or not
@@ -276,6 +452,10 @@ public class ChatServerImpl implements ChatServerInterface {
                 LOGGER.info(String.format("Successfully registered user with username: %s.", username));
                 return new Response(Level.INFO, "success");
             }
+            if (unconfirmed(res)) {
+                LOGGER.warning(String.format("Registering user: %s was chosen but not confirmed.", username));
+                return new Response(Level.WARNING, UNCONFIRMED);
+            }
             return new Response(Level.INFO, "Error registering. Try again.");
         } catch (InterruptedException ie) {
             LOGGER.severe("Error registering.");
@@ -288,13 +468,17 @@ public class ChatServerImpl implements ChatServerInterface {
 
     @Override
     public Response loginUser(String username, String password) {
+        if (!leadsWrite("login")) {
+            return new Response(Level.INFO, NOT_LEADER);
+        }
         // No username found
+        Map<String, String> userDatabase = accounts().getUserDB();
         if (!userDatabase.containsKey(username)) {
             return new Response(Level.SEVERE, "incorrect");
         }
 
         // Check to see if user is in the active user list
-        for (String user : loggedInUsers) {
+        for (String user : accounts().getLoggedInUsers()) {
             if (user.equals(username)) {
                 return new Response(Level.SEVERE, "loggedIn");
             }
@@ -305,7 +489,7 @@ public class ChatServerImpl implements ChatServerInterface {
         if (password.equals(dbPass)) {
             // Start paxos for logging in
             Future<Response> future = executorService.submit(() -> {
-                return this.proposer.propose("login", username, password, "", "");
+                return propose(0, "login", username, password, "", "");
             });
 
             try {
@@ -314,6 +498,10 @@ public class ChatServerImpl implements ChatServerInterface {
                     LOGGER.info(String.format("Successfully logged in user with username: %s.", username));
                     return new Response(Level.INFO, "success");
                 }
+                if (unconfirmed(res)) {
+                    LOGGER.warning(String.format("Logging in user: %s was chosen but not confirmed.", username));
+                    return new Response(Level.WARNING, UNCONFIRMED);
+                }
                 return new Response(Level.INFO, "Error logging in. Try again.");
             } catch (InterruptedException ie) {
                 LOGGER.severe("Error login.");
@@ -332,17 +520,27 @@ public class ChatServerImpl implements ChatServerInterface {
 
     @Override
     public String logOutUser(String user) {
+        if (!leadsWrite("logout")) {
+            return "fail";
+        }
         // Start paxos for logging out a user
         Future<Response> future = executorService.submit(() -> {
-            return this.proposer.propose("logout", user, "", "", "");
+            return logOutEverywhere(user);
         });
 
         try {
             Response res = future.get();
             if (res.getServerReply().equals("success")) {
+                this.outboxes.remove(user);
+                this.sessions.invalidate(user);
+                this.clientSweeper.forget(user);
                 LOGGER.info(String.format("Successfully logged out user with username: %s.", user));
                 return "success";
             }
+            if (unconfirmed(res)) {
+                LOGGER.warning(String.format("Logging out user: %s was chosen but not confirmed.", user));
+                return UNCONFIRMED;
+            }
             return "fail";
         } catch (InterruptedException ie) {
             LOGGER.severe("Error login.");
@@ -361,13 +559,17 @@ public class ChatServerImpl implements ChatServerInterface {
 
     @Override
     public String createChatRoom(String chatName, String user) throws RemoteException {        
-        if (this.chatRoomHistory.containsKey(chatName)) {
+        if (!leadsWrite("create")) {
+            return "fail";
+        }
+        PaxosGroup group = roomGroup(chatName);
+        if (group.getChatRoomHistory().containsKey(chatName)) {
             return "exists";
         }
 
         // Start paxos for creating a chat room
         Future<Response> future = executorService.submit(() -> {
-            return this.proposer.propose("create", user, "", "", chatName);
+            return propose(group.getGroup(), "create", user, "", "", chatName);
         });
 
         try {
@@ -376,6 +578,10 @@ public class ChatServerImpl implements ChatServerInterface {
                 LOGGER.info(String.format("Successfully created chatroom: %s.", chatName));
                 return "success";
             }
+            if (unconfirmed(res)) {
+                LOGGER.warning(String.format("Creating chatroom: %s was chosen but not confirmed.", chatName));
+                return UNCONFIRMED;
+            }
             return "fail";
         } catch (InterruptedException ie) {
             LOGGER.severe("Error creating chatroom.");
@@ -388,9 +594,12 @@ public class ChatServerImpl implements ChatServerInterface {
 
     @Override
     public String joinChatRoom(String chatName, String user) {
+        if (!leadsWrite("join")) {
+            return "fail";
+        }
         // Start paxos for joining a chat room
         Future<Response> future = executorService.submit(() -> {
-            return this.proposer.propose("join", user, "", "", chatName);
+            return propose(roomGroup(chatName).getGroup(), "join", user, "", "", chatName);
         });
 
         try {
@@ -399,6 +608,10 @@ public class ChatServerImpl implements ChatServerInterface {
                 LOGGER.info(String.format("Successfully joined chatroom: %s.", chatName));
                 return "success";
             }
+            if (unconfirmed(res)) {
+                LOGGER.warning(String.format("Joining chatroom: %s was chosen but not confirmed.", chatName));
+                return UNCONFIRMED;
+            }
             return "fail";
         } catch (InterruptedException ie) {
             LOGGER.severe("Error joining chatroom.");
@@ -411,14 +624,18 @@ public class ChatServerImpl implements ChatServerInterface {
 
     @Override
     public String leaveChatRoom(String chatName, String user) {
-        
-        if (!this.chatRoomUsers.containsKey(chatName)){
+        if (!leadsWrite("leave")) {
+            return "fail";
+        }
+
+        PaxosGroup group = roomGroup(chatName);
+        if (!group.getRoomMembers().hasRoom(chatName)){
             return "fail";
         }
 
         // Start paxos for leaving a chatroom
         Future<Response> future = executorService.submit(() -> {
-            return this.proposer.propose("leave", user, "", "", chatName);
+            return propose(group.getGroup(), "leave", user, "", "", chatName);
         });
 
         try {
@@ -427,6 +644,10 @@ public class ChatServerImpl implements ChatServerInterface {
                 LOGGER.info(String.format("Successfully left chatroom: %s.", chatName));
                 return "success";
             }
+            if (unconfirmed(res)) {
+                LOGGER.warning(String.format("Leaving chatroom: %s was chosen but not confirmed.", chatName));
+                return UNCONFIRMED;
+            }
             return "fail";
         } catch (InterruptedException ie) {
             LOGGER.severe("Error leaving chatroom.");
@@ -445,8 +666,12 @@ public class ChatServerImpl implements ChatServerInterface {
 
     @Override
     public void broadCastMessage(Instant timeStamp, String user, String chatroom, String message) {
+        if (!leadsWrite("send")) {
+            return;
+        }
         // If the room is not available just return. Nothing to do
-        if (!this.chatRoomUsers.containsKey(chatroom)) {
+        PaxosGroup group = roomGroup(chatroom);
+        if (!group.getRoomMembers().hasRoom(chatroom)) {
             return;
         }
 
@@ -462,13 +687,19 @@ public class ChatServerImpl implements ChatServerInterface {
         // Start paxos for broadcasting a message to a room.
         // Keeps the chat room history in consensus for all replicas
         Future<Response> future = executorService.submit(() -> {
-            return this.proposer.propose("send", user, "", finalMessage, chatroom);
+            return propose(group.getGroup(), "send", user, "", finalMessage, chatroom);
         });
 
+        int seq;
         try {
             Response res = future.get();
             if (res.getServerReply().equals("success")) {
                 LOGGER.info(String.format("Successfully sent %s to chatroom: %s.", finalMessage, chatroom));
+                seq = res.getSeq();
+            } else if (unconfirmed(res)) {
+                // The message is in the room's log, deliver it without a sequence number to resume from
+                LOGGER.warning(String.format("Sending %s to chatroom: %s was chosen but not confirmed.", finalMessage, chatroom));
+                seq = -1;
             } else {
                 return;
             }
@@ -481,92 +712,167 @@ public class ChatServerImpl implements ChatServerInterface {
             return;
         } 
 
-        // Iterate through all clients currently connected to room on the server.
-        List<String> currRoomUsers = this.chatRoomUsers.get(chatroom);
+        // Queue the message for every client in the room, each client's worker delivers it
+        Set<String> currRoomUsers = group.getRoomMembers().getMembers(chatroom);
+        if (currRoomUsers == null) {
+            return;
+        }
         for (String name : currRoomUsers) {
-            try {
-                // Look up the client in the registry and call its displayMessage remote method
-                ClientInterface client = (ClientInterface)remoteReg.lookup(String.format("client:%s", name));
-                client.displayMessage(user, finalMessage);
-                LOGGER.info(String.format("User: %s broadcasted message to: %s in chatroom: %s", user, name, chatroom));
-            } catch (NotBoundException nbe) {
-                LOGGER.severe(String.format("User: %s is no longer connected. Not bound to registry.", name));
-            } catch (RemoteException re) {
-                LOGGER.severe(String.format("Error accessing the remote: %s.", name));
-            } catch (NullPointerException npe) {
+            if (name == null) {
                 LOGGER.severe("NAME IS NULL! Could not broadcast!");
+                continue;
             }
+            outboxFor(name).offerMessage(new ChatMessage(user, finalMessage, seq));
+            LOGGER.info(String.format("User: %s queued message for: %s in chatroom: %s", user, name, chatroom));
         }
     }
 
     @Override
-    public void notifyJoinLeave(String chatroom, String user) {
-        // Iterate through all clients currently connected to room on the server.
-        List<String> currRoomUsers = this.chatRoomUsers.get(chatroom);
+    public void notifyJoinLeave(String chatroom, String user, boolean joined) {
+        // Queue the notice for every other client in the room
+        Set<String> currRoomUsers = roomGroup(chatroom).getRoomMembers().getMembers(chatroom);
+        if (currRoomUsers == null) {
+            return;
+        }
         for (String name : currRoomUsers) {
-            try {
-                if (name.equals(user)){
-                    continue;
-                }
-                // Look up the client in the registry and call its displayMessage remote method
-                ClientInterface client = (ClientInterface)remoteReg.lookup(String.format("client:%s", name));
-                client.notifyJoinLeave();
-                LOGGER.info(String.format("Notified %s of %s", chatroom, user));
-            } catch (NotBoundException nbe) {
-                LOGGER.severe(String.format("User: %s is no longer connected. Not bound to registry.", name));
-            } catch (RemoteException re) {
-                LOGGER.severe(String.format("Error accessing the remote: %s.", name));
+            if (name.equals(user)){
+                continue;
             }
+            outboxFor(name).offer((client) -> client.notifyJoinLeave(chatroom, user, joined));
+            LOGGER.info(String.format("Notified %s of %s", chatroom, user));
         }
     }
 
+    /**
+     * Get the outbound queue of the client, making it on first use
+     * @param name The client's username
+     * @return The client's outbox
+     */
+    private ClientOutbox outboxFor(String name) {
+        return this.outboxes.computeIfAbsent(name, (user) -> new ClientOutbox(
+            user, this.sessions, this.deliveryTimer, this.deliveryPool, this.outboxCapacity, this.overflowPolicy,
+            this.deliveryBatchSize, this.deliveryBatchWindowMs, (dropped) -> {
+                this.outboxes.remove(dropped);
+                cleanUpClients(dropped);
+            }));
+    }
+
     @Override
     public Map<String, List<String>> getChatRoomInformation() {
-        if (this.chatRoomUsers.isEmpty()) {
+        for (int group = 1; group < this.groups.length; group++) {
+            if (!readBarrier(this.groups[group])) {
+                return null;
+            }
+        }
+        Map<String, List<String>> rooms = getChatRoomUsers();
+        if (rooms.isEmpty()) {
             return null;
         }
-        return getChatRoomUsers();
+        return rooms;
     }
 
     @Override
     public List<String> getChatUsers(String chatName) {
-        if (!this.chatRoomUsers.containsKey(chatName)) {
+        PaxosGroup group = roomGroup(chatName);
+        if (!readBarrier(group)) {
+            return null;
+        }
+        Set<String> members = group.getRoomMembers().getMembers(chatName);
+        if (members == null) {
             return null;
         }
-        return this.chatRoomUsers.get(chatName);
+        return new ArrayList<String>(members);
     }
 
     @Override
-    public List<String> getChatRoomMessageHistory(String chatName) {
-
-        synchronized(this.chatRoomHistory) {
-            if (this.chatRoomHistory.containsKey(chatName)) {
-                List<String> finalMessages = this.chatRoomHistory.get(chatName);
-                List<String> listWithoutDuplicates = finalMessages.stream()
-                    .distinct().collect(Collectors.toList());
-                return listWithoutDuplicates;
-            }
+    public HistoryPage getChatRoomHistoryPage(String chatName, int cursor, int limit) {
+        PaxosGroup group = roomGroup(chatName);
+        if (!readBarrier(group)) {
+            return null;
         }
-        return null;
+        List<String> history = group.getChatRoomHistory().get(chatName);
+        if (history == null) {
+            return null;
+        }
+        int pageSize = limit <= 0 ? this.maxHistoryPage : Math.min(limit, this.maxHistoryPage);
+        return ((RoomHistory) history).page(cursor, pageSize);
+    }
+
+    @Override
+    public HistoryPage getChatRoomHistorySince(String chatName, int seq) {
+        return getChatRoomHistoryPage(chatName, Math.max(seq, 0), this.maxHistoryPage);
     }
 
     @Override
     public void cleanUpClients(String clientName) {
         // Start paxos for logging out a user which essentially cleans the client from the server
         executorService.submit(() -> {
-            this.proposer.propose("logout", clientName, "", "", "");
+            logOutEverywhere(clientName);
             LOGGER.info(String.format("Successfully cleaned up client: %s.", clientName));
         });
     }
 
+    /**
+     * Log the user out in every Paxos group. The accounts group marks the
+     * user logged out and every room group removes them from its rooms.
+     * The room groups are proposed in on their own pool, since this already
+     * runs on the client call pool and waiting there for tasks queued on the
+     * same pool stalls it once every thread waits. The wait for them ends
+     * after paxos.groups.fanOutTimeoutMs.
+     * @param user The username
+     * @return Response object with the accounts group's result
+     */
+    private Response logOutEverywhere(String user) {
+        List<Future<Response>> roomLogouts = new ArrayList<Future<Response>>();
+        for (int group = 1; group < this.groups.length; group++) {
+            final int roomGroup = group;
+            roomLogouts.add(this.groupPool.submit(() -> propose(roomGroup, "logout", user, "", "", "")));
+        }
+        Response res = propose(0, "logout", user, "", "", "");
+        long deadline = System.currentTimeMillis() + this.groupFanOutTimeoutMs;
+        for (Future<Response> roomLogout : roomLogouts) {
+            try {
+                roomLogout.get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException te) {
+                LOGGER.severe(String.format("Timed out logging out user: %s from their rooms.", user));
+                break;
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException ee) {
+                LOGGER.severe(String.format("Error logging out user: %s from their rooms.", user));
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public void bindClient(String user, ClientInterface clientStub) {
+        this.sessions.bind(user, clientStub);
+        this.clientSweeper.seen(user);
+        LOGGER.info(String.format("Bound session for user: %s", user));
+    }
+
     @Override
     public boolean sendHeartBeat() {
         return true;
     }
+
+    @Override
+    public boolean clientHeartBeat(String user) {
+        this.clientSweeper.seen(user);
+        return true;
+    }
     
     @Override
     public boolean sendIsLeader() {
-        return this.isLeader;
+        // A leader whose lease ran out may already have been replaced
+        return this.isLeader && this.election.holdsLease();
+    }
+
+    @Override
+    public LeaseGrant requestLease(int ballot, int candidatePort) {
+        return this.election.grant(ballot, candidatePort);
     }
 
     // ======================================
@@ -577,17 +883,345 @@ public class ChatServerImpl implements ChatServerInterface {
     // =====================================
 
     @Override
-    public boolean prepare(int propId) {
-        return this.acceptor.prepare(propId);
+    public Response proposeInGroup(int group, String operation, String key, String val, String message, String chatroom) {
+        // Only the group's place after a running leader makes this replica propose for it
+        if (this.election.getLeader() == 0 || getGroupLeader(group) != this.port) {
+            LOGGER.severe(String.format("Server port: %d does not lead group: %d. Refused: %s", this.port, group, operation));
+            return new Response(Level.SEVERE, NOT_LEADER);
+        }
+        return this.groups[group].propose(operation, key, val, message, chatroom);
+    }
+
+    @Override
+    public Promise prepare(int group, int propId, int fromSlot) {
+        return this.groups[group].prepare(propId, fromSlot);
+    }
+
+    @Override
+    public DBBatch accept(int group, int propId, int slot, DBBatch val, int commitIndex) {
+        return this.groups[group].accept(propId, slot, val, commitIndex);
     }
 
     @Override
-    public DBOperation accept(int propId, DBOperation val) {
-        return this.acceptor.accept(propId, val);
+    public List<String> commit(int group, int slot, DBBatch batch) {
+        return this.groups[group].commit(slot, batch);
     }
 
     @Override
-    public String commit(int propId, DBOperation dbOp) {
-        return this.learner.commit(propId, userDatabase, chatRoomUsers, chatRoomHistory, loggedInUsers, dbOp);
+    public Map<Integer, DBBatch> getCommittedLog(int group, int fromSlot, int maxEntries) {
+        return this.groups[group].getCommittedLog(fromSlot, maxEntries);
+    }
+
+    /**
+     * Propose the operation in its Paxos group through the group's leader.
+     * Later reads on this replica are made to see the committed slot.
+     * @param group The Paxos group
+     * @param operation The operation
+     * @param key The username
+     * @param val The password
+     * @param message The message if sending one
+     * @param chatroom The chatroom if the operation is on one
+     * @return Response object with the result
+     */
+    private Response propose(int group, String operation, String key, String val, String message, String chatroom) {
+        if (!leadsWrite(operation)) {
+            return new Response(Level.SEVERE, NOT_LEADER);
+        }
+        PaxosGroup paxosGroup = this.groups[group];
+        return acknowledged(paxosGroup, proposeThroughLeader(paxosGroup, operation, key, val, message, chatroom));
+    }
+
+    /**
+     * Propose the operation with the leader of its Paxos group. The group's
+     * leader is the replica the group number places after the elected
+     * leader, so every group is led by a different replica. Once the leader
+     * committed the operation this replica waits to apply it too, so its
+     * clients see the change. Only the group's leader proposes in it, so
+     * two proposers never preempt each other's ballots. A leader that does
+     * not know of this lease yet is asked again until it does, and one that
+     * cannot be reached is taken over for the rest of this lease.
+     * @param paxosGroup The Paxos group
+     * @param operation The operation
+     * @param key The username
+     * @param val The password
+     * @param message The message if sending one
+     * @param chatroom The chatroom if the operation is on one
+     * @return Response object with the result
+     */
+    private Response proposeThroughLeader(PaxosGroup paxosGroup, String operation, String key, String val, String message, String chatroom) {
+        int group = paxosGroup.getGroup();
+        long deadline = System.currentTimeMillis() + this.groupApplyTimeoutMs;
+        while (true) {
+            int groupLeader = getGroupLeader(group);
+            if (groupLeader == this.port) {
+                return paxosGroup.propose(operation, key, val, message, chatroom);
+            }
+
+            try {
+                ChatServerInterface leaderStub = ReplicaStubCache.getStub(groupLeader);
+                Response res = leaderStub.proposeInGroup(group, operation, key, val, message, chatroom);
+                if (!res.getServerReply().equals(NOT_LEADER)) {
+                    if (res.getSlot() > 0 && !paxosGroup.awaitSlot(res.getSlot(), this.groupApplyTimeoutMs)) {
+                        LOGGER.severe(String.format("Log slot: %d of group: %d was not applied in time.", res.getSlot(), group));
+                    }
+                    return res;
+                }
+                // The group's leader hears of this lease with the next renewal
+                LOGGER.severe(String.format("Server on port: %d refused to lead group: %d. Asking again.", groupLeader, group));
+            } catch (ConnectException | NoSuchObjectException ce) {
+                // The call never reached the leader, so the operation was not proposed
+                ReplicaStubCache.invalidate(groupLeader);
+                LOGGER.severe(String.format("Leader of group: %d on port: %d is down. Taking the group over.", group, groupLeader));
+                if (takeOver(group)) {
+                    continue;
+                }
+            } catch (RemoteException re) {
+                ReplicaStubCache.invalidate(groupLeader);
+                LOGGER.severe(String.format("Proposal to leader of group: %d on port: %d failed. %s", group, groupLeader, re.toString()));
+                return new Response(Level.SEVERE, "fail");
+            } catch (NotBoundException nbe) {
+                LOGGER.severe(String.format("Server on port: %d is not bound! Taking the group over.", groupLeader));
+                if (takeOver(group)) {
+                    continue;
+                }
+            }
+
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return new Response(Level.SEVERE, NOT_LEADER);
+            }
+            try {
+                Thread.sleep(Math.min(remaining, GROUP_RETRY_MS));
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return new Response(Level.SEVERE, "fail");
+            }
+        }
+    }
+
+    /**
+     * Lead a Paxos group whose leader cannot be reached for the rest of
+     * this replica's term. The lease first moves to a new ballot, so the
+     * acceptors refuse whatever the old group leader still proposes under
+     * the old one before this replica's proposer prepares the group.
+     * @param group The Paxos group
+     * @return True if this replica leads the group now
+     */
+    private boolean takeOver(int group) {
+        int term = this.election.getTerm();
+        synchronized (this.takenOver) {
+            Integer takenIn = this.takenOver.get(group);
+            if (takenIn != null && takenIn == term) {
+                return true;
+            }
+            if (!this.election.moveLease(this.groupApplyTimeoutMs)) {
+                LOGGER.severe(String.format("Could not move the lease to take over group: %d.", group));
+                return false;
+            }
+            this.takenOver.put(group, term);
+            LOGGER.info(String.format("Server port: %d took over group: %d.", this.port, group));
+            return true;
+        }
+    }
+
+    /**
+     * Check whether a proposal's log slot was chosen but its result is not
+     * known, because the learners applied it earlier or not in time. The
+     * operation may have succeeded, so it must not be reported as failed.
+     * @param res The proposal's result
+     * @return True if the operation may have succeeded
+     */
+    static boolean unconfirmed(Response res) {
+        String reply = res.getServerReply();
+        return Learner.ALREADY_APPLIED.equals(reply) || Proposer.UNKNOWN.equals(reply);
+    }
+
+    /**
+     * Check that this replica holds the leader lease before it writes.
+     * A replica without it may have been replaced by a newer leader.
+     * @param operation The operation
+     * @return True if the write may go ahead
+     */
+    private boolean leadsWrite(String operation) {
+        if (this.election.holdsLease()) {
+            return true;
+        }
+        LOGGER.severe(String.format("Server port: %d does not hold the leader lease. Refused: %s", this.port, operation));
+        return false;
+    }
+
+    /**
+     * Record the log slot of a committed operation as one every later read
+     * of its group on this replica has to see. The write is only
+     * acknowledged if this replica still holds the lease, a newer leader
+     * may not have seen it when it took over.
+     * @param group The Paxos group
+     * @param res The proposal's result
+     * @return The same result, or a refusal if the lease ran out meanwhile
+     */
+    private Response acknowledged(PaxosGroup group, Response res) {
+        if (res.getSlot() > 0) {
+            group.raiseReadIndex(res.getSlot());
+        }
+        if (!this.election.holdsLease()) {
+            LOGGER.severe(String.format("Server port: %d lost the leader lease before acknowledging log slot: %d of group: %d.",
+                this.port, res.getSlot(), group.getGroup()));
+            return new Response(Level.SEVERE, NOT_LEADER);
+        }
+        return res;
+    }
+
+    /**
+     * Make sure a read of the group on this replica sees every write
+     * acknowledged before it started. While this replica holds the leader
+     * lease no other replica takes clients, so it only has to have applied
+     * the writes it acknowledged itself and those the last leader applied.
+     * It almost always has, and then the read costs no messages at all.
+     * If those writes are not applied in time, a barrier is committed
+     * through the group's log and waited for instead. Without the lease
+     * the barrier is refused like any other write, so the read fails.
+     * @param group The Paxos group read
+     * @return True if the read is safe to serve
+     */
+    private boolean readBarrier(PaxosGroup group) {
+        if (this.election.holdsLease()) {
+            int readIndex = group.getReadIndex();
+            if (group.getAppliedIndex() >= readIndex || group.awaitSlot(readIndex, this.groupApplyTimeoutMs)) {
+                return true;
+            }
+        }
+        // A barrier changes nothing, so one that lost to another proposer is simply proposed again
+        for (int attempt = 0; attempt < BARRIER_ATTEMPTS; attempt++) {
+            Response res = propose(group.getGroup(), "barrier", "", "", "", "");
+            if (res.getSlot() > 0 && group.awaitSlot(res.getSlot(), this.groupApplyTimeoutMs)) {
+                return true;
+            }
+        }
+        LOGGER.severe(String.format("Could not make a read of group: %d consistent.", group.getGroup()));
+        return false;
+    }
+
+    /**
+     * Get the replica leading the Paxos group. Groups are placed in order
+     * starting at the elected leader, so every replica that knows the
+     * leader places them the same way. A group the leader took over is led
+     * by the leader until it steps down.
+     * @param group The Paxos group
+     * @return The replica's port, this one if no leader is known
+     */
+    private int getGroupLeader(int group) {
+        Integer takenIn = this.takenOver.get(group);
+        if (takenIn != null && this.election.leadsTerm(takenIn)) {
+            return this.port;
+        }
+        int leader = this.election.getLeader();
+        int index = this.serverPorts == null ? -1 : this.serverPorts.indexOf(leader);
+        if (index < 0) {
+            return this.port;
+        }
+        return this.serverPorts.get((index + group) % this.serverPorts.size());
+    }
+
+    /**
+     * Get the Paxos group holding the room
+     * @param room The room name
+     * @return The group
+     */
+    private PaxosGroup roomGroup(String room) {
+        return this.groups[this.ring.groupFor(room)];
+    }
+
+    /**
+     * Get the Paxos group holding the user accounts
+     * @return The group
+     */
+    private PaxosGroup accounts() {
+        return this.groups[0];
+    }
+
+    // ======================================
+
+    //          State Transfer
+
+    // =====================================
+
+    @Override
+    public SnapshotChunk getSnapshotChunk(int group, int lastSlot, int offset) {
+        return this.groups[group].getSnapshotChunk(lastSlot, offset);
+    }
+
+    @Override
+    public HistoryPage getSnapshotHistory(int group, String chatName, int from, int to) {
+        return this.groups[group].getSnapshotHistory(chatName, from, to);
+    }
+
+    /**
+     * Bring this replica up to date in the background after it restarted.
+     * Every Paxos group loads a peer's snapshot if it is ahead of this
+     * replica, then pulls the log after it. A peer that is not the leader
+     * is used so the transfer stays off the commit path.
+     */
+    public void rejoin() {
+        executorService.submit(() -> {
+            Integer donor = pickDonor();
+            if (donor == null) {
+                LOGGER.severe("No replica to transfer state from.");
+                return;
+            }
+            LOGGER.info(String.format("Rejoining from server port: %d", donor));
+            for (PaxosGroup group : this.groups) {
+                executorService.submit(() -> group.rejoin(donor));
+            }
+        });
+    }
+
+    /**
+     * Pick a live replica other than this one, preferring one that is not the leader
+     * @return The replica's port or null if none answered
+     */
+    private Integer pickDonor() {
+        Integer leader = null;
+        for (int otherPort : serverPorts) {
+            if (otherPort == this.port) {
+                continue;
+            }
+            try {
+                ChatServerInterface chatStub = ReplicaStubCache.getStub(otherPort);
+                if (!chatStub.sendIsLeader()) {
+                    return otherPort;
+                }
+                leader = otherPort;
+            } catch (RemoteException re) {
+                ReplicaStubCache.invalidate(otherPort);
+            } catch (NotBoundException nbe) {
+                LOGGER.severe(String.format("Server on port: %d is not bound!", otherPort));
+            }
+        }
+        return leader;
+    }
+
+    // ======================================
+
+    //          Message Store
+
+    // =====================================
+
+    /**
+     * Open the store room histories keep their messages in. The store is
+     * required, only a server that cannot open it keeps its histories in memory.
+     */
+    private void openMessageStore() {
+        MessageStore store = new MessageStore(ServerConfig.getString("history.store.dir", "../data"), this.port,
+            ServerConfig.getInt("history.store.segmentBytes", 16777216), ServerConfig.getInt("history.store.indexEvery", 32),
+            ServerConfig.getInt("history.store.maxIndex", 1024));
+        try {
+            // Without the write ahead log nothing an earlier run stored is recovered
+            store.open(ServerConfig.getBoolean("paxos.wal.enabled", true));
+        } catch (IOException io) {
+            LOGGER.severe(String.format("Could not open message store for server port: %d. Keeping whole histories in memory. %s",
+                this.port, io.toString()));
+            return;
+        }
+        this.messageStore = store;
     }
-}
\ No newline at end of file
+}
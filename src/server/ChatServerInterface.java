@@ -12,6 +12,9 @@ import java.time.Instant;
 import java.util.List;
 import java.util.Map;
 
+// Custom Imports
+import client.ClientInterface;
+
 /**
  * The Chat Server Remote Interface for RMI
  */
@@ -28,7 +31,7 @@ public interface ChatServerInterface extends Remote{
      * is the database.
      * @param username A unique username
      * @param password Any password
-     * @return Response object containing success or failure message
+     * @return Response object containing success or failure message, unconfirmed if it may have succeeded
      * @throws RemoteException
      */
     Response registerUser(String username, String password) throws RemoteException;
@@ -38,7 +41,7 @@ public interface ChatServerInterface extends Remote{
      * in the database.
      * @param username The username
      * @param password The password
-     * @return Response object containing success or failure message
+     * @return Response object containing success or failure message, unconfirmed if it may have succeeded
      * @throws RemoteException
      */
     Response loginUser(String username, String password) throws RemoteException;
@@ -46,7 +49,7 @@ public interface ChatServerInterface extends Remote{
     /**
      * Remove the user from the registry since they are logging out
      * @param user
-     * @return String success or failure
+     * @return String success or failure, unconfirmed if it may have succeeded
      * @throws RemoteException
      */
     String logOutUser(String user) throws RemoteException;
@@ -61,7 +64,7 @@ public interface ChatServerInterface extends Remote{
      * Allow a user to create a chatroom with the name.
      * @param chatName The room name
      * @param user The user's name
-     * @return String indicating "success" or "fail"
+     * @return String indicating "success", "fail" or "unconfirmed" if it may have succeeded
      * @throws RemoteException
      */
     String createChatRoom(String chatName, String user) throws RemoteException;
@@ -70,7 +73,7 @@ public interface ChatServerInterface extends Remote{
      * Allow a user to join a chatroom with the given chatroom name
      * @param chatName The room name
      * @param user The user requesting access to the room
-     * @return String indicating "success" or "fail"
+     * @return String indicating "success", "fail" or "unconfirmed" if it may have succeeded
      * @throws RemoteException
      */
     String joinChatRoom(String chatName, String user) throws RemoteException;
@@ -79,7 +82,7 @@ public interface ChatServerInterface extends Remote{
      * Remove the specified user from the specified room
      * @param chatname The name of the chat room
      * @param user The user to remove
-     * @return String indicating success or fail
+     * @return String indicating success or fail, unconfirmed if it may have succeeded
      * @throws RemoteException
      */
     String leaveChatRoom(String chatname, String user) throws RemoteException;
@@ -106,9 +109,10 @@ public interface ChatServerInterface extends Remote{
      * Notify other clients that the user left or joined the specified chatroom
      * @param chatroom The chatroom
      * @param user The user
+     * @param joined True if the user joined, false if they left
      * @throws RemoteException
      */
-    void notifyJoinLeave(String chatroom, String user) throws RemoteException;
+    void notifyJoinLeave(String chatroom, String user, boolean joined) throws RemoteException;
 
     // ====================================
 
@@ -132,12 +136,33 @@ public interface ChatServerInterface extends Remote{
     List<String> getChatUsers(String chatName) throws RemoteException;
 
     /**
-     * Get the current chatroom's message history
+     * Get one page of the chatroom's message history. Every message has a
+     * sequence number, its position in the room's history.
      * @param chatName The chatroom
-     * @return List of the chat room messages
+     * @param cursor The first sequence number wanted, or negative for the latest messages
+     * @param limit The most messages wanted, capped by the server's page size
+     * @return The page of messages or null if the room does not exist
+     * @throws RemoteException
+     */
+    HistoryPage getChatRoomHistoryPage(String chatName, int cursor, int limit) throws RemoteException;
+
+    /**
+     * Get the messages a reconnecting client missed, up to one page
+     * @param chatName The chatroom
+     * @param seq The first sequence number the client has not seen
+     * @return The page of messages or null if the room does not exist
+     * @throws RemoteException
+     */
+    HistoryPage getChatRoomHistorySince(String chatName, int seq) throws RemoteException;
+
+    /**
+     * Hand the server the client's stub after binding it to the registry,
+     * so messages are delivered without looking the client up every time
+     * @param user The username
+     * @param clientStub The client's exported stub
      * @throws RemoteException
      */
-    List<String> getChatRoomMessageHistory(String chatName) throws RemoteException;
+    void bindClient(String user, ClientInterface clientStub) throws RemoteException;
 
     /**
      * Sets the server information to keep all server replicas connected
@@ -168,6 +193,15 @@ public interface ChatServerInterface extends Remote{
      */
     boolean sendHeartBeat() throws RemoteException;
 
+    /**
+     * Heartbeat from a logged in client. Tells the client the server is
+     * alive and tells the server the client is, so it is not probed.
+     * @param user The client's username
+     * @return True if alive
+     * @throws RemoteException
+     */
+    boolean clientHeartBeat(String user) throws RemoteException;
+
     /**
      * Return if this server is the current leader
      * @return True if leader false otherwise
@@ -175,6 +209,15 @@ public interface ChatServerInterface extends Remote{
      */
     boolean sendIsLeader() throws RemoteException;
 
+    /**
+     * Ask this replica for the leader lease, or to extend it
+     * @param ballot The candidate's ballot
+     * @param candidatePort The candidate's port
+     * @return LeaseGrant -> Granted or denied with the highest ballot granted
+     * @throws RemoteException
+     */
+    LeaseGrant requestLease(int ballot, int candidatePort) throws RemoteException;
+
 
     // ====================================
     
@@ -184,29 +227,89 @@ public interface ChatServerInterface extends Remote{
     // =====================================
 
     /**
-     * Send prepare messages to the acceptors with the proposal ID
+     * Propose an operation in a Paxos group this replica leads. Called by
+     * the replica the client is connected to, so every group's proposals
+     * run on its own leader.
+     * @param group The Paxos group
+     * @param operation The operation
+     * @param key The username
+     * @param val The password
+     * @param message The message if sending one
+     * @param chatroom The chatroom if the operation is on one
+     * @return Response object with the result and the log slot it was committed in
+     * @throws RemoteException
+     */
+    Response proposeInGroup(int group, String operation, String key, String val, String message, String chatroom)
+        throws RemoteException;
+
+    /**
+     * Send prepare messages to the acceptors with the proposal ID.
+     * One prepare covers every log slot from the given slot onwards.
+     * @param group The Paxos group
      * @param propId The proposal ID
-     * @return True -> Promise | False -> Deny
+     * @param fromSlot The first log slot being prepared
+     * @return Promise -> Promised or denied with the already accepted values
      * @throws RemoteException
      * @throws SocketTimeoutException
      */
-    boolean prepare(int propId) throws RemoteException, SocketTimeoutException;
+    Promise prepare(int group, int propId, int fromSlot) throws RemoteException, SocketTimeoutException;
 
     /**
      * Send a request to accept the proposal to the acceptor
+     * @param group The Paxos group
      * @param propId The proposal ID
-     * @param val The proposed value
-     * @return The DBOperation value that the acceptor accepts or null
+     * @param slot The log slot
+     * @param val The proposed batch of operations
+     * @param commitIndex Every slot up to it is committed, so the replica can
+     * apply the ones it accepted with the same proposal ID
+     * @return The DBBatch value that the acceptor accepts or null
      * @throws RemoteException
      * @throws SocketTimeoutException
      */
-    DBOperation accept(int propId, DBOperation val) throws RemoteException, SocketTimeoutException;
+    DBBatch accept(int group, int propId, int slot, DBBatch val, int commitIndex) throws RemoteException, SocketTimeoutException;
 
     /**
      * Send a commit to the learners to commit the accepted proposal and value
-     * @param theVal The KVOperation as the request that was accepted
-     * @return String that is the result of the request.
+     * @param group The Paxos group
+     * @param slot The log slot
+     * @param theVal The batch of operations that was accepted
+     * @return String result of each request in the batch.
+     * @throws RemoteException
+     */
+    List<String> commit(int group, int slot, DBBatch theVal) throws RemoteException;
+
+    /**
+     * Get committed log slots so a lagging learner can catch up
+     * @param group The Paxos group
+     * @param fromSlot The first slot wanted
+     * @param maxEntries The most slots to return
+     * @return Map of log slot to committed batch
+     * @throws RemoteException
+     */
+    Map<Integer, DBBatch> getCommittedLog(int group, int fromSlot, int maxEntries) throws RemoteException;
+
+    /**
+     * Get a chunk of this replica's latest snapshot so a rejoining replica
+     * can load it without replaying the whole log
+     * @param group The Paxos group
+     * @param lastSlot The snapshot slot being read, or 0 to start on the latest snapshot
+     * @param offset The first byte wanted
+     * @return The chunk, from the latest snapshot if the requested one was replaced,
+     * or null if this replica has no snapshot
+     * @throws RemoteException
+     */
+    SnapshotChunk getSnapshotChunk(int group, int lastSlot, int offset) throws RemoteException;
+
+    /**
+     * Get messages of a room a transferred snapshot marks, read straight
+     * from this replica's message store. A history only grows, so the
+     * messages a snapshot marks are always the start of the current history.
+     * @param group The Paxos group
+     * @param chatName The chatroom's name
+     * @param from The first sequence number wanted
+     * @param to One past the last sequence number the snapshot marks
+     * @return A page of at most paxos.transfer.chunkMessages messages, or null if the room does not exist
      * @throws RemoteException
      */
-    String commit(int propId, DBOperation theVal) throws RemoteException;
+    HistoryPage getSnapshotHistory(int group, String chatName, int from, int to) throws RemoteException;
 }
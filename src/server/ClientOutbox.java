@@ -0,0 +1,249 @@
+package server;
+
+// Log Imports
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+// RMI Imports
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+
+// Java Imports
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Custom Imports
+import client.ClientInterface;
+
+/**
+ * Bounded queue of calls waiting to be delivered to one client.
+ * The shared timer only waits out the batch window, the remote calls are
+ * made on a worker of the delivery pool. A slow or stalled client holds up
+ * only its own worker and messages, never the timer, the sender or other clients.
+ * Chat messages queued next to each other are delivered in one displayMessages call.
+ */
+public class ClientOutbox {
+    // Set up logging with a custom properties file
+    static Logger LOGGER = Logger.getLogger(ClientOutbox.class.getName());
+    static {
+        String filePath = "../config/serverlogging.properties";
+        try {
+            LogManager.getLogManager().readConfiguration(new FileInputStream(filePath));
+        } catch (IOException io)  {
+            LOGGER.severe("Logging config file not found.");
+        }
+    }
+
+    /**
+     * A remote call to make on the client
+     */
+    public interface ClientCall {
+        void call(ClientInterface client) throws RemoteException;
+    }
+
+    /**
+     * What to do when the queue is full
+     * DROP_OLDEST: drop the oldest queued call to make room
+     * DISCONNECT: drop the whole queue and disconnect the client
+     */
+    public enum OverflowPolicy { DROP_OLDEST, DISCONNECT }
+
+    // Most calls delivered in one turn before letting other clients' queues run
+    private static final int DRAIN_BATCH = 16;
+
+    private String username;
+    private ClientSessions sessions;
+    private ScheduledExecutorService timer;
+    private ExecutorService workers;
+    private int capacity;
+    private OverflowPolicy policy;
+    private Consumer<String> onDisconnect;
+
+    // Most messages in one displayMessages call and how long to wait for more
+    private int batchSize;
+    private long batchWindowMs;
+
+    // Queued ChatMessage and ClientCall objects in the order they were offered
+    private ArrayDeque<Object> queue;
+    private boolean draining;
+    private boolean disconnected;
+
+    /**
+     * Constructor
+     * @param username The client's username
+     * @param sessions The server's client session table
+     * @param timer The shared timer starting drains once the batch window passed
+     * @param workers The delivery pool making the remote calls
+     * @param capacity Most calls queued at once
+     * @param policy What to do when the queue is full
+     * @param batchSize Most messages delivered in one call
+     * @param batchWindowMs How long the first queued message waits for others to join it
+     * @param onDisconnect Called with the username when the client is disconnected
+     */
+    public ClientOutbox(String username, ClientSessions sessions, ScheduledExecutorService timer,
+                        ExecutorService workers, int capacity, OverflowPolicy policy, int batchSize, long batchWindowMs,
+                        Consumer<String> onDisconnect) {
+        this.username = username;
+        this.sessions = sessions;
+        this.timer = timer;
+        this.workers = workers;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.onDisconnect = onDisconnect;
+        this.batchSize = batchSize;
+        this.batchWindowMs = batchWindowMs;
+        this.queue = new ArrayDeque<Object>();
+        this.draining = false;
+        this.disconnected = false;
+    }
+
+    /**
+     * Parse the overflow policy from the config value
+     * @param value dropOldest or disconnect
+     * @return The policy, DROP_OLDEST if the value is not known
+     */
+    public static OverflowPolicy parsePolicy(String value) {
+        if (value.equalsIgnoreCase("disconnect")) {
+            return OverflowPolicy.DISCONNECT;
+        }
+        return OverflowPolicy.DROP_OLDEST;
+    }
+
+    /**
+     * Queue a chat message for the client without waiting for it to be delivered
+     * @param message The message
+     */
+    public void offerMessage(ChatMessage message) {
+        enqueue(message);
+    }
+
+    /**
+     * Queue a call for the client without waiting for it to be delivered
+     * @param call The call to make
+     */
+    public void offer(ClientCall call) {
+        enqueue(call);
+    }
+
+    /**
+     * Add a message or call to the queue and start a worker if none is running
+     * @param item ChatMessage or ClientCall
+     */
+    private void enqueue(Object item) {
+        boolean overflowed = false;
+        synchronized (this) {
+            if (disconnected) {
+                return;
+            }
+            if (queue.size() >= capacity) {
+                if (policy == OverflowPolicy.DROP_OLDEST) {
+                    queue.poll();
+                    LOGGER.severe(String.format("Outbox for user: %s is full. Dropped the oldest message.", username));
+                } else {
+                    queue.clear();
+                    disconnected = true;
+                    overflowed = true;
+                }
+            }
+            if (!overflowed) {
+                queue.add(item);
+                if (!draining) {
+                    draining = true;
+                    // Give messages sent right after this one a moment to join its batch
+                    timer.schedule(() -> workers.execute(this::drain), batchWindowMs, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+
+        if (overflowed) {
+            LOGGER.severe(String.format("Outbox for user: %s is full. Disconnecting the client.", username));
+            onDisconnect.accept(username);
+        }
+    }
+
+    /**
+     * Deliver queued calls in order. However it ends, the outbox stops
+     * draining unless another drain was queued, so the next call starts one.
+     */
+    private void drain() {
+        try {
+            deliver();
+        } catch (Throwable t) {
+            LOGGER.severe(String.format("Error delivering to user: %s. Dropping queued messages. %s", username, t.toString()));
+            synchronized (this) {
+                queue.clear();
+                draining = false;
+            }
+        }
+    }
+
+    /**
+     * Deliver a batch of queued calls in order. Hands the worker back
+     * after a batch and queues another drain if there is more to deliver,
+     * otherwise stops draining.
+     */
+    private void deliver() {
+        ClientInterface client;
+        try {
+            client = sessions.get(username);
+        } catch (NotBoundException | RemoteException e) {
+            LOGGER.severe(String.format("User: %s is no longer connected. Not bound to registry.", username));
+            synchronized (this) {
+                queue.clear();
+                draining = false;
+            }
+            return;
+        }
+
+        for (int i = 0; i < DRAIN_BATCH; i++) {
+            Object item;
+            List<ChatMessage> messages = null;
+            synchronized (this) {
+                item = queue.poll();
+                if (item == null) {
+                    draining = false;
+                    return;
+                }
+                // Take the messages queued right behind this one as well
+                if (item instanceof ChatMessage) {
+                    messages = new ArrayList<ChatMessage>();
+                    messages.add((ChatMessage) item);
+                    while (messages.size() < batchSize && queue.peek() instanceof ChatMessage) {
+                        messages.add((ChatMessage) queue.poll());
+                    }
+                }
+            }
+            try {
+                if (messages != null) {
+                    client.displayMessages(messages);
+                } else {
+                    ((ClientCall) item).call(client);
+                }
+            } catch (RemoteException re) {
+                // The stub may be stale, look the client up again next time
+                sessions.invalidate(username);
+                LOGGER.severe(String.format("Error accessing the remote: %s. Dropping queued messages.", username));
+                synchronized (this) {
+                    queue.clear();
+                    draining = false;
+                }
+                return;
+            }
+        }
+
+        synchronized (this) {
+            if (queue.isEmpty()) {
+                draining = false;
+            } else {
+                workers.execute(this::drain);
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package server;
+
+// RMI Imports
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.Registry;
+
+// Java Imports
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Custom Imports
+import client.ClientInterface;
+
+/**
+ * Session table of the clients connected to a server, keyed by username.
+ * Clients hand over their stub when they bind, so delivering a message
+ * only looks the client up in the registry if the stub is missing.
+ */
+public class ClientSessions {
+    private Map<String, ClientInterface> stubs;
+    private Registry registry;
+
+    /**
+     * Empty constructor
+     */
+    public ClientSessions() {
+        this.stubs = new ConcurrentHashMap<String, ClientInterface>();
+    }
+
+    /**
+     * Set the registry clients bind themselves in
+     * @param registry The server's registry
+     */
+    public void setRegistry(Registry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Remember the stub the client bound with
+     * @param user The username
+     * @param stub The client's stub
+     */
+    public void bind(String user, ClientInterface stub) {
+        this.stubs.put(user, stub);
+    }
+
+    /**
+     * Get the client's stub. Looks it up in the registry if the client
+     * did not hand it over or it was invalidated.
+     * @param user The username
+     * @return The client's stub
+     * @throws RemoteException
+     * @throws NotBoundException
+     */
+    public ClientInterface get(String user) throws RemoteException, NotBoundException {
+        ClientInterface stub = this.stubs.get(user);
+        if (stub == null) {
+            stub = (ClientInterface) this.registry.lookup(String.format("client:%s", user));
+            this.stubs.put(user, stub);
+        }
+        return stub;
+    }
+
+    /**
+     * Forget the client's stub. Called when a call to it fails or it logs out.
+     * @param user The username
+     */
+    public void invalidate(String user) {
+        this.stubs.remove(user);
+    }
+}
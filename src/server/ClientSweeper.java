@@ -0,0 +1,255 @@
+package server;
+
+// Log Imports
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+// RMI Imports
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+
+// Java Imports
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+// Threading support
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Custom Imports
+import client.ClientInterface;
+
+/**
+ * Finds the clients of a server that went away without logging out.
+ * Clients heartbeat the server on their own, and every heartbeat extends
+ * the client's lease. Only a client whose lease ran out is probed, so a
+ * sweep costs nothing for clients that keep heartbeating.
+ *
+ * Leases are kept in a timing wheel of sweep.wheelSlots slots of
+ * sweep.tickMs each. A heartbeat only moves the lease's deadline, and the
+ * client is moved to the slot of its new deadline once its old slot comes
+ * up. Expired clients are probed sweep.batchSize at a time on
+ * sweep.probeThreads threads, and a client that does not answer is dropped.
+ * Only the leader sweeps, the sweeper runs from start until stop.
+ */
+public class ClientSweeper {
+    // Set up logging with a custom properties file
+    static Logger LOGGER = Logger.getLogger(ClientSweeper.class.getName());
+    static {
+        String filePath = "../config/serverlogging.properties";
+        try {
+            LogManager.getLogManager().readConfiguration(new FileInputStream(filePath));
+        } catch (IOException io)  {
+            LOGGER.severe("Logging config file not found.");
+        }
+    }
+
+    private ClientSessions sessions;
+    private Consumer<String> onDead;
+
+    // How long a client is taken to be alive after it was last heard from
+    private long leaseMs;
+    private long tickMs;
+    private int batchSize;
+
+    // Username : deadline of the client's lease
+    private Map<String, Long> deadlines;
+
+    // Usernames by the tick their slot comes up in
+    private List<Set<String>> wheel;
+    private long nextTick;
+
+    // Runs the ticks while the sweeper is started, null while it is stopped
+    private volatile ScheduledExecutorService ticker;
+    private ExecutorService probePool;
+
+    /**
+     * Constructor
+     * @param sessions The server's client session table
+     * @param onDead Called with the username of a client that did not answer a probe
+     */
+    public ClientSweeper(ClientSessions sessions, Consumer<String> onDead) {
+        this.sessions = sessions;
+        this.onDead = onDead;
+        this.leaseMs = ServerConfig.getLong("sweep.leaseMs", 5000);
+        this.tickMs = Math.max(ServerConfig.getLong("sweep.tickMs", 250), 1);
+        this.batchSize = Math.max(ServerConfig.getInt("sweep.batchSize", 64), 1);
+        this.deadlines = new ConcurrentHashMap<String, Long>();
+
+        int slots = Math.max(ServerConfig.getInt("sweep.wheelSlots", 64), 1);
+        this.wheel = new ArrayList<Set<String>>(slots);
+        for (int i = 0; i < slots; i++) {
+            this.wheel.add(ConcurrentHashMap.newKeySet());
+        }
+        this.probePool = Executors.newFixedThreadPool(Math.max(ServerConfig.getInt("sweep.probeThreads", 8), 1), (task) -> {
+            Thread prober = new Thread(task, "client-probe");
+            prober.setDaemon(true);
+            return prober;
+        });
+    }
+
+    /**
+     * Start sweeping, giving every client a full lease. Called when the server becomes leader.
+     * @param users The usernames of the logged in clients
+     */
+    public synchronized void start(Collection<String> users) {
+        if (this.ticker != null) {
+            return;
+        }
+        this.nextTick = System.currentTimeMillis() / this.tickMs;
+        ScheduledExecutorService tickThread = Executors.newSingleThreadScheduledExecutor((task) -> {
+            Thread tick = new Thread(task, "client-sweeper");
+            tick.setDaemon(true);
+            return tick;
+        });
+        this.ticker = tickThread;
+        trackAll(users);
+        tickThread.scheduleAtFixedRate(this::tick, this.tickMs, this.tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop sweeping and forget every client. Called when the server stops leading.
+     */
+    public synchronized void stop() {
+        if (this.ticker == null) {
+            return;
+        }
+        this.ticker.shutdownNow();
+        this.ticker = null;
+        this.deadlines.clear();
+        for (Set<String> slot : this.wheel) {
+            slot.clear();
+        }
+    }
+
+    /**
+     * The client was heard from, extend its lease. Ignored while stopped.
+     * @param user The username
+     */
+    public void seen(String user) {
+        if (this.ticker == null) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + this.leaseMs;
+        if (this.deadlines.put(user, deadline) == null) {
+            slotFor(deadline).add(user);
+        }
+    }
+
+    /**
+     * Start watching the clients, giving each a full lease
+     * @param users The usernames
+     */
+    private void trackAll(Collection<String> users) {
+        long deadline = System.currentTimeMillis() + this.leaseMs;
+        for (String user : users) {
+            if (this.deadlines.putIfAbsent(user, deadline) == null) {
+                slotFor(deadline).add(user);
+            }
+        }
+    }
+
+    /**
+     * Stop watching the client, it logged out
+     * @param user The username
+     */
+    public void forget(String user) {
+        this.deadlines.remove(user);
+    }
+
+    /**
+     * Get the slot a deadline falls in
+     * @param deadline The deadline
+     * @return The slot's usernames
+     */
+    private Set<String> slotFor(long deadline) {
+        return this.wheel.get((int) ((deadline / this.tickMs) % this.wheel.size()));
+    }
+
+    /**
+     * Go through the slots whose time came since the last tick. Clients
+     * whose lease was extended move on to the slot of their new deadline,
+     * the rest are probed.
+     */
+    private void tick() {
+        try {
+            long now = System.currentTimeMillis();
+            long currentTick = now / this.tickMs;
+            List<String> expired = new ArrayList<String>();
+            // A tick that ran late catches up on the slots it missed, at most one turn of the wheel
+            long firstTick = Math.max(this.nextTick, currentTick - this.wheel.size() + 1);
+            for (long t = firstTick; t <= currentTick; t++) {
+                Set<String> slot = this.wheel.get((int) (t % this.wheel.size()));
+                for (String user : slot) {
+                    Long deadline = this.deadlines.get(user);
+                    if (deadline == null) {
+                        slot.remove(user);
+                    } else if (deadline / this.tickMs > t) {
+                        Set<String> next = slotFor(deadline);
+                        if (next != slot) {
+                            slot.remove(user);
+                            next.add(user);
+                        }
+                    } else {
+                        slot.remove(user);
+                        expired.add(user);
+                    }
+                }
+            }
+            this.nextTick = currentTick + 1;
+
+            if (expired.isEmpty()) {
+                return;
+            }
+            // Give every expired client a new lease while it is probed so it is only probed once
+            long deadline = now + this.leaseMs;
+            for (String user : expired) {
+                if (this.deadlines.replace(user, deadline) != null) {
+                    slotFor(deadline).add(user);
+                }
+            }
+            for (int from = 0; from < expired.size(); from += this.batchSize) {
+                List<String> batch = expired.subList(from, Math.min(from + this.batchSize, expired.size()));
+                this.probePool.submit(() -> probe(batch));
+            }
+        } catch (RuntimeException re) {
+            LOGGER.severe(String.format("Client sweep failed. %s", re.toString()));
+        }
+    }
+
+    /**
+     * Probe a batch of clients whose lease ran out
+     * @param batch The usernames
+     */
+    private void probe(List<String> batch) {
+        for (String user : batch) {
+            if (!this.deadlines.containsKey(user)) {
+                continue;
+            }
+            try {
+                ClientInterface client = this.sessions.get(user);
+                if (client.sendHeartBeat()) {
+                    LOGGER.info(String.format("Client: %s is still connected.", user));
+                    seen(user);
+                    continue;
+                }
+            } catch (RemoteException re) {
+                LOGGER.severe(String.format("Remote Client: %s is dead!", user));
+            } catch (NotBoundException nbe) {
+                LOGGER.severe(String.format("Client name: %s is not bound!", user));
+            }
+            this.sessions.invalidate(user);
+            this.deadlines.remove(user);
+            this.onDead.accept(user);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package server;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A batch of DBOperations that is proposed and committed as a single
+ * Paxos value. The learners apply the operations in order.
+ * Sent as a varint count followed by each operation's compact encoding.
+ */
+public class DBBatch implements Externalizable {
+    private List<DBOperation> ops;
+
+    /**
+     * Empty constructor. An empty batch is a no-op.
+     */
+    public DBBatch() {
+        this.ops = new ArrayList<DBOperation>();
+    }
+
+    /**
+     * Constructor with the operations in the batch
+     * @param ops The operations in proposal order
+     */
+    public DBBatch(List<DBOperation> ops) {
+        this.ops = ops;
+    }
+
+    /**
+     * Get the operations
+     * @return List of DBOperation objects
+     */
+    public List<DBOperation> getOps() {
+        return this.ops;
+    }
+
+    /**
+     * Get the number of operations in the batch
+     * @return Integer size
+     */
+    public int size() {
+        return this.ops.size();
+    }
+
+    /**
+     * Check if the batch has no operations
+     * @return True if it is a no-op
+     */
+    public boolean isEmpty() {
+        return this.ops.isEmpty();
+    }
+
+    /**
+     * Write the batch in the compact encoding
+     * @param out Where to write
+     * @throws IOException
+     */
+    public void write(DataOutput out) throws IOException {
+        WireCodec.writeVarInt(out, this.ops.size());
+        for (DBOperation dbOp : this.ops) {
+            dbOp.write(out);
+        }
+    }
+
+    /**
+     * Read a batch written by write
+     * @param in Where to read from
+     * @return The batch
+     * @throws IOException
+     */
+    public static DBBatch read(DataInput in) throws IOException {
+        DBBatch batch = new DBBatch();
+        batch.readOps(in);
+        return batch;
+    }
+
+    private void readOps(DataInput in) throws IOException {
+        int size = WireCodec.readVarInt(in);
+        this.ops = new ArrayList<DBOperation>(size);
+        for (int i = 0; i < size; i++) {
+            this.ops.add(DBOperation.read(in));
+        }
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        write(out);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        readOps(in);
+    }
+}
@@ -1,13 +1,36 @@
 package server;
 
-import java.io.Serializable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 
 /**
  * A Key Value Operation class that contains the key/value and the operation
  * to be done.
+ * The operation is sent as a one byte opcode followed by the fields in the
+ * compact WireCodec encoding.
  */
-public class DBOperation implements Serializable {
-    private String op; // register, send, create, join
+public class DBOperation implements Externalizable {
+    // Opcodes
+    public static final byte UNKNOWN = 0;
+    public static final byte REGISTER = 1;
+    public static final byte LOGIN = 2;
+    public static final byte LOGOUT = 3;
+    public static final byte CREATE = 4;
+    public static final byte JOIN = 5;
+    public static final byte SEND = 6;
+    public static final byte LEAVE = 7;
+    public static final byte BARRIER = 8;
+
+    // Operation names indexed by opcode
+    private static final String[] OP_NAMES = {
+        "unknown", "register", "login", "logout", "create", "join", "send", "leave", "barrier"
+    };
+
+    private byte opCode; // register, send, create, join
     private String username; // For registering
     private String password; // For registering
     private String message; // When user sends a message
@@ -27,7 +50,7 @@ public class DBOperation implements Serializable {
      * @param chatroom The chatroom
      */
     public DBOperation(String op, String username, String password, String message, String chatroom) {
-        this.op = op;
+        this.opCode = toOpCode(op);
         this.username = username;
         this.password = password;
         this.message = message;
@@ -39,7 +62,15 @@ public class DBOperation implements Serializable {
      * @return String operation
      */
     public String getOp() {
-        return this.op;
+        return OP_NAMES[this.opCode];
+    }
+
+    /**
+     * Get the operation's opcode
+     * @return Byte opcode
+     */
+    public byte getOpCode() {
+        return this.opCode;
     }
 
     /**
@@ -47,7 +78,21 @@ public class DBOperation implements Serializable {
      * @param op The operation
      */
     public void setOp(String op) {
-        this.op = op;
+        this.opCode = toOpCode(op);
+    }
+
+    /**
+     * Look up the opcode of an operation name
+     * @param op The operation name
+     * @return Byte opcode, UNKNOWN if the name is not an operation
+     */
+    private static byte toOpCode(String op) {
+        for (byte code = 1; code < OP_NAMES.length; code++) {
+            if (OP_NAMES[code].equals(op)) {
+                return code;
+            }
+        }
+        return UNKNOWN;
     }
     
     /** 
@@ -113,4 +158,48 @@ public class DBOperation implements Serializable {
     public void setChatroom(String chatroom) {
         this.chatroom = chatroom;
     }
+
+    /**
+     * Write the operation in the compact encoding
+     * @param out Where to write
+     * @throws IOException
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeByte(this.opCode);
+        WireCodec.writeString(out, this.username);
+        WireCodec.writeString(out, this.password);
+        WireCodec.writeString(out, this.message);
+        WireCodec.writeString(out, this.chatroom);
+    }
+
+    /**
+     * Read an operation written by write
+     * @param in Where to read from
+     * @return The operation
+     * @throws IOException
+     */
+    public static DBOperation read(DataInput in) throws IOException {
+        DBOperation dbOp = new DBOperation();
+        dbOp.readFields(in);
+        return dbOp;
+    }
+
+    private void readFields(DataInput in) throws IOException {
+        byte code = in.readByte();
+        this.opCode = code >= 0 && code < OP_NAMES.length ? code : UNKNOWN;
+        this.username = WireCodec.readString(in);
+        this.password = WireCodec.readString(in);
+        this.message = WireCodec.readString(in);
+        this.chatroom = WireCodec.readString(in);
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        write(out);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        readFields(in);
+    }
 }
@@ -0,0 +1,64 @@
+package server;
+
+// Java Imports
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Consistent hash ring placing chat rooms on the Paxos groups that hold them.
+ * Every room group owns a number of virtual nodes on the ring and a room
+ * belongs to the first node at or after the hash of its name. Hashing only
+ * depends on the names, so every replica places a room on the same group.
+ * Group 0 holds the user accounts and is never on the ring.
+ */
+public class GroupRing {
+    // Hash of a virtual node : Paxos group it belongs to
+    private TreeMap<Integer, Integer> ring;
+
+    /**
+     * Constructor
+     * @param roomGroups Number of Paxos groups holding rooms, numbered from 1
+     * @param virtualNodes Virtual nodes per group
+     */
+    public GroupRing(int roomGroups, int virtualNodes) {
+        this.ring = new TreeMap<Integer, Integer>();
+        for (int group = 1; group <= roomGroups; group++) {
+            for (int node = 0; node < Math.max(virtualNodes, 1); node++) {
+                this.ring.put(hash(String.format("group-%d-%d", group, node)), group);
+            }
+        }
+    }
+
+    /**
+     * Get the Paxos group holding the room
+     * @param room The room name
+     * @return Integer Paxos group
+     */
+    public int groupFor(String room) {
+        Map.Entry<Integer, Integer> node = this.ring.ceilingEntry(hash(room));
+        if (node == null) {
+            node = this.ring.firstEntry();
+        }
+        return node.getValue();
+    }
+
+    /**
+     * Hash a name onto the ring
+     * @param name The name
+     * @return Integer position on the ring
+     */
+    private static int hash(String name) {
+        CRC32 crc = new CRC32();
+        crc.update(name.getBytes(StandardCharsets.UTF_8));
+        // Spread names that only differ in a few characters over the whole ring
+        int h = (int) crc.getValue();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
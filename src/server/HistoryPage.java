@@ -0,0 +1,136 @@
+package server;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A page of a chat room's message history. The messages carry sequence
+ * numbers firstSeq up to, but not including, nextSeq.
+ * A page read from the message store holds slices of the store and the
+ * messages are written straight from them when the page is sent.
+ * Sent as varints, then each message in the WireCodec string encoding.
+ */
+public class HistoryPage implements Externalizable {
+    private int firstSeq;
+    private List<String> messages;
+    private ByteBuffer[] slices;
+    private boolean more;
+
+    /**
+     * Empty constructor, used when the page is received
+     */
+    public HistoryPage() {
+        this.messages = new ArrayList<String>();
+    }
+
+    /**
+     * Constructor
+     * @param firstSeq Sequence number of the first message in the page
+     * @param messages The messages in order
+     * @param more True if the room has messages after this page
+     */
+    public HistoryPage(int firstSeq, List<String> messages, boolean more) {
+        this.firstSeq = firstSeq;
+        this.messages = messages;
+        this.more = more;
+    }
+
+    /**
+     * Create a page over messages read from the message store
+     * @param firstSeq Sequence number of the first message in the page
+     * @param slices The store's slice of each message, null for a null message
+     * @param more True if the room has messages after this page
+     * @return The page
+     */
+    public static HistoryPage fromSlices(int firstSeq, ByteBuffer[] slices, boolean more) {
+        HistoryPage page = new HistoryPage(firstSeq, null, more);
+        page.slices = slices;
+        return page;
+    }
+
+    /**
+     * Get the sequence number of the first message in the page
+     * @return Integer sequence number
+     */
+    public int getFirstSeq() {
+        return this.firstSeq;
+    }
+
+    /**
+     * Get the messages in the page, decoding them if the page was read from the store
+     * @return List of messages in order
+     */
+    public List<String> getMessages() {
+        if (this.messages == null) {
+            String[] decoded = new String[this.slices.length];
+            for (int i = 0; i < decoded.length; i++) {
+                decoded[i] = MessageStore.decode(this.slices[i]);
+            }
+            this.messages = Arrays.asList(decoded);
+        }
+        return this.messages;
+    }
+
+    /**
+     * Get the cursor to pass for the next page, one past the last message in this one
+     * @return Integer sequence number
+     */
+    public int getNextSeq() {
+        return this.firstSeq + (this.messages != null ? this.messages.size() : this.slices.length);
+    }
+
+    /**
+     * Check if the room has messages after this page
+     * @return True if there are more messages
+     */
+    public boolean hasMore() {
+        return this.more;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        WireCodec.writeVarInt(out, this.firstSeq);
+        out.writeBoolean(this.more);
+        if (this.messages != null) {
+            WireCodec.writeVarInt(out, this.messages.size());
+            for (String message : this.messages) {
+                WireCodec.writeString(out, message);
+            }
+            return;
+        }
+
+        WireCodec.writeVarInt(out, this.slices.length);
+        byte[] chunk = new byte[4096];
+        for (ByteBuffer slice : this.slices) {
+            if (slice == null) {
+                WireCodec.writeVarInt(out, 0);
+                continue;
+            }
+            // Same layout as writeString, copied from the store in chunks
+            ByteBuffer bytes = slice.duplicate();
+            WireCodec.writeVarInt(out, bytes.remaining() + 1);
+            while (bytes.hasRemaining()) {
+                int n = Math.min(chunk.length, bytes.remaining());
+                bytes.get(chunk, 0, n);
+                out.write(chunk, 0, n);
+            }
+        }
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        this.firstSeq = WireCodec.readVarInt(in);
+        this.more = in.readBoolean();
+        int count = WireCodec.readVarInt(in);
+        this.messages = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            this.messages.add(WireCodec.readString(in));
+        }
+    }
+}
@@ -0,0 +1,543 @@
+package server;
+
+// Log Imports
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+// RMI Imports
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+
+// Java Imports
+import java.util.ArrayList;
+import java.util.List;
+
+// Threading support
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Elects the leader among the replicas themselves with a leader lease.
+ * A replica leads while a majority granted it the lease for its ballot,
+ * and it renews the lease every election.renewMs. A replica only grants
+ * a higher ballot than any it granted before, and not while the lease it
+ * granted to another replica is still running, so at most one replica
+ * holds the lease at a time. Grants are only kept in memory, so a replica
+ * grants nothing for election.leaseMs after it starts, until any lease it
+ * granted before a restart ran out. Proposal IDs are made under the
+ * ballot, so the Paxos acceptors of a replica that granted a newer lease
+ * refuse the old leader's proposals. A restarted replica only grants
+ * ballots from those its acceptors promised before, so a new leader's
+ * proposal IDs are not below what the acceptors promised. A leader that
+ * hears of a higher ballot moves its lease above it, so a replica that
+ * ran for leader in vain does not fence the leader off for good.
+ *
+ * A follower that hears nothing from a leader for election.leaseMs plus a
+ * random part of election.jitterMs asks for the lease with a new ballot.
+ * The random part keeps followers from all running for leader at once.
+ * A follower also keeps a phi accrual failure detector on the renewals of
+ * the leader it granted the lease to, and only runs once the leader's
+ * suspicion level reached election.phi.threshold, so a leader that is
+ * slow but steady is not voted out as soon as its lease runs out.
+ * The replicas' grants tell the winner how far they applied every Paxos
+ * group, and it catches up to the furthest before it takes clients. It
+ * keeps renewing the lease while it catches up.
+ */
+public class LeaderElection {
+    // Set up logging with a custom properties file
+    static Logger LOGGER = Logger.getLogger(LeaderElection.class.getName());
+    static {
+        String filePath = "../config/serverlogging.properties";
+        try {
+            LogManager.getLogManager().readConfiguration(new FileInputStream(filePath));
+        } catch (IOException io)  {
+            LOGGER.severe("Logging config file not found.");
+        }
+    }
+
+    private ChatServerImpl server;
+    private int port;
+    private List<Integer> serverPorts;
+
+    private long leaseMs;
+    private long renewMs;
+    private long jitterMs;
+
+    // The highest ballot this replica granted, to whom and until when
+    private int grantedBallot;
+    private int grantedTo;
+    private long grantedUntil;
+
+    // Highest ballot the acceptors promised before a restart, no lower one is granted
+    private int restoredBallot;
+
+    // Highest ballot heard of from any replica
+    private int highestBallot;
+
+    // This replica's own lease while it leads
+    private boolean leading;
+    private int ballot;
+    private long leaseUntil;
+
+    // Set once the leader caught up to what the replicas applied before it won
+    private boolean caughtUp;
+
+    // Counts the times this replica won, a catch up only counts for the win it started for
+    private int term;
+
+    // When this replica runs for leader if no leader renewed its lease before
+    private long electionDeadline;
+
+    // Suspicion level of the leader this replica granted the lease to, fed by its renewals
+    private PhiAccrualDetector leaderDetector;
+    private double phiThreshold;
+    private int phiWindowSize;
+    private long phiMinStdDevMs;
+    private long phiAcceptablePauseMs;
+
+    private ScheduledExecutorService ticker;
+    private ExecutorService rpcPool;
+
+    // Catches a new leader up while the ticker keeps renewing its lease
+    private ExecutorService catchUpPool;
+
+    /**
+     * Constructor
+     * @param server The replica the election runs on
+     * @param port The replica's port
+     */
+    public LeaderElection(ChatServerImpl server, int port) {
+        this.server = server;
+        this.port = port;
+        this.leaseMs = ServerConfig.getLong("election.leaseMs", 1000);
+        this.renewMs = Math.max(ServerConfig.getLong("election.renewMs", 250), 1);
+        this.jitterMs = Math.max(ServerConfig.getLong("election.jitterMs", 500), 0);
+        this.phiThreshold = Double.parseDouble(ServerConfig.getString("election.phi.threshold", "3"));
+        this.phiWindowSize = ServerConfig.getInt("failure.phi.windowSize", 100);
+        this.phiMinStdDevMs = ServerConfig.getLong("failure.phi.minStdDevMs", 200);
+        this.phiAcceptablePauseMs = ServerConfig.getLong("failure.phi.acceptablePauseMs", 500);
+        // As if a lease was granted to no one just now, so every grant is refused until it runs out
+        this.grantedUntil = System.currentTimeMillis() + this.leaseMs;
+        this.restoredBallot = server.getPromisedBallot();
+        this.rpcPool = Executors.newCachedThreadPool((task) -> {
+            Thread rpc = new Thread(task, "lease-rpc");
+            rpc.setDaemon(true);
+            return rpc;
+        });
+        this.catchUpPool = Executors.newSingleThreadExecutor((task) -> {
+            Thread catchUp = new Thread(task, "leader-catch-up");
+            catchUp.setDaemon(true);
+            return catchUp;
+        });
+    }
+
+    /**
+     * Start taking part in elections. A replica waits a full lease before
+     * running for leader, so a restarted one hears of a running leader first.
+     * @param otherPorts All server ports
+     */
+    public synchronized void start(List<Integer> otherPorts) {
+        this.serverPorts = otherPorts;
+        if (this.ticker != null) {
+            return;
+        }
+        this.electionDeadline = System.currentTimeMillis() + this.leaseMs + jitter();
+        this.ticker = Executors.newSingleThreadScheduledExecutor((task) -> {
+            Thread tick = new Thread(task, "leader-election");
+            tick.setDaemon(true);
+            return tick;
+        });
+        this.ticker.scheduleWithFixedDelay(this::tick, this.renewMs, this.renewMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop taking part in elections and give up the lease, the replica went down
+     */
+    public synchronized void stop() {
+        if (this.ticker != null) {
+            this.ticker.shutdownNow();
+        }
+        if (this.leading) {
+            stepDown();
+        }
+    }
+
+    /**
+     * Stop taking part in elections for good and stop the threads asking
+     * the other replicas, the replica went down
+     */
+    public void close() {
+        stop();
+        this.rpcPool.shutdownNow();
+        this.catchUpPool.shutdownNow();
+    }
+
+    /**
+     * Check if this replica holds the leader lease right now and caught up
+     * after winning it. No other replica can take clients until the lease
+     * runs out, so the leader can serve reads from its own state.
+     * @return True if it leads
+     */
+    public synchronized boolean holdsLease() {
+        return this.leading && this.caughtUp && System.currentTimeMillis() < this.leaseUntil;
+    }
+
+    /**
+     * Get the replica holding the lease as far as this replica knows
+     * @return The leader's port or 0 if no lease is running
+     */
+    public synchronized int getLeader() {
+        if (this.leading) {
+            return this.port;
+        }
+        return System.currentTimeMillis() < this.grantedUntil ? this.grantedTo : 0;
+    }
+
+    /**
+     * Get the number of times this replica won the lease
+     * @return Integer term, the current one while it leads
+     */
+    public synchronized int getTerm() {
+        return this.term;
+    }
+
+    /**
+     * Check if this replica still leads in the term
+     * @param won The term
+     * @return True if it has led since it won that term
+     */
+    public synchronized boolean leadsTerm(int won) {
+        return this.leading && this.term == won;
+    }
+
+    /**
+     * Move this leader's lease to a higher ballot and wait until a majority
+     * renewed it there. Replicas that granted the new ballot refuse the
+     * proposals of every older one, so a replica that proposed under the
+     * old ballot can no longer get a value chosen.
+     * @param timeoutMs How long to wait for the renewal
+     * @return True if the lease moved in time
+     */
+    public synchronized boolean moveLease(long timeoutMs) {
+        if (!this.leading) {
+            return false;
+        }
+        int held = this.ballot;
+        // The next renewal moves above every ballot heard of
+        this.highestBallot = Math.max(this.highestBallot, held + 1);
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (this.leading && this.ballot == held) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return this.leading;
+    }
+
+    /**
+     * Get the highest ballot this replica granted the lease for, its own
+     * included. Proposals of older ballots are refused here.
+     * @return Integer ballot
+     */
+    public synchronized int getGrantedBallot() {
+        return this.grantedBallot;
+    }
+
+    /**
+     * Grant the lease to a candidate or extend the lease of the leader.
+     * Denied if the ballot is not above every ballot granted before or
+     * another replica's lease is still running.
+     * @param ballot The candidate's ballot
+     * @param candidate The candidate's port
+     * @return LeaseGrant object
+     */
+    public synchronized LeaseGrant grant(int ballot, int candidate) {
+        long now = System.currentTimeMillis();
+        this.highestBallot = Math.max(this.highestBallot, ballot);
+
+        boolean renewal = ballot == this.grantedBallot && candidate == this.grantedTo;
+        boolean free = now >= this.grantedUntil || candidate == this.grantedTo;
+        if (!renewal && (ballot <= this.grantedBallot || ballot < this.restoredBallot || !free)) {
+            return new LeaseGrant(false, Math.max(this.grantedBallot, this.restoredBallot), now < this.grantedUntil ? this.grantedTo : 0,
+                this.server.getAppliedIndexes());
+        }
+
+        if (!renewal) {
+            LOGGER.info(String.format("Granted leader lease to server port: %d with ballot: %d", candidate, ballot));
+        }
+        if (candidate != this.port) {
+            // A new leader's renewals are watched from scratch
+            if (candidate != this.grantedTo || this.leaderDetector == null) {
+                this.leaderDetector = new PhiAccrualDetector(this.phiThreshold, this.phiWindowSize,
+                    this.phiMinStdDevMs, this.phiAcceptablePauseMs, this.renewMs);
+            } else {
+                this.leaderDetector.heartbeat(now);
+            }
+        }
+        this.grantedBallot = ballot;
+        this.grantedTo = candidate;
+        this.grantedUntil = now + this.leaseMs;
+        if (candidate != this.port) {
+            this.electionDeadline = this.grantedUntil + jitter();
+            if (this.leading) {
+                stepDown();
+            }
+        }
+        return new LeaseGrant(true, ballot, candidate, this.server.getAppliedIndexes());
+    }
+
+    /**
+     * Renew the lease while leading, or run for leader once the last
+     * leader's lease ran out.
+     */
+    private void tick() {
+        try {
+            long sent = System.currentTimeMillis();
+            int asked;
+            int held = 0;
+            boolean renewing;
+            synchronized (this) {
+                if (this.leading) {
+                    // Replicas that granted a higher ballot refuse this one's proposals, so move above it
+                    held = this.ballot;
+                    asked = this.highestBallot > held ? nextBallot() : held;
+                    renewing = true;
+                } else if (sent >= this.electionDeadline && leaderSuspected(sent)) {
+                    asked = nextBallot();
+                    renewing = false;
+                    // Run again later if no one wins this election
+                    this.electionDeadline = sent + this.leaseMs + jitter();
+                } else {
+                    return;
+                }
+            }
+
+            int granted = 0;
+            int[] furthest = new int[0];
+            for (LeaseGrant reply : requestAll(asked)) {
+                synchronized (this) {
+                    this.highestBallot = Math.max(this.highestBallot, reply.getBallot());
+                }
+                if (reply.isGranted()) {
+                    granted++;
+                    furthest = furthest(furthest, reply.getAppliedIndexes());
+                }
+            }
+            boolean majority = granted > this.serverPorts.size() / 2;
+
+            if (renewing) {
+                renewed(held, asked, majority, sent);
+            } else if (majority) {
+                won(asked, sent, furthest);
+            }
+        } catch (RuntimeException re) {
+            LOGGER.severe(String.format("Leader election failed. %s", re.toString()));
+        }
+    }
+
+    /**
+     * Extend this replica's lease if a majority renewed it, and step down
+     * once the lease ran out without one.
+     * @param held The ballot the lease was held with
+     * @param asked The ballot renewed, above the held one if the leader moved its lease up
+     * @param majority True if a majority renewed the lease
+     * @param sent When the renewal was sent
+     */
+    private synchronized void renewed(int held, int asked, boolean majority, long sent) {
+        if (!this.leading || this.ballot != held) {
+            return;
+        }
+        if (majority) {
+            if (asked != held) {
+                LOGGER.info(String.format("Server port: %d moved its leader lease to ballot: %d", this.port, asked));
+            }
+            this.ballot = asked;
+            // Counted from before the replicas granted it, so it runs out here first
+            this.leaseUntil = sent + this.leaseMs;
+        } else if (System.currentTimeMillis() >= this.leaseUntil) {
+            LOGGER.severe(String.format("Server port: %d could not renew its leader lease.", this.port));
+            stepDown();
+        }
+        // Wakes up a takeover waiting for the lease to move
+        notifyAll();
+    }
+
+    /**
+     * Take over as leader after a majority granted the lease. Every Paxos
+     * group is caught up to the furthest replica before it takes clients.
+     * The catch up can take a state transfer per group, so it runs on its
+     * own thread while the ticker keeps renewing the lease.
+     * @param asked The ballot that won
+     * @param sent When the lease was asked for
+     * @param furthest Highest applied log slot of the granting replicas by group
+     */
+    private synchronized void won(int asked, long sent, int[] furthest) {
+        // A higher ballot was granted here while the election ran
+        if (this.grantedBallot != asked || this.grantedTo != this.port) {
+            return;
+        }
+        this.leading = true;
+        this.ballot = asked;
+        this.leaseUntil = sent + this.leaseMs;
+        int won = ++this.term;
+        this.catchUpPool.submit(() -> catchUp(won, furthest));
+    }
+
+    /**
+     * Catch every Paxos group up to the furthest replica and start taking
+     * clients, unless this replica stepped down in the meantime. A barrier
+     * committed in every group under the new ballot also finishes any slot
+     * the last leader got accepted but not applied anywhere yet, so reads
+     * under the lease see every write the last leader may acknowledge.
+     * A leader that cannot commit the barriers steps down.
+     * @param won The term the catch up is for
+     * @param furthest Highest applied log slot of the granting replicas by group
+     */
+    private void catchUp(int won, int[] furthest) {
+        boolean barriers;
+        try {
+            this.server.catchUpTo(furthest);
+            barriers = this.server.commitBarriers();
+        } catch (RuntimeException re) {
+            LOGGER.severe(String.format("Catching up as leader failed. %s", re.toString()));
+            barriers = false;
+        }
+        synchronized (this) {
+            if (!barriers) {
+                if (this.leading && this.term == won) {
+                    stepDown();
+                }
+                return;
+            }
+            if (!this.leading || this.term != won) {
+                return;
+            }
+            this.caughtUp = true;
+            this.server.setIsLeader(true);
+            LOGGER.info(String.format("Server port: %d is now leader with ballot: %d", this.port, this.ballot));
+        }
+    }
+
+    /**
+     * Check if the leader this replica granted the lease to is suspected
+     * to be down. Must hold the election's lock.
+     * @param now The time to check for
+     * @return True if its suspicion level reached the threshold or no leader was granted the lease
+     */
+    private boolean leaderSuspected(long now) {
+        if (this.leaderDetector == null || this.grantedTo == this.port) {
+            return true;
+        }
+        double phi = this.leaderDetector.phi(now);
+        if (phi < this.phiThreshold) {
+            return false;
+        }
+        LOGGER.info(String.format("Leader on port: %d is suspected down. Suspicion: %.2f", this.grantedTo, phi));
+        return true;
+    }
+
+    /**
+     * Give up leading. Must hold the election's lock.
+     */
+    private void stepDown() {
+        this.leading = false;
+        this.caughtUp = false;
+        this.electionDeadline = System.currentTimeMillis() + this.leaseMs + jitter();
+        this.server.setIsLeader(false);
+        notifyAll();
+        LOGGER.info(String.format("Server port: %d is no longer leader.", this.port));
+    }
+
+    /**
+     * Get a ballot above every ballot heard of. Ballots of different
+     * replicas never tie since each replica only uses its own residue.
+     * Must hold the election's lock.
+     * @return Integer ballot
+     */
+    private int nextBallot() {
+        int replicas = this.serverPorts.size();
+        int highest = Math.max(Math.max(this.highestBallot, this.grantedBallot), this.restoredBallot);
+        return (highest / replicas + 1) * replicas + this.serverPorts.indexOf(this.port);
+    }
+
+    /**
+     * Ask every replica, this one included, for the lease at once
+     * @param asked The ballot
+     * @return The replies that arrived within election.renewMs
+     */
+    private List<LeaseGrant> requestAll(int asked) {
+        List<Future<LeaseGrant>> calls = new ArrayList<Future<LeaseGrant>>();
+        for (int otherPort : this.serverPorts) {
+            calls.add(this.rpcPool.submit(() -> {
+                if (otherPort == this.port) {
+                    return grant(asked, this.port);
+                }
+                try {
+                    ChatServerInterface chatStub = ReplicaStubCache.getStub(otherPort);
+                    return chatStub.requestLease(asked, this.port);
+                } catch (RemoteException re) {
+                    ReplicaStubCache.invalidate(otherPort);
+                } catch (NotBoundException nbe) {
+                    LOGGER.severe(String.format("Server on port: %d is not bound!", otherPort));
+                }
+                return null;
+            }));
+        }
+
+        List<LeaseGrant> replies = new ArrayList<LeaseGrant>();
+        long deadline = System.currentTimeMillis() + this.renewMs;
+        for (Future<LeaseGrant> call : calls) {
+            try {
+                LeaseGrant reply = call.get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+                if (reply != null) {
+                    replies.add(reply);
+                }
+            } catch (TimeoutException te) {
+                call.cancel(true);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException ee) {
+                LOGGER.severe(String.format("Lease request failed. %s", ee.getCause().toString()));
+            }
+        }
+        return replies;
+    }
+
+    /**
+     * Get the highest applied log slot of every group from two replicas
+     * @param a Applied log slots by group
+     * @param b Applied log slots by group
+     * @return The higher slot of each group
+     */
+    private static int[] furthest(int[] a, int[] b) {
+        int[] max = new int[Math.max(a.length, b.length)];
+        for (int group = 0; group < max.length; group++) {
+            max[group] = Math.max(group < a.length ? a[group] : 0, group < b.length ? b[group] : 0);
+        }
+        return max;
+    }
+
+    /**
+     * Get a random wait so replicas do not run for leader at the same time
+     * @return Milliseconds
+     */
+    private long jitter() {
+        return ThreadLocalRandom.current().nextLong(this.jitterMs + 1);
+    }
+}
@@ -0,0 +1,62 @@
+package server;
+
+import java.io.Serializable;
+
+/**
+ * The reply of a replica to a candidate or leader asking for the leader
+ * lease. Carries whether the replica granted it, the highest ballot it
+ * granted so far and how far it applied every Paxos group, so a new
+ * leader knows what it has to catch up to.
+ */
+public class LeaseGrant implements Serializable {
+    private boolean granted;
+    private int ballot;
+    private int leaderPort;
+    private int[] appliedIndexes;
+
+    /**
+     * Constructor
+     * @param granted True if the replica granted the lease
+     * @param ballot The highest ballot the replica granted
+     * @param leaderPort The port of the replica holding the lease, or 0 if none
+     * @param appliedIndexes Highest log slot the replica applied by group number
+     */
+    public LeaseGrant(boolean granted, int ballot, int leaderPort, int[] appliedIndexes) {
+        this.granted = granted;
+        this.ballot = ballot;
+        this.leaderPort = leaderPort;
+        this.appliedIndexes = appliedIndexes;
+    }
+
+    /**
+     * Get if the replica granted the lease
+     * @return True if granted false otherwise
+     */
+    public boolean isGranted() {
+        return this.granted;
+    }
+
+    /**
+     * Get the highest ballot the replica granted
+     * @return Integer ballot
+     */
+    public int getBallot() {
+        return this.ballot;
+    }
+
+    /**
+     * Get the replica holding the lease as far as this replica knows
+     * @return The leader's port or 0 if none
+     */
+    public int getLeaderPort() {
+        return this.leaderPort;
+    }
+
+    /**
+     * Get how far the replica applied every Paxos group
+     * @return Highest applied log slot by group number
+     */
+    public int[] getAppliedIndexes() {
+        return this.appliedIndexes;
+    }
+}
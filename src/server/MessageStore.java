@@ -0,0 +1,529 @@
+package server;
+
+// Log Imports
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+// Java Imports
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Storage engine for the messages of every room history on a server.
+ * Messages are appended to memory-mapped segment files shared by all rooms.
+ * Only the last segment is written to; once it rolls over it is never
+ * changed again, so readers share it without locking.
+ *
+ * Each record is [int length][long previous record of the room][UTF-8 message],
+ * length -1 for a null message. A room remembers its latest record and the
+ * record of every indexEvery-th message, and a read walks back from the
+ * nearest one, handing out slices of the mapped segments instead of strings.
+ * A room's index holds at most maxIndex records. Once it is full every
+ * other record is dropped and the room indexes half as many messages, so
+ * the heap holds at most maxIndex records per room however long it gets.
+ *
+ * The store is where room histories live, a snapshot only records each
+ * room's message count and latest record. Segments are synced before a
+ * snapshot is saved and kept across restarts. A restarted server writes to
+ * a new segment after the existing ones, so records of an earlier run are
+ * never overwritten, and reopens each room of its snapshot by walking back
+ * from the room's latest record. Segments no reopened room reaches hold
+ * only messages the log is replayed into again, and are deleted.
+ *
+ * The store counts the rooms holding records in each segment. A room
+ * replaced by a transferred snapshot is released once the snapshot is
+ * saved, and a segment no room holds records in any more is deleted
+ * right away, except the one being written.
+ */
+public class MessageStore {
+    // Set up logging with a custom properties file
+    static Logger LOGGER = Logger.getLogger(MessageStore.class.getName());
+    static {
+        String filePath = "../config/serverlogging.properties";
+        try {
+            LogManager.getLogManager().readConfiguration(new FileInputStream(filePath));
+        } catch (IOException io)  {
+            LOGGER.severe("Logging config file not found.");
+        }
+    }
+
+    private static final int HEADER_SIZE = 12;
+    static final long NO_RECORD = -1;
+
+    private Path dir;
+    private int port;
+    private int segmentBytes;
+    private int indexEvery;
+    private int maxIndex;
+
+    // Read only views of every segment, published after a roll
+    private volatile ByteBuffer[] segments;
+
+    // The segment being written, its number and where the next record goes.
+    // Guarded by the store's lock.
+    private MappedByteBuffer active;
+    private int activeSegment;
+    private int activeEnd;
+
+    // First segment of this run and the number of rooms holding records in each segment.
+    // Guarded by the store's lock.
+    private int firstSegment;
+    private int[] rooms;
+
+    // Set once the store is closed, nothing is appended after it. Guarded by the store's lock.
+    private boolean closed;
+
+    /**
+     * The messages of one room in the store
+     */
+    public static class Room {
+        // Latest record of the room, published after the record is written
+        private volatile Tail tail;
+        // Address of every stride-th message, published before the tail
+        private volatile Index index;
+        // Segments the room has records in. Guarded by the store's lock.
+        private BitSet segments = new BitSet();
+        private boolean released;
+
+        /**
+         * Get the number of messages in the room
+         * @return Integer number of messages
+         */
+        public int size() {
+            Tail t = this.tail;
+            return t == null ? 0 : t.count;
+        }
+
+        /**
+         * Get the address of the room's latest record. Must be called while
+         * nothing is appended to the room, so it matches the size.
+         * @return The address or NO_RECORD if the room has no messages
+         */
+        long lastRecord() {
+            Tail t = this.tail;
+            return t == null ? NO_RECORD : t.address;
+        }
+    }
+
+    /**
+     * Number of messages in a room and the address of the last one
+     */
+    private static class Tail {
+        private final int count;
+        private final long address;
+
+        private Tail(int count, long address) {
+            this.count = count;
+            this.address = address;
+        }
+    }
+
+    /**
+     * Sparse index of a room. The addresses and their stride are replaced
+     * together, so a reader always sees a stride that matches the addresses.
+     */
+    private static class Index {
+        private final long[] addresses;
+        private final int stride;
+
+        private Index(long[] addresses, int stride) {
+            this.addresses = addresses;
+            this.stride = stride;
+        }
+    }
+
+    /**
+     * Constructor
+     * @param dir The directory segment files are written to
+     * @param port The server's port, segment files are named after it
+     * @param segmentBytes Size of a segment file
+     * @param indexEvery One message in this many is indexed per room
+     * @param maxIndex Most messages indexed per room
+     */
+    public MessageStore(String dir, int port, int segmentBytes, int indexEvery, int maxIndex) {
+        this.dir = Paths.get(dir);
+        this.port = port;
+        this.segmentBytes = segmentBytes;
+        this.indexEvery = Math.max(indexEvery, 1);
+        // Even, so the message that fills the index is still indexed at twice the stride
+        this.maxIndex = Math.max(maxIndex, 2) & ~1;
+        this.segments = new ByteBuffer[0];
+        this.activeSegment = -1;
+        this.rooms = new int[0];
+    }
+
+    /**
+     * Create the directory, map the segments of earlier runs read only and
+     * map a new segment after them to write to.
+     * @param keep False to delete the segments of earlier runs instead,
+     * when nothing of an earlier run is recovered
+     * @throws IOException
+     */
+    public void open(boolean keep) throws IOException {
+        Files.createDirectories(dir);
+        String prefix = String.format("history-%d-", port);
+        ByteBuffer[] existing = new ByteBuffer[0];
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "*.seg")) {
+            for (Path file : files) {
+                if (!keep) {
+                    Files.deleteIfExists(file);
+                    continue;
+                }
+                String name = file.getFileName().toString();
+                int segment;
+                try {
+                    segment = Integer.parseInt(name.substring(prefix.length(), name.length() - ".seg".length()));
+                } catch (NumberFormatException nfe) {
+                    continue;
+                }
+                if (segment >= existing.length) {
+                    existing = Arrays.copyOf(existing, segment + 1);
+                }
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    existing[segment] = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+            }
+        }
+        synchronized (this) {
+            this.segments = existing;
+            this.rooms = new int[existing.length];
+            this.activeSegment = existing.length - 1;
+            this.firstSegment = existing.length;
+            roll(0);
+        }
+    }
+
+    /**
+     * Reopen a room of an earlier run from its snapshot, rebuilding its
+     * index by walking back from its latest record
+     * @param count The number of messages in the room
+     * @param lastRecord The address of the room's latest record
+     * @return The room, or null if the segments do not hold its records
+     */
+    public Room openRoom(int count, long lastRecord) {
+        Room room = newRoom();
+        if (count == 0) {
+            return room;
+        }
+
+        ByteBuffer[] segs = this.segments;
+        int stride = indexEvery;
+        while ((count - 1) / stride + 1 > maxIndex) {
+            stride *= 2;
+        }
+        long[] index = new long[Math.max((count - 1) / stride + 1, 4)];
+        BitSet walked = new BitSet();
+        long address = lastRecord;
+        for (int seq = count - 1; seq >= 0; seq--) {
+            int segmentNo = (int) (address >>> 32);
+            int pos = (int) address;
+            if (address < 0 || segmentNo >= segs.length || segs[segmentNo] == null
+                || pos + HEADER_SIZE > segs[segmentNo].capacity()) {
+                LOGGER.severe(String.format("History segments of server port: %d do not hold message: %d of a room.", port, seq));
+                return null;
+            }
+            if (seq % stride == 0) {
+                index[seq / stride] = address;
+            }
+            walked.set(segmentNo);
+            address = segs[segmentNo].getLong(pos + 4);
+        }
+
+        synchronized (this) {
+            room.segments = walked;
+            for (int segment = walked.nextSetBit(0); segment >= 0; segment = walked.nextSetBit(segment + 1)) {
+                this.rooms[segment]++;
+            }
+        }
+        room.index = new Index(index, stride);
+        room.tail = new Tail(count, lastRecord);
+        return room;
+    }
+
+    /**
+     * Delete the segments of earlier runs that no reopened room reaches.
+     * Called once every room was reopened.
+     */
+    public synchronized void dropUnreached() {
+        ByteBuffer[] published = Arrays.copyOf(this.segments, this.segments.length);
+        int dropped = 0;
+        for (int segment = 0; segment < this.firstSegment; segment++) {
+            if (published[segment] == null || this.rooms[segment] > 0) {
+                continue;
+            }
+            if (deleteSegment(segment)) {
+                published[segment] = null;
+                dropped++;
+            }
+        }
+        this.segments = published;
+        if (dropped > 0) {
+            LOGGER.info(String.format("Deleted %d unused history segments for server port: %d", dropped, port));
+        }
+    }
+
+    /**
+     * Release a room that is no longer part of any history, once no saved
+     * snapshot marks it. Segments no other room holds records in are
+     * deleted, unless they are still being written.
+     * @param room The room
+     */
+    public synchronized void release(Room room) {
+        if (room.released) {
+            return;
+        }
+        room.released = true;
+        ByteBuffer[] published = this.segments;
+        int dropped = 0;
+        for (int segment = room.segments.nextSetBit(0); segment >= 0; segment = room.segments.nextSetBit(segment + 1)) {
+            this.rooms[segment]--;
+            if (this.rooms[segment] > 0 || segment == this.activeSegment || published[segment] == null) {
+                continue;
+            }
+            if (deleteSegment(segment)) {
+                if (published == this.segments) {
+                    published = Arrays.copyOf(published, published.length);
+                }
+                // Readers still holding the old segment keep their mapping
+                published[segment] = null;
+                dropped++;
+            }
+        }
+        this.segments = published;
+        if (dropped > 0) {
+            LOGGER.info(String.format("Deleted %d history segments of released rooms for server port: %d", dropped, port));
+        }
+    }
+
+    /**
+     * Delete a segment file. Must hold the store's lock.
+     * @param segment The segment number
+     * @return True if the file is gone
+     */
+    private boolean deleteSegment(int segment) {
+        try {
+            Files.deleteIfExists(dir.resolve(String.format("history-%d-%d.seg", port, segment)));
+            return true;
+        } catch (IOException io) {
+            LOGGER.severe(String.format("Could not delete history segment: %d for server port: %d. %s", segment, port, io.toString()));
+            return false;
+        }
+    }
+
+    /**
+     * Write the messages appended so far to disk. Called before a snapshot
+     * that refers to them is saved. Rolled segments were synced when they rolled.
+     */
+    public void sync() {
+        MappedByteBuffer segment;
+        synchronized (this) {
+            segment = this.active;
+        }
+        segment.force();
+    }
+
+    /**
+     * Write the messages appended so far to disk and stop taking new ones,
+     * the replica went down
+     */
+    public void close() {
+        MappedByteBuffer segment;
+        synchronized (this) {
+            segment = this.active;
+            this.closed = true;
+        }
+        segment.force();
+    }
+
+    /**
+     * Create a room with no messages
+     * @return The room
+     */
+    public Room newRoom() {
+        Room room = new Room();
+        room.index = new Index(new long[4], indexEvery);
+        return room;
+    }
+
+    /**
+     * Append the room's next message. The lock is only held to reserve room
+     * in the active segment, so messages of different rooms are written in
+     * parallel. A room's messages must be appended by one thread at a time.
+     * @param room The room
+     * @param message The message
+     * @return True if the message was stored
+     */
+    public boolean append(Room room, String message) {
+        byte[] bytes = message == null ? new byte[0] : message.getBytes(StandardCharsets.UTF_8);
+        int need = HEADER_SIZE + bytes.length;
+        MappedByteBuffer segment;
+        int segmentNo;
+        int pos;
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            if (activeEnd + need > active.capacity()) {
+                try {
+                    roll(need);
+                } catch (IOException io) {
+                    LOGGER.severe(String.format("Could not roll history segment for server port: %d. %s", port, io.toString()));
+                    return false;
+                }
+            }
+            segment = active;
+            segmentNo = activeSegment;
+            pos = activeEnd;
+            activeEnd += need;
+            if (!room.segments.get(segmentNo)) {
+                room.segments.set(segmentNo);
+                this.rooms[segmentNo]++;
+            }
+        }
+
+        // Readers only find the record through the room, which is updated after it is written
+        Tail tail = room.tail;
+        segment.putInt(pos, message == null ? -1 : bytes.length);
+        segment.putLong(pos + 4, tail == null ? NO_RECORD : tail.address);
+        ByteBuffer body = segment.duplicate();
+        body.position(pos + HEADER_SIZE);
+        body.put(bytes);
+
+        long address = ((long) segmentNo << 32) | pos;
+        int seq = tail == null ? 0 : tail.count;
+        Index index = room.index;
+        if (seq % index.stride == 0) {
+            int slot = seq / index.stride;
+            if (slot == index.addresses.length && slot >= maxIndex) {
+                index = coarsen(index);
+                slot = seq / index.stride;
+            } else if (slot == index.addresses.length) {
+                index = new Index(Arrays.copyOf(index.addresses, Math.min(index.addresses.length * 2, maxIndex)), index.stride);
+            }
+            index.addresses[slot] = address;
+            room.index = index;
+        }
+        room.tail = new Tail(seq + 1, address);
+        return true;
+    }
+
+    /**
+     * Keep every other indexed message of a full index. Readers keep the
+     * old index until the new one is published.
+     * @param index The full index
+     * @return A new index with twice the stride
+     */
+    private static Index coarsen(Index index) {
+        long[] addresses = new long[index.addresses.length];
+        for (int slot = 0; slot * 2 < index.addresses.length; slot++) {
+            addresses[slot] = index.addresses[slot * 2];
+        }
+        return new Index(addresses, index.stride * 2);
+    }
+
+    /**
+     * Read a range of a room's messages without locking or copying them
+     * @param room The room
+     * @param from The first sequence number wanted
+     * @param to One past the last sequence number wanted
+     * @return Slices of the mapped segments holding each message in order,
+     * null for a null message
+     */
+    public ByteBuffer[] read(Room room, int from, int to) {
+        Tail tail = room.tail;
+        Index index = room.index;
+        ByteBuffer[] segs = this.segments;
+        if (tail == null) {
+            return new ByteBuffer[0];
+        }
+        to = Math.min(to, tail.count);
+        if (from >= to) {
+            return new ByteBuffer[0];
+        }
+
+        // Start at the first indexed message at or after the last one wanted, or at the latest
+        int seq = tail.count - 1;
+        long address = tail.address;
+        int slot = (to - 1 + index.stride - 1) / index.stride;
+        if ((long) slot * index.stride < tail.count && slot < index.addresses.length) {
+            seq = slot * index.stride;
+            address = index.addresses[slot];
+        }
+
+        ByteBuffer[] slices = new ByteBuffer[to - from];
+        while (seq >= from) {
+            ByteBuffer segment = segs[(int) (address >>> 32)];
+            int pos = (int) address;
+            if (seq < to) {
+                int length = segment.getInt(pos);
+                if (length >= 0) {
+                    ByteBuffer slice = segment.duplicate();
+                    slice.position(pos + HEADER_SIZE);
+                    slice.limit(pos + HEADER_SIZE + length);
+                    slices[seq - from] = slice.slice();
+                }
+            }
+            address = segment.getLong(pos + 4);
+            seq--;
+        }
+        return slices;
+    }
+
+    /**
+     * Decode a message read from the store
+     * @param slice The message's slice or null
+     * @return The message
+     */
+    public static String decode(ByteBuffer slice) {
+        if (slice == null) {
+            return null;
+        }
+        return StandardCharsets.UTF_8.decode(slice.duplicate()).toString();
+    }
+
+    /**
+     * Map a new segment to write to. The segment that was being written is
+     * synced and never changed again.
+     * @param need Bytes of the record that did not fit
+     * @throws IOException
+     */
+    private void roll(int need) throws IOException {
+        if (active != null) {
+            active.force();
+        }
+        int segment = activeSegment + 1;
+        Path file = dir.resolve(String.format("history-%d-%d.seg", port, segment));
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentBytes, need));
+        }
+
+        ByteBuffer[] published = Arrays.copyOf(this.segments, segment + 1);
+        published[segment] = mapped.asReadOnlyBuffer();
+        int previous = this.activeSegment;
+        this.rooms = Arrays.copyOf(this.rooms, segment + 1);
+        // Every room holding records in the segment that was being written was released meanwhile
+        if (previous >= this.firstSegment && this.rooms[previous] == 0 && deleteSegment(previous)) {
+            published[previous] = null;
+        }
+        this.segments = published;
+        this.active = mapped;
+        this.activeSegment = segment;
+        this.activeEnd = 0;
+        if (segment > firstSegment) {
+            LOGGER.info(String.format("Rolled to history segment: %d for server port: %d", segment, port));
+        }
+    }
+}
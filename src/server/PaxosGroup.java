@@ -0,0 +1,746 @@
+package server;
+
+// Log Imports
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+// RMI Registry Imports
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+
+// Java Imports
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Threading support
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+
+// Paxos Specific
+import paxos.Acceptor;
+import paxos.Learner;
+import paxos.Proposer;
+import paxos.WriteAheadLog;
+
+/**
+ * One Paxos group on a replica: its own proposer, acceptor, learner and
+ * log, and the part of the chat state the group's log is applied to.
+ * Group 0 holds the user accounts, every other group holds the rooms the
+ * group ring places on it. Groups run their consensus independently of
+ * each other, each with its leader on a different replica.
+ */
+public class PaxosGroup {
+    /**
+     * Logging Setup
+     */
+    static Logger LOGGER = Logger.getLogger(PaxosGroup.class.getName());
+    static {
+        String filePath = "../config/serverlogging.properties";
+        try {
+            LogManager.getLogManager().readConfiguration(new FileInputStream(filePath));
+        } catch (IOException io)  {
+            LOGGER.severe("Logging config file not found.");
+        }
+    }
+
+    private int group;
+    private int port;
+
+    // Paxos
+    private Proposer proposer;
+    private Acceptor acceptor;
+    private Learner learner;
+
+    // Durable log of this group's Paxos state, null if disabled
+    private WriteAheadLog wal;
+    private volatile Snapshot savedSnapshot;
+
+    // Saves new snapshots in the background, one save is queued at a time
+    private ExecutorService snapshotSaver;
+    private AtomicBoolean saveQueued;
+
+    // Latest snapshot the snapshot thread finished copying the applied state for
+    private volatile Snapshot copiedSnapshot;
+
+    // Latest snapshot serialized for rejoining replicas
+    private Snapshot servedSnapshot;
+    private byte[] servedSnapshotBytes;
+    private int transferChunkBytes;
+    private int transferChunkMessages;
+    private final Object transferLock = new Object();
+
+    // The state this group's log is applied to
+    private VersionedMap<String, String> userDatabase;
+    private RoomMembers chatRoomUsers;
+    private Map<String, List<String>> chatRoomHistory;
+    private VersionedSet<String> loggedInUsers;
+
+    // Where room histories store their messages, null to keep them in memory
+    private MessageStore messageStore;
+
+    // Shared with the server for background work
+    private ExecutorService executorService;
+
+    // All server replica ports
+    private List<Integer> serverPorts;
+
+    // Highest leader lease ballot this replica granted, older ballots' proposals are refused
+    private IntSupplier leaseBallot;
+
+    // Set while slots the leader reported as committed are being learned
+    private AtomicBoolean learning;
+
+    // Highest log slot a read of the group on this replica has to see
+    private AtomicInteger readIndex;
+
+    // Number of log slots to pull per call when catching up
+    private static final int CATCH_UP_SLOTS = 256;
+
+    // How long closing the group waits for a snapshot save that is running
+    private static final long SAVE_CLOSE_TIMEOUT_MS = 10000;
+
+    /**
+     * Constructor. Rebuilds the group's state from its snapshot and log
+     * of an earlier run when the log is enabled.
+     * @param group The Paxos group
+     * @param port The port of the replica the group runs on
+     * @param messageStore Where room histories store their messages, or null
+     * @param executorService Threads for background work
+     */
+    public PaxosGroup(int group, int port, MessageStore messageStore, ExecutorService executorService) {
+        this.group = group;
+        this.port = port;
+        this.messageStore = messageStore;
+        this.executorService = executorService;
+        this.userDatabase = new VersionedMap<String, String>();
+        this.chatRoomUsers = new RoomMembers();
+        this.chatRoomHistory = new ConcurrentHashMap<String, List<String>>();
+        this.loggedInUsers = new VersionedSet<String>();
+
+        this.proposer = new Proposer(group);
+        this.acceptor = new Acceptor();
+        this.learner = new Learner();
+        this.learner.setMessageStore(messageStore);
+        this.learning = new AtomicBoolean(false);
+        this.saveQueued = new AtomicBoolean(false);
+        this.snapshotSaver = Executors.newSingleThreadExecutor((task) -> {
+            Thread saver = new Thread(task, String.format("snapshot-saver-%d", group));
+            saver.setDaemon(true);
+            return saver;
+        });
+        this.readIndex = new AtomicInteger(0);
+        this.transferChunkBytes = ServerConfig.getInt("paxos.transfer.chunkBytes", 65536);
+        this.transferChunkMessages = Math.max(ServerConfig.getInt("paxos.transfer.chunkMessages", 1024), 1);
+
+        if (ServerConfig.getBoolean("paxos.wal.enabled", true)) {
+            recoverFromLog();
+        }
+
+        // Start batching proposals
+        this.proposer.start();
+    }
+
+    /**
+     * Set the replicas the group runs on
+     * @param otherPorts All server ports
+     * @param local The replica the group is on, called without going through RMI
+     */
+    public void setServers(List<Integer> otherPorts, ChatServerInterface local) {
+        this.serverPorts = otherPorts;
+        this.proposer.setPorts(otherPorts);
+        this.proposer.setLocalServer(local, this.port);
+        this.learner.setLogSource(this::fetchCommittedLog);
+    }
+
+    /**
+     * Set where the highest leader lease ballot this replica granted comes from.
+     * The proposer proposes under it and the acceptor refuses proposal IDs of older ballots.
+     * @param ballot The lease ballot
+     */
+    public void setLeaseBallot(IntSupplier ballot) {
+        this.leaseBallot = ballot;
+        this.proposer.setLeaseBallot(ballot);
+    }
+
+    /**
+     * Get the lease ballot of the highest proposal ID the acceptor promised,
+     * including what it promised before a restart
+     * @return Integer ballot
+     */
+    public int getPromisedBallot() {
+        return Proposer.ballotOf(this.acceptor.getPromisedId());
+    }
+
+    /**
+     * Get the Paxos group number
+     * @return Integer group
+     */
+    public int getGroup() {
+        return this.group;
+    }
+
+    /**
+     * Get the proposer
+     * @return Proposer object
+     */
+    public Proposer getProposer() {
+        return this.proposer;
+    }
+
+    /**
+     * Get the user database
+     * @return Map of usernames and passwords
+     */
+    public Map<String, String> getUserDB() {
+        return this.userDatabase;
+    }
+
+    /**
+     * Get the group's rooms and their users
+     * @return RoomMembers object
+     */
+    public RoomMembers getRoomMembers() {
+        return this.chatRoomUsers;
+    }
+
+    /**
+     * Get the group's rooms and their histories
+     * @return Map of room names and their RoomHistory
+     */
+    public Map<String, List<String>> getChatRoomHistory() {
+        return this.chatRoomHistory;
+    }
+
+    /**
+     * Get the logged in users
+     * @return Set of usernames
+     */
+    public Set<String> getLoggedInUsers() {
+        return this.loggedInUsers;
+    }
+
+    /**
+     * Get the highest log slot of the group this replica applied
+     * @return Integer log slot
+     */
+    public int getAppliedIndex() {
+        return this.learner.getAppliedIndex();
+    }
+
+    /**
+     * Get the highest log slot a read of the group on this replica has to see
+     * @return Integer log slot
+     */
+    public int getReadIndex() {
+        return this.readIndex.get();
+    }
+
+    /**
+     * Make reads of the group on this replica see the log slot
+     * @param slot A slot that was acknowledged or that the last leader applied
+     */
+    public void raiseReadIndex(int slot) {
+        this.readIndex.accumulateAndGet(slot, Math::max);
+    }
+
+    /**
+     * Propose an operation with this replica's proposer of the group
+     * @param operation The operation
+     * @param key The username
+     * @param val The password
+     * @param message The message if sending one
+     * @param chatroom The chatroom if the operation is on one
+     * @return Response object with the result and the log slot it was committed in
+     */
+    public Response propose(String operation, String key, String val, String message, String chatroom) {
+        return this.proposer.propose(operation, key, val, message, chatroom);
+    }
+
+    /**
+     * Wait until this replica applied the log slot
+     * @param slot The log slot
+     * @param timeoutMs How long to wait
+     * @return True if the slot was applied in time
+     */
+    public boolean awaitSlot(int slot, long timeoutMs) {
+        return this.learner.awaitSlot(slot, timeoutMs);
+    }
+
+    // ======================================
+
+    //          PAXOS Methods
+    //      Prepare, Accept, Commit
+
+    // =====================================
+
+    /**
+     * Acceptor's side of phase 1
+     * @param propId The proposal ID
+     * @param fromSlot The first log slot being prepared
+     * @return Promise -> Promised or denied with the already accepted values
+     */
+    public Promise prepare(int propId, int fromSlot) {
+        if (isFenced(propId)) {
+            // Tell the old leader where the newer lease's IDs start
+            return new Promise(false, this.leaseBallot.getAsInt() * Proposer.BALLOT_SPAN);
+        }
+        Promise promise = this.acceptor.prepare(propId, fromSlot);
+        // Slots the learner applied are chosen, a new leader does not have to finish them
+        if (promise.isPromised()) {
+            promise.setCompactedSlot(Math.max(promise.getCompactedSlot(), this.learner.getAppliedIndex()));
+        }
+        return promise;
+    }
+
+    /**
+     * Acceptor's side of phase 2
+     * @param propId The proposal ID
+     * @param slot The log slot
+     * @param val The proposed batch of operations
+     * @param commitIndex The leader's commit index
+     * @return The accepted batch or null
+     */
+    public DBBatch accept(int propId, int slot, DBBatch val, int commitIndex) {
+        if (isFenced(propId)) {
+            return null;
+        }
+        DBBatch accepted = this.acceptor.accept(propId, slot, val);
+        if (accepted != null) {
+            learnCommitted(propId, commitIndex);
+        }
+        return accepted;
+    }
+
+    /**
+     * Check if the proposal ID was made under an older lease ballot than
+     * this replica granted. A leader whose lease was replaced can then no
+     * longer get its accepts through this replica.
+     * @param propId The proposal ID
+     * @return True if the proposal has to be refused
+     */
+    private boolean isFenced(int propId) {
+        return this.leaseBallot != null && Proposer.ballotOf(propId) < this.leaseBallot.getAsInt();
+    }
+
+    /**
+     * Apply the slots the leader reported as committed that this replica
+     * accepted with the leader's proposal ID. Catches up a replica whose
+     * commit messages are still on the way without holding up the accept.
+     * Slots it did not accept with that ID are fetched from the other
+     * replicas. One learn runs at a time and the next accept starts
+     * another if slots are still missing.
+     * @param propId The leader's proposal ID
+     * @param commitIndex The leader's commit index
+     */
+    private void learnCommitted(int propId, int commitIndex) {
+        if (commitIndex <= this.learner.getAppliedIndex() || !this.learning.compareAndSet(false, true)) {
+            return;
+        }
+        executorService.submit(() -> {
+            try {
+                Map<Integer, DBBatch> chosen = this.acceptor.getAcceptedWith(propId, this.learner.getAppliedIndex() + 1, commitIndex);
+                if (!chosen.isEmpty()) {
+                    this.learner.applyFetched(chosen, userDatabase, chatRoomUsers, chatRoomHistory, loggedInUsers);
+                }
+
+                // The gap the accepted values did not cover comes from the log of another replica
+                int applied = this.learner.getAppliedIndex();
+                while (applied < commitIndex) {
+                    Map<Integer, DBBatch> missed = fetchCommittedLog(applied + 1, Math.min(commitIndex - applied, CATCH_UP_SLOTS));
+                    if (missed.isEmpty()
+                        || this.learner.applyFetched(missed, userDatabase, chatRoomUsers, chatRoomHistory, loggedInUsers) <= applied) {
+                        break;
+                    }
+                    applied = this.learner.getAppliedIndex();
+                }
+            } finally {
+                this.learning.set(false);
+            }
+        });
+    }
+
+    /**
+     * Learner's side of a commit
+     * @param slot The log slot
+     * @param batch The batch of operations that was accepted
+     * @return String result of each operation in the batch
+     */
+    public List<String> commit(int slot, DBBatch batch) {
+        List<String> results = this.learner.commit(slot, userDatabase, chatRoomUsers, chatRoomHistory, loggedInUsers, batch);
+        // Slots the learner compacted are chosen, the acceptor can forget them too
+        this.acceptor.truncate(this.learner.getCompactedIndex());
+        Snapshot latest = this.learner.getSnapshot();
+        if (latest != this.copiedSnapshot || (this.wal != null && latest != this.savedSnapshot)) {
+            queueSnapshotSave();
+        }
+        return results;
+    }
+
+    /**
+     * Get committed log slots so a lagging learner can catch up
+     * @param fromSlot The first slot wanted
+     * @param maxEntries The most slots to return
+     * @return Map of log slot to committed batch
+     */
+    public Map<Integer, DBBatch> getCommittedLog(int fromSlot, int maxEntries) {
+        return this.learner.getCommittedLog(fromSlot, maxEntries);
+    }
+
+    /**
+     * Fetch committed log slots this group's learner missed from the other replicas
+     * @param fromSlot The first missing slot
+     * @param maxEntries The most slots to fetch
+     * @return Map of log slot to committed batch from the first replica that had them
+     */
+    private Map<Integer, DBBatch> fetchCommittedLog(int fromSlot, int maxEntries) {
+        for (int otherPort : serverPorts) {
+            if (otherPort == this.port) {
+                continue;
+            }
+            try {
+                ChatServerInterface chatStub = ReplicaStubCache.getStub(otherPort);
+                Map<Integer, DBBatch> log = chatStub.getCommittedLog(group, fromSlot, maxEntries);
+                if (!log.isEmpty()) {
+                    LOGGER.info(String.format("Fetched %d log slots of group: %d from server port: %d", log.size(), group, otherPort));
+                    return log;
+                }
+            } catch (RemoteException re) {
+                ReplicaStubCache.invalidate(otherPort);
+                LOGGER.severe(String.format("Could not fetch log from server port: %d", otherPort));
+            } catch (NotBoundException nbe) {
+                LOGGER.severe(String.format("Server on port: %d is not bound!", otherPort));
+            }
+        }
+        return new HashMap<Integer, DBBatch>();
+    }
+
+    // ======================================
+
+    //          State Transfer
+
+    // =====================================
+
+    /**
+     * Stop the group's threads and close its log, the replica went down.
+     * A snapshot save that is running finishes first.
+     */
+    public void close() {
+        this.proposer.close();
+        this.learner.close();
+        this.snapshotSaver.shutdown();
+        try {
+            if (!this.snapshotSaver.awaitTermination(SAVE_CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                this.snapshotSaver.shutdownNow();
+            }
+        } catch (InterruptedException ie) {
+            this.snapshotSaver.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        if (this.wal != null) {
+            this.wal.close();
+        }
+    }
+
+    /**
+     * Get a chunk of this group's latest snapshot
+     * @param lastSlot The snapshot slot being read, or 0 to start on the latest snapshot
+     * @param offset The first byte wanted
+     * @return The chunk or null if the group has no snapshot
+     */
+    public SnapshotChunk getSnapshotChunk(int lastSlot, int offset) {
+        byte[] bytes;
+        Snapshot latest;
+        synchronized (this.transferLock) {
+            latest = this.learner.getSnapshot();
+            if (latest == null) {
+                return null;
+            }
+            // Serialize each snapshot once, outside the Paxos locks
+            if (latest != this.servedSnapshot) {
+                try {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    ObjectOutputStream objOut = new ObjectOutputStream(out);
+                    objOut.writeObject(latest);
+                    objOut.flush();
+                    this.servedSnapshotBytes = out.toByteArray();
+                    this.servedSnapshot = latest;
+                } catch (IOException io) {
+                    LOGGER.severe(String.format("Could not serialize snapshot. %s", io.toString()));
+                    return null;
+                }
+            }
+            bytes = this.servedSnapshotBytes;
+        }
+
+        // The snapshot was replaced since the reader started, start it on the new one
+        if (lastSlot != latest.getLastSlot()) {
+            offset = 0;
+        }
+        int end = Math.min(bytes.length, offset + this.transferChunkBytes);
+        return new SnapshotChunk(latest.getLastSlot(), bytes.length, Arrays.copyOfRange(bytes, offset, end));
+    }
+
+    /**
+     * Get messages of a room a transferred snapshot marks, as slices of the message store
+     * @param chatName The chatroom's name
+     * @param from The first sequence number wanted
+     * @param to One past the last sequence number the snapshot marks
+     * @return The page or null if the room does not exist
+     */
+    public HistoryPage getSnapshotHistory(String chatName, int from, int to) {
+        RoomHistory history = (RoomHistory) this.chatRoomHistory.get(chatName);
+        if (history == null) {
+            return null;
+        }
+        return history.page(from, Math.max(Math.min(to - from, this.transferChunkMessages), 0));
+    }
+
+    /**
+     * Bring this group up to date from the donor after the replica restarted.
+     * Loads the donor's snapshot if it is ahead, with the messages it marks
+     * copied from the donor's store, then pulls the log after it.
+     * @param donor The donor replica's port
+     */
+    public void rejoin(int donor) {
+        try {
+            ChatServerInterface donorStub = ReplicaStubCache.getStub(donor);
+            Snapshot snap = fetchSnapshot(donorStub);
+            if (snap != null && snap.getLastSlot() > this.learner.getAppliedIndex()) {
+                snap = fetchHistories(donorStub, snap);
+            }
+            if (snap != null && snap.getLastSlot() > this.learner.getAppliedIndex()) {
+                if (this.learner.installSnapshot(snap, userDatabase, chatRoomUsers, chatRoomHistory, loggedInUsers)) {
+                    this.acceptor.truncate(snap.getLastSlot());
+                    if (this.wal != null) {
+                        saveSnapshot();
+                    } else {
+                        releaseReplacedRooms();
+                    }
+                }
+            }
+
+            // Pull the log after the snapshot until the donor has nothing newer
+            while (true) {
+                int applied = this.learner.getAppliedIndex();
+                Map<Integer, DBBatch> tail = donorStub.getCommittedLog(group, applied + 1, CATCH_UP_SLOTS);
+                if (tail.isEmpty()
+                    || this.learner.applyFetched(tail, userDatabase, chatRoomUsers, chatRoomHistory, loggedInUsers) <= applied) {
+                    break;
+                }
+            }
+            LOGGER.info(String.format("Group: %d rejoined at log slot: %d", group, this.learner.getAppliedIndex()));
+        } catch (RemoteException re) {
+            ReplicaStubCache.invalidate(donor);
+            LOGGER.severe(String.format("State transfer of group: %d from server port: %d failed. %s", group, donor, re.toString()));
+        } catch (NotBoundException nbe) {
+            LOGGER.severe(String.format("Server on port: %d is not bound!", donor));
+        }
+    }
+
+    /**
+     * Give the messages of the rooms installed snapshots or creates replaced
+     * back to the store. Only those replaced up to the saved snapshot, an
+     * older saved snapshot may still mark the others. Without the log the
+     * latest snapshot counts.
+     */
+    private void releaseReplacedRooms() {
+        Snapshot done = this.wal != null ? this.savedSnapshot : this.learner.getSnapshot();
+        if (done == null) {
+            return;
+        }
+        for (RoomHistory room : this.learner.takeReplacedRooms(done.getLastSlot())) {
+            room.release();
+        }
+    }
+
+    /**
+     * Read the donor's latest snapshot of this group chunk by chunk
+     * @param donorStub The donor replica
+     * @return The snapshot or null if the donor has none
+     * @throws RemoteException
+     */
+    private Snapshot fetchSnapshot(ChatServerInterface donorStub) throws RemoteException {
+        int lastSlot = 0;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        while (true) {
+            SnapshotChunk chunk = donorStub.getSnapshotChunk(group, lastSlot, bytes.size());
+            if (chunk == null) {
+                return null;
+            }
+            if (chunk.getLastSlot() != lastSlot) {
+                // The donor took a newer snapshot, start over on it
+                lastSlot = chunk.getLastSlot();
+                bytes.reset();
+                if (lastSlot <= this.learner.getAppliedIndex()) {
+                    return null;
+                }
+            }
+            bytes.write(chunk.getData(), 0, chunk.getData().length);
+            if (bytes.size() >= chunk.getTotalBytes()) {
+                break;
+            }
+        }
+
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            Snapshot snap = (Snapshot) in.readObject();
+            LOGGER.info(String.format("Fetched snapshot of group: %d at slot: %d, %d bytes", group, snap.getLastSlot(), bytes.size()));
+            return snap;
+        } catch (IOException | ClassNotFoundException e) {
+            LOGGER.severe(String.format("Could not read transferred snapshot. %s", e.toString()));
+            return null;
+        }
+    }
+
+    /**
+     * Copy the messages a transferred snapshot marks in the donor's store
+     * into this replica's store, page by page
+     * @param donorStub The donor replica
+     * @param snap The donor's snapshot
+     * @return The snapshot marking the copies, or null if the donor lost a room
+     * @throws RemoteException
+     */
+    private Snapshot fetchHistories(ChatServerInterface donorStub, Snapshot snap) throws RemoteException {
+        Map<String, List<String>> histories = new HashMap<String, List<String>>();
+        int copied = 0;
+        for (Map.Entry<String, RoomHistory.Mark> room : snap.getChatRoomHistory().entrySet()) {
+            RoomHistory.Mark mark = room.getValue();
+            if (!mark.isStored()) {
+                histories.put(room.getKey(), RoomHistory.restore(this.messageStore, mark));
+                continue;
+            }
+            RoomHistory history = new RoomHistory(this.messageStore);
+            while (history.size() < mark.getCount()) {
+                HistoryPage page = donorStub.getSnapshotHistory(group, room.getKey(), history.size(), mark.getCount());
+                if (page == null || page.getMessages().isEmpty() || !history.addAll(page.getMessages())) {
+                    LOGGER.severe(String.format("Server could not copy the history of chatroom: %s in group: %d", room.getKey(), group));
+                    return null;
+                }
+            }
+            histories.put(room.getKey(), history);
+            copied += mark.getCount();
+        }
+        LOGGER.info(String.format("Copied %d messages of group: %d at slot: %d", copied, group, snap.getLastSlot()));
+        return snap.withHistories(histories);
+    }
+
+    // ======================================
+
+    //          Write Ahead Log
+
+    // =====================================
+
+    /**
+     * Load the saved snapshot, replay the log after it and start logging
+     * the acceptor's and learner's state.
+     */
+    private void recoverFromLog() {
+        this.wal = new WriteAheadLog(this.port, this.group);
+
+        Snapshot saved = this.wal.loadSnapshot();
+        if (saved != null) {
+            this.learner.installSnapshot(saved, userDatabase, chatRoomUsers, chatRoomHistory, loggedInUsers);
+            this.savedSnapshot = saved;
+        }
+
+        try {
+            this.wal.replay(new WriteAheadLog.Replayer() {
+                @Override
+                public void promise(int propId) {
+                    acceptor.restorePromise(propId);
+                }
+
+                @Override
+                public void accept(int propId, int slot, DBBatch val) {
+                    acceptor.restoreAccepted(propId, slot, val);
+                }
+
+                @Override
+                public void commit(int slot, DBBatch val) {
+                    learner.restoreCommitted(slot, val);
+                }
+            });
+        } catch (IOException io) {
+            LOGGER.severe(String.format("Could not open log of group: %d for server port: %d. Running without it. %s",
+                this.group, this.port, io.toString()));
+            this.wal = null;
+            return;
+        }
+        this.learner.applyLogged(userDatabase, chatRoomUsers, chatRoomHistory, loggedInUsers);
+        this.acceptor.truncate(this.learner.getCompactedIndex());
+
+        this.acceptor.setLog(this.wal);
+        this.learner.setLog(this.wal);
+    }
+
+    /**
+     * Have the snapshot thread finish copying the applied state into the
+     * learner's latest snapshot, and save it when the log is enabled. A save
+     * that is queued already picks up the latest one when it runs, so
+     * snapshots taken in between are not saved one by one.
+     */
+    private void queueSnapshotSave() {
+        if (this.saveQueued.compareAndSet(false, true)) {
+            this.snapshotSaver.submit(() -> {
+                // A snapshot taken while this one is saved queues the next save
+                this.saveQueued.set(false);
+                Snapshot latest = this.learner.getSnapshot();
+                if (latest != null) {
+                    // The learner only started the copies, finishing them here keeps them off the apply path
+                    latest.finishCopies();
+                    this.copiedSnapshot = latest;
+                }
+                if (this.wal != null) {
+                    saveSnapshot();
+                } else {
+                    releaseReplacedRooms();
+                }
+            });
+        }
+    }
+
+    /**
+     * Save the learner's latest snapshot and roll the log over to a new
+     * segment holding only what came after it. Commits queue this on the
+     * snapshot thread instead of waiting for it. The rooms installed
+     * snapshots or creates replaced up to it are released once it is saved.
+     */
+    private synchronized void saveSnapshot() {
+        Snapshot latest = this.learner.getSnapshot();
+        if (latest == this.savedSnapshot) {
+            return;
+        }
+        // The snapshot marks messages in the store, they must be on disk before it is
+        if (this.messageStore != null) {
+            this.messageStore.sync();
+        }
+        // The snapshot is an immutable copy, write it without holding the learner or acceptor
+        if (!this.wal.saveSnapshot(latest)) {
+            return;
+        }
+
+        // Nothing may be appended while the checkpoint is taken and the log rolls
+        synchronized (this.learner) {
+            synchronized (this.acceptor) {
+                List<byte[]> checkpoint = this.acceptor.checkpoint();
+                checkpoint.addAll(this.learner.checkpoint(latest.getLastSlot()));
+                this.wal.roll(checkpoint);
+            }
+        }
+        this.savedSnapshot = latest;
+        releaseReplacedRooms();
+    }
+}
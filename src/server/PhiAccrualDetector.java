@@ -0,0 +1,152 @@
+package server;
+
+// Java Imports
+import java.util.ArrayDeque;
+
+/**
+ * Phi accrual failure detector for one peer. Instead of calling a peer dead
+ * after one missed heartbeat, it keeps the times between the peer's last
+ * heartbeats and turns the time since the latest one into a suspicion
+ * level phi. A phi of 1 means a 10% chance the peer is still alive and
+ * about to answer, 2 means 1%, 3 means 0.1% and so on. The intervals are
+ * assumed to be normally distributed, so a peer that answers slowly but
+ * steadily is suspected later than one that always answers on time.
+ * Used by the coordinator for the replicas and by clients for their server.
+ */
+public class PhiAccrualDetector {
+    // Suspicion level at which the peer is taken to be down
+    private double threshold;
+
+    // Most intervals kept
+    private int windowSize;
+
+    // Lowest standard deviation used, so very regular heartbeats do not make phi jump
+    private double minStdDevMs;
+
+    // Extra time a peer may take before it becomes suspicious, such as a GC pause
+    private double acceptablePauseMs;
+
+    // Interval assumed before the first heartbeat arrived
+    private long firstIntervalMs;
+
+    // Times between the latest heartbeats with their running sum and sum of squares
+    private ArrayDeque<Long> intervals;
+    private double intervalSum;
+    private double squaredSum;
+
+    // When the latest heartbeat arrived
+    private long lastHeartbeat;
+
+    /**
+     * Constructor. The peer is watched as if a heartbeat arrived now, so a
+     * peer that never answers becomes suspected too.
+     * @param threshold Suspicion level at which the peer is taken to be down
+     * @param windowSize Most intervals kept
+     * @param minStdDevMs Lowest standard deviation of the intervals used
+     * @param acceptablePauseMs Extra time a peer may take before it becomes suspicious
+     * @param firstIntervalMs Interval assumed before the first heartbeat arrived
+     */
+    public PhiAccrualDetector(double threshold, int windowSize, long minStdDevMs, long acceptablePauseMs, long firstIntervalMs) {
+        this.threshold = threshold;
+        this.windowSize = Math.max(windowSize, 2);
+        this.minStdDevMs = Math.max(minStdDevMs, 1);
+        this.acceptablePauseMs = acceptablePauseMs;
+        this.firstIntervalMs = firstIntervalMs;
+        this.intervals = new ArrayDeque<Long>();
+        reset();
+        this.lastHeartbeat = System.currentTimeMillis();
+    }
+
+    /**
+     * Record a heartbeat arriving now
+     */
+    public void heartbeat() {
+        heartbeat(System.currentTimeMillis());
+    }
+
+    /**
+     * Record a heartbeat. A heartbeat from a peer that was already taken
+     * to be down starts its history over, the peer restarted and the gap
+     * says nothing about its heartbeats.
+     * @param nowMs When the heartbeat arrived
+     */
+    public synchronized void heartbeat(long nowMs) {
+        if (phi(nowMs) >= this.threshold) {
+            reset();
+        } else {
+            addInterval(nowMs - this.lastHeartbeat);
+        }
+        this.lastHeartbeat = nowMs;
+    }
+
+    /**
+     * Get the suspicion level of the peer now
+     * @return Phi
+     */
+    public double phi() {
+        return phi(System.currentTimeMillis());
+    }
+
+    /**
+     * Get the suspicion level of the peer
+     * @param nowMs The time to get it for
+     * @return Phi
+     */
+    public synchronized double phi(long nowMs) {
+        int n = this.intervals.size();
+        double mean = this.intervalSum / n;
+        double variance = this.squaredSum / n - mean * mean;
+        double stdDev = Math.max(Math.sqrt(Math.max(variance, 0)), this.minStdDevMs);
+
+        // Logistic approximation of the normal distribution's tail
+        double y = (nowMs - this.lastHeartbeat - mean - this.acceptablePauseMs) / stdDev;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (y > 0) {
+            return -Math.log10(e / (1.0 + e));
+        }
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+
+    /**
+     * Check if the peer is still taken to be up
+     * @return True if its suspicion level is below the threshold
+     */
+    public boolean isAvailable() {
+        return phi() < this.threshold;
+    }
+
+    /**
+     * Get the suspicion level at which the peer is taken to be down
+     * @return The threshold
+     */
+    public double getThreshold() {
+        return this.threshold;
+    }
+
+    /**
+     * Forget the intervals and start from the assumed first interval
+     */
+    private void reset() {
+        this.intervals.clear();
+        this.intervalSum = 0;
+        this.squaredSum = 0;
+        // Seed with a spread around the assumed interval so the first heartbeats are not judged too strictly
+        addInterval(this.firstIntervalMs - this.firstIntervalMs / 4);
+        addInterval(this.firstIntervalMs + this.firstIntervalMs / 4);
+    }
+
+    /**
+     * Add an interval, dropping the oldest once the window is full
+     * @param intervalMs Time between two heartbeats
+     */
+    private void addInterval(long intervalMs) {
+        if (this.intervals.size() == this.windowSize) {
+            long oldest = this.intervals.removeFirst();
+            this.intervalSum -= oldest;
+            this.squaredSum -= (double) oldest * oldest;
+        }
+        this.intervals.addLast(intervalMs);
+        this.intervalSum += intervalMs;
+        this.squaredSum += (double) intervalMs * intervalMs;
+    }
+}
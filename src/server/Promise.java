@@ -0,0 +1,89 @@
+package server;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The reply of an acceptor to a prepare message. Carries whether the
+ * acceptor promised and the values it already accepted for the prepared slots.
+ */
+public class Promise implements Serializable {
+    private boolean promised;
+    private int promisedId;
+    private Map<Integer, Integer> acceptedIds;
+    private Map<Integer, DBBatch> acceptedVals;
+    private int compactedSlot;
+
+    /**
+     * Constructor
+     * @param promised True if the acceptor promised the proposal
+     * @param promisedId The highest proposal ID the acceptor has promised
+     */
+    public Promise(boolean promised, int promisedId) {
+        this.promised = promised;
+        this.promisedId = promisedId;
+        this.acceptedIds = new HashMap<Integer, Integer>();
+        this.acceptedVals = new HashMap<Integer, DBBatch>();
+    }
+
+    /**
+     * Get if the acceptor promised
+     * @return True for a "promise" false otherwise
+     */
+    public boolean isPromised() {
+        return this.promised;
+    }
+
+    /**
+     * Get the highest proposal ID the acceptor has promised
+     * @return Integer proposal ID
+     */
+    public int getPromisedId() {
+        return this.promisedId;
+    }
+
+    /**
+     * Set the slot the replica compacted or applied its log up to
+     * @param slot The last compacted or applied log slot
+     */
+    public void setCompactedSlot(int slot) {
+        this.compactedSlot = slot;
+    }
+
+    /**
+     * Get the slot the replica compacted or applied its log up to.
+     * Every slot up to it is already chosen.
+     * @return Integer log slot
+     */
+    public int getCompactedSlot() {
+        return this.compactedSlot;
+    }
+
+    /**
+     * Add a value the acceptor already accepted
+     * @param slot The log slot
+     * @param propId The proposal ID the value was accepted with
+     * @param val The accepted value
+     */
+    public void addAccepted(int slot, int propId, DBBatch val) {
+        this.acceptedIds.put(slot, propId);
+        this.acceptedVals.put(slot, val);
+    }
+
+    /**
+     * Get the proposal IDs of the accepted values
+     * @return Map of log slot to proposal ID
+     */
+    public Map<Integer, Integer> getAcceptedIds() {
+        return this.acceptedIds;
+    }
+
+    /**
+     * Get the accepted values
+     * @return Map of log slot to accepted value
+     */
+    public Map<Integer, DBBatch> getAcceptedVals() {
+        return this.acceptedVals;
+    }
+}
@@ -0,0 +1,47 @@
+package server;
+
+// RMI Imports
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+
+// Java Imports
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of the replica chat stubs keyed by the replica's port.
+ * Shared by the proposers and the coordinator so the registry is only
+ * touched the first time a replica is used or after it failed.
+ */
+public class ReplicaStubCache {
+    private static Map<Integer, ChatServerInterface> stubs = new ConcurrentHashMap<Integer, ChatServerInterface>();
+
+    /**
+     * Get the stub for the replica on the port. Looks it up in the
+     * replica's registry if it is not cached yet.
+     * @param port The replica's port
+     * @return The replica's chat stub
+     * @throws RemoteException
+     * @throws NotBoundException
+     */
+    public static ChatServerInterface getStub(int port) throws RemoteException, NotBoundException {
+        ChatServerInterface stub = stubs.get(port);
+        if (stub == null) {
+            Registry reg = LocateRegistry.getRegistry(port);
+            stub = (ChatServerInterface) reg.lookup("chat");
+            stubs.put(port, stub);
+        }
+        return stub;
+    }
+
+    /**
+     * Drop the cached stub for the replica so the next call looks it up again.
+     * Called whenever a call to the replica throws a RemoteException.
+     * @param port The replica's port
+     */
+    public static void invalidate(int port) {
+        stubs.remove(port);
+    }
+}
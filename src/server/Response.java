@@ -1,15 +1,28 @@
 package server;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.logging.Level;
 
 /**
- * Response object that has a Level and String
+ * Response object that has a Level and String.
+ * The level is sent as its integer value instead of a serialized Level.
  */
-public class Response implements Serializable {
+public class Response implements Externalizable {
     private Level logLevel;
     private String serverReply;
 
+    // Log slot the operation was committed in, 0 if it was not
+    private int slot;
+
+    // Sequence number a sent message got in the room's history, -1 for other operations
+    private int seq = -1;
+
+    // Empty constructor for deserializing
+    public Response() {}
+
     // Constructor
     public Response(Level level, String reply) {
         logLevel = level;
@@ -44,5 +57,48 @@ public class Response implements Serializable {
         this.serverReply = serverReply;
     }
 
+    /** Get the log slot the operation was committed in
+     * @return Integer log slot, 0 if it was not committed
+     */
+    public int getSlot() {
+        return this.slot;
+    }
 
+    /** Set the log slot the operation was committed in
+     * @param slot The log slot
+     */
+    public void setSlot(int slot) {
+        this.slot = slot;
+    }
+
+    /** Get the sequence number a sent message got in the room's history
+     * @return Integer sequence number, -1 if the operation was not a sent message
+     */
+    public int getSeq() {
+        return this.seq;
+    }
+
+    /** Set the sequence number a sent message got in the room's history
+     * @param seq The sequence number
+     */
+    public void setSeq(int seq) {
+        this.seq = seq;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        WireCodec.writeVarInt(out, this.logLevel == null ? 0 : this.logLevel.intValue());
+        WireCodec.writeString(out, this.serverReply);
+        WireCodec.writeVarInt(out, this.slot);
+        WireCodec.writeVarInt(out, this.seq + 1);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        int level = WireCodec.readVarInt(in);
+        this.logLevel = level == 0 ? null : Level.parse(Integer.toString(level));
+        this.serverReply = WireCodec.readString(in);
+        this.slot = WireCodec.readVarInt(in);
+        this.seq = WireCodec.readVarInt(in) - 1;
+    }
 }
@@ -0,0 +1,316 @@
+package server;
+
+// Log Imports
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+import java.io.Externalizable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+// Java Imports
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Append-only message history of one chat room. The messages live in the
+ * server's message store and the heap only holds the room's sparse index,
+ * which the store bounds per room.
+ * Only when the server could not open its store are the messages kept in
+ * memory instead, in chunks, and then none are dropped.
+ * Readers never take a lock while the learner appends.
+ * The position of a message in the history is its sequence number.
+ * A snapshot keeps a mark of the history instead of its messages.
+ */
+public class RoomHistory extends AbstractList<String> implements RandomAccess {
+    // Set up logging with a custom properties file
+    static Logger LOGGER = Logger.getLogger(RoomHistory.class.getName());
+    static {
+        String filePath = "../config/serverlogging.properties";
+        try {
+            LogManager.getLogManager().readConfiguration(new FileInputStream(filePath));
+        } catch (IOException io)  {
+            LOGGER.severe("Logging config file not found.");
+        }
+    }
+
+    // Messages kept in memory per chunk
+    static final int CHUNK_SIZE = 256;
+
+    // Where the messages are stored, null if they are kept in memory
+    private MessageStore store;
+    private MessageStore.Room room;
+
+    // Messages kept in memory without a store and how many there are.
+    // A message is written before size, so a reader that sees a size also sees the messages.
+    private volatile Chunks chunks;
+    private volatile int size;
+
+    /**
+     * Chunks of messages kept in memory. Chunks are filled in order and
+     * never written again once full. Starting a chunk makes a new Chunks,
+     * so a reader or a mark holding the old one still has its messages.
+     */
+    private static class Chunks {
+        private final String[][] arrays;
+
+        private Chunks(String[][] arrays) {
+            this.arrays = arrays;
+        }
+
+        private String get(int seq) {
+            return arrays[seq / CHUNK_SIZE][seq % CHUNK_SIZE];
+        }
+    }
+
+    /**
+     * Constructor for an empty history kept in memory
+     */
+    public RoomHistory() {
+        this((MessageStore) null);
+    }
+
+    /**
+     * Constructor for an empty history
+     * @param store Where the messages are stored, or null to keep them in memory
+     */
+    public RoomHistory(MessageStore store) {
+        this.store = store;
+        if (store != null) {
+            this.room = store.newRoom();
+        } else {
+            this.chunks = new Chunks(new String[0][]);
+        }
+        this.size = 0;
+    }
+
+    /**
+     * Constructor for a room reopened from the store
+     * @param store The store
+     * @param room The room in the store
+     */
+    private RoomHistory(MessageStore store, MessageStore.Room room) {
+        this.store = store;
+        this.room = room;
+    }
+
+    /**
+     * Constructor copying an existing history
+     * @param store Where the messages are stored, or null to keep them in memory
+     * @param messages The messages in order
+     */
+    public RoomHistory(MessageStore store, Collection<String> messages) {
+        this(store);
+        for (String message : messages) {
+            add(message);
+        }
+    }
+
+    /**
+     * Rebuild a history from its mark in a snapshot
+     * @param store Where the messages are stored, or null to keep them in memory
+     * @param mark The mark
+     * @return The history
+     */
+    public static RoomHistory restore(MessageStore store, Mark mark) {
+        if (!mark.isStored()) {
+            RoomHistory history = new RoomHistory(store);
+            for (int seq = 0; seq < mark.count; seq++) {
+                history.add(mark.chunks.get(seq));
+            }
+            return history;
+        }
+        MessageStore.Room room = store == null ? null : store.openRoom(mark.count, mark.lastRecord);
+        if (room == null) {
+            LOGGER.severe(String.format("Could not reopen a room history of %d messages, it starts empty.", mark.count));
+            return new RoomHistory(store);
+        }
+        return new RoomHistory(store, room);
+    }
+
+    /**
+     * Mark how far the history goes without copying it. Must be called while nothing is appended.
+     * @return The mark
+     */
+    public Mark mark() {
+        if (store != null) {
+            return new Mark(room.size(), room.lastRecord(), null);
+        }
+        // Appends only write past the size or into a new chunk, so the marked messages never change
+        int n = this.size;
+        return new Mark(n, MessageStore.NO_RECORD, this.chunks);
+    }
+
+    /**
+     * Give the history's messages in the store back once the history was
+     * replaced and no saved snapshot marks it any more
+     */
+    public void release() {
+        if (store != null) {
+            store.release(room);
+        }
+    }
+
+    /**
+     * Append a message. Only the learner appends, the lock just keeps
+     * a second writer from overwriting the same position.
+     * @param message The message
+     * @return True if the message was added
+     */
+    @Override
+    public synchronized boolean add(String message) {
+        if (store != null) {
+            if (!store.append(room, message)) {
+                LOGGER.severe("Could not store a message in the room's history.");
+                return false;
+            }
+            return true;
+        }
+
+        int n = this.size;
+        Chunks c = this.chunks;
+        int chunk = n / CHUNK_SIZE;
+        if (chunk == c.arrays.length) {
+            String[][] arrays = Arrays.copyOf(c.arrays, chunk + 1);
+            arrays[chunk] = new String[CHUNK_SIZE];
+            c = new Chunks(arrays);
+            this.chunks = c;
+        }
+        c.arrays[chunk][n % CHUNK_SIZE] = message;
+        this.size = n + 1;
+        return true;
+    }
+
+    /**
+     * Get a message by its sequence number
+     * @param seq The sequence number
+     * @return The message
+     */
+    @Override
+    public String get(int seq) {
+        int n = size();
+        if (seq < 0 || seq >= n) {
+            throw new IndexOutOfBoundsException(String.format("Sequence: %d, size: %d", seq, n));
+        }
+        if (store != null) {
+            return MessageStore.decode(store.read(room, seq, seq + 1)[0]);
+        }
+        return this.chunks.get(seq);
+    }
+
+    @Override
+    public int size() {
+        return store != null ? room.size() : this.size;
+    }
+
+    /**
+     * Copy every message with one read of the store
+     * @return Array of the messages in order
+     */
+    @Override
+    public Object[] toArray() {
+        return page(0, Integer.MAX_VALUE).getMessages().toArray();
+    }
+
+    /**
+     * Read a page of messages without locking. A page from the store holds
+     * slices of it and the messages are only decoded if they are asked for.
+     * @param cursor The first sequence number wanted, or negative for the latest messages
+     * @param limit The most messages to return
+     * @return The page, starting at the cursor
+     */
+    public HistoryPage page(int cursor, int limit) {
+        int n = size();
+        Chunks c = this.chunks;
+        int from = cursor < 0 ? Math.max(0, n - limit) : Math.min(cursor, n);
+        int to = (int) Math.min((long) from + limit, n);
+
+        if (store != null) {
+            return HistoryPage.fromSlices(from, store.read(room, from, to), to < n);
+        }
+        // Chunks are never written below the size
+        List<String> copy = new ArrayList<String>(Math.max(to - from, 0));
+        for (int seq = from; seq < to; seq++) {
+            copy.add(c.get(seq));
+        }
+        return new HistoryPage(from, copy, to < n);
+    }
+
+    /**
+     * How far a history went when a snapshot was taken. A history in the
+     * store is marked by its message count and latest record, the store
+     * holds the messages. A history kept in memory shares its chunks with
+     * the mark, which only reads them up to the count.
+     */
+    public static class Mark implements Externalizable {
+        private int count;
+        private long lastRecord;
+        private Chunks chunks;
+
+        /**
+         * Empty constructor, used when the mark is read
+         */
+        public Mark() {}
+
+        /**
+         * Constructor
+         * @param count The number of messages
+         * @param lastRecord The address of the latest record in the store
+         * @param chunks The chunks of a history kept in memory, null if it is in the store
+         */
+        private Mark(int count, long lastRecord, Chunks chunks) {
+            this.count = count;
+            this.lastRecord = lastRecord;
+            this.chunks = chunks;
+        }
+
+        /**
+         * Get the number of messages in the history
+         * @return Integer number of messages
+         */
+        public int getCount() {
+            return this.count;
+        }
+
+        /**
+         * Check if the messages are in the store instead of the mark
+         * @return True if the store holds the messages
+         */
+        public boolean isStored() {
+            return this.chunks == null;
+        }
+
+        @Override
+        public void writeExternal(ObjectOutput out) throws IOException {
+            WireCodec.writeVarInt(out, this.count);
+            out.writeBoolean(isStored());
+            if (isStored()) {
+                out.writeLong(this.lastRecord);
+                return;
+            }
+            for (int seq = 0; seq < this.count; seq++) {
+                WireCodec.writeString(out, this.chunks.get(seq));
+            }
+        }
+
+        @Override
+        public void readExternal(ObjectInput in) throws IOException {
+            this.count = WireCodec.readVarInt(in);
+            if (in.readBoolean()) {
+                this.lastRecord = in.readLong();
+                return;
+            }
+            this.lastRecord = MessageStore.NO_RECORD;
+            String[][] arrays = new String[(this.count + CHUNK_SIZE - 1) / CHUNK_SIZE][CHUNK_SIZE];
+            this.chunks = new Chunks(arrays);
+            for (int seq = 0; seq < this.count; seq++) {
+                arrays[seq / CHUNK_SIZE][seq % CHUNK_SIZE] = WireCodec.readString(in);
+            }
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package server;
+
+// Java Imports
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The users in every chat room, with the rooms of every user as a reverse
+ * index. Joining and leaving a room are constant time and doing either twice
+ * changes nothing, and logging out only touches the rooms the user is in.
+ * The learner applies operations on different rooms in parallel, so a user's
+ * entry in the reverse index is only changed atomically. Readers never lock.
+ * A copy of the rooms can be taken while they keep changing, the first
+ * change to a room after the copy started saves its members for the copy.
+ */
+public class RoomMembers {
+    // Room name : users in the room
+    private Map<String, Set<String>> rooms;
+
+    // Username : rooms the user is in
+    private Map<String, Set<String>> userRooms;
+
+    // Marks a room that did not exist when the copy started
+    private static final Object ABSENT = new Object();
+
+    // Room name : members it had when the open copy started, null when no copy is open
+    private volatile Map<String, Object> saved;
+
+    /**
+     * Empty constructor
+     */
+    public RoomMembers() {
+        this.rooms = new ConcurrentHashMap<String, Set<String>>();
+        this.userRooms = new ConcurrentHashMap<String, Set<String>>();
+    }
+
+    // =========================
+
+    //      Changes
+
+    // =========================
+
+    /**
+     * Create a room with its creator as the only member. Creating a room
+     * that exists replaces its members.
+     * @param room The room name
+     * @param user The creator
+     */
+    public void create(String room, String user) {
+        saveBeforeChange(room);
+        Set<String> replaced = this.rooms.get(room);
+        if (replaced != null) {
+            for (String member : replaced) {
+                removeRoomOf(member, room);
+            }
+        }
+        Set<String> members = ConcurrentHashMap.newKeySet();
+        this.rooms.put(room, members);
+        join(room, user);
+    }
+
+    /**
+     * Add the user to the room
+     * @param room The room name
+     * @param user The username
+     * @return False if the room does not exist
+     */
+    public boolean join(String room, String user) {
+        Set<String> members = this.rooms.get(room);
+        if (members == null) {
+            return false;
+        }
+        saveBeforeChange(room);
+        members.add(user);
+        this.userRooms.compute(user, (u, joined) -> {
+            Set<String> updated = joined == null ? ConcurrentHashMap.<String>newKeySet() : joined;
+            updated.add(room);
+            return updated;
+        });
+        return true;
+    }
+
+    /**
+     * Remove the user from the room
+     * @param room The room name
+     * @param user The username
+     * @return False if the room does not exist
+     */
+    public boolean leave(String room, String user) {
+        Set<String> members = this.rooms.get(room);
+        if (members == null) {
+            return false;
+        }
+        saveBeforeChange(room);
+        members.remove(user);
+        removeRoomOf(user, room);
+        return true;
+    }
+
+    /**
+     * Remove the user from every room they are in. Must not run alongside
+     * other changes to the same rooms.
+     * @param user The username
+     */
+    public void logout(String user) {
+        Set<String> joined = this.userRooms.remove(user);
+        if (joined == null) {
+            return;
+        }
+        for (String room : joined) {
+            Set<String> members = this.rooms.get(room);
+            if (members != null) {
+                saveBeforeChange(room);
+                members.remove(user);
+            }
+        }
+    }
+
+    /**
+     * Replace every room's members, from a snapshot or the coordinator.
+     * Must not run while operations are being applied or a copy is open.
+     * @param replacement Map of room names and their users
+     */
+    public void replaceWith(Map<String, List<String>> replacement) {
+        this.rooms.clear();
+        this.userRooms.clear();
+        for (Map.Entry<String, List<String>> room : replacement.entrySet()) {
+            this.rooms.put(room.getKey(), ConcurrentHashMap.newKeySet());
+            for (String user : room.getValue()) {
+                join(room.getKey(), user);
+            }
+        }
+    }
+
+    /**
+     * Save the room's members before its first change since the open copy started
+     * @param room The room name about to change
+     */
+    private void saveBeforeChange(String room) {
+        Map<String, Object> saved = this.saved;
+        if (saved == null) {
+            return;
+        }
+        saved.computeIfAbsent(room, (r) -> {
+            Set<String> members = this.rooms.get(r);
+            return members == null ? ABSENT : new ArrayList<String>(members);
+        });
+    }
+
+    /**
+     * Drop the room from the user's reverse index entry
+     * @param user The username
+     * @param room The room name
+     */
+    private void removeRoomOf(String user, String room) {
+        this.userRooms.computeIfPresent(user, (u, joined) -> {
+            joined.remove(room);
+            return joined.isEmpty() ? null : joined;
+        });
+    }
+
+    // =========================
+
+    //      Reads
+
+    // =========================
+
+    /**
+     * Check if the room exists
+     * @param room The room name
+     * @return True if it exists
+     */
+    public boolean hasRoom(String room) {
+        return this.rooms.containsKey(room);
+    }
+
+    /**
+     * Check if there are no rooms
+     * @return True if there are none
+     */
+    public boolean isEmpty() {
+        return this.rooms.isEmpty();
+    }
+
+    /**
+     * Get the users in the room
+     * @param room The room name
+     * @return Read only view of the room's users, or null if the room does not exist
+     */
+    public Set<String> getMembers(String room) {
+        Set<String> members = this.rooms.get(room);
+        return members == null ? null : Collections.unmodifiableSet(members);
+    }
+
+    /**
+     * Get the rooms the user is in
+     * @param user The username
+     * @return Read only view of the user's rooms, empty if they are in none
+     */
+    public Set<String> getRoomsOf(String user) {
+        Set<String> joined = this.userRooms.get(user);
+        return joined == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(joined);
+    }
+
+    // =========================
+
+    //      Copies
+
+    // =========================
+
+    /**
+     * Start a copy of the rooms as they are now. Must be called while no
+     * operations are being applied and no other copy is open.
+     */
+    public void startCopy() {
+        this.saved = new ConcurrentHashMap<String, Object>();
+    }
+
+    /**
+     * Finish the open copy. Changes made while it runs do not show in it.
+     * @return Map of room names and their users when the copy started
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, List<String>> finishCopy() {
+        Map<String, Object> saved = this.saved;
+        Map<String, List<String>> copy = toMap();
+        // A room read above that changed since has its members saved by now
+        for (Map.Entry<String, Object> before : saved.entrySet()) {
+            if (before.getValue() == ABSENT) {
+                copy.remove(before.getKey());
+            } else {
+                copy.put(before.getKey(), (List<String>) before.getValue());
+            }
+        }
+        this.saved = null;
+        return copy;
+    }
+
+    /**
+     * Copy every room and its users
+     * @return Map of room names and their users
+     */
+    public Map<String, List<String>> toMap() {
+        Map<String, List<String>> copy = new HashMap<String, List<String>>();
+        for (Map.Entry<String, Set<String>> room : this.rooms.entrySet()) {
+            copy.put(room.getKey(), new ArrayList<String>(room.getValue()));
+        }
+        return copy;
+    }
+}
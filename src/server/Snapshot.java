@@ -0,0 +1,160 @@
+package server;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A copy of a replica's applied state up to and including a log slot.
+ * Log slots at or before the snapshot's slot are no longer needed.
+ * Room histories are only marked, the message store holds their messages.
+ * Taking a snapshot only starts copies of the users, rooms and logged in
+ * users, they are finished by the first reader, normally the snapshot thread,
+ * while the learner keeps applying.
+ */
+public class Snapshot implements Serializable {
+    private int lastSlot;
+    private Map<String, String> userDB;
+    private Map<String, List<String>> chatRoomUsers;
+    private Map<String, RoomHistory.Mark> chatRoomHistory;
+    private Set<String> activeUsers;
+
+    // The applied state whose copies are still open, null once they are finished
+    private transient VersionedMap<String, String> openUserDB;
+    private transient RoomMembers openChatRoomUsers;
+    private transient VersionedSet<String> openActiveUsers;
+
+    /**
+     * Mark the room histories and start copies of the rest of the applied
+     * state. Must be called while nothing is being applied and the previous
+     * snapshot's copies are finished.
+     * @param lastSlot The last applied log slot
+     * @param userDB The user database
+     * @param chatRoomUsers The chatrooms and their users
+     * @param chatRoomHistory The chatrooms and their histories
+     * @param activeUsers The logged in users
+     */
+    public Snapshot(int lastSlot, VersionedMap<String, String> userDB,
+                    RoomMembers chatRoomUsers,
+                    Map<String, List<String>> chatRoomHistory,
+                    VersionedSet<String> activeUsers) {
+        this.lastSlot = lastSlot;
+        this.chatRoomHistory = markRooms(chatRoomHistory);
+        userDB.startCopy();
+        chatRoomUsers.startCopy();
+        activeUsers.startCopy();
+        this.openUserDB = userDB;
+        this.openChatRoomUsers = chatRoomUsers;
+        this.openActiveUsers = activeUsers;
+    }
+
+    /**
+     * Constructor for a copy of a snapshot with other room histories
+     * @param from The snapshot
+     * @param chatRoomHistory The chatrooms and their histories
+     */
+    private Snapshot(Snapshot from, Map<String, List<String>> chatRoomHistory) {
+        this.lastSlot = from.lastSlot;
+        this.userDB = from.getUserDB();
+        this.chatRoomUsers = from.getChatRoomUsers();
+        this.chatRoomHistory = markRooms(chatRoomHistory);
+        this.activeUsers = from.getActiveUsers();
+    }
+
+    /**
+     * Finish the copies of the applied state if they are still open.
+     * Finishing twice changes nothing.
+     */
+    public synchronized void finishCopies() {
+        if (this.openUserDB == null) {
+            return;
+        }
+        this.userDB = this.openUserDB.finishCopy();
+        this.chatRoomUsers = this.openChatRoomUsers.finishCopy();
+        this.activeUsers = this.openActiveUsers.finishCopy();
+        this.openUserDB = null;
+        this.openChatRoomUsers = null;
+        this.openActiveUsers = null;
+    }
+
+    /**
+     * Write the snapshot with its copies finished
+     * @param out The stream
+     * @throws IOException If the stream fails
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        finishCopies();
+        out.defaultWriteObject();
+    }
+
+    /**
+     * Mark how far each room's history goes
+     * @param rooms The room map
+     * @return Map of chatrooms and their marks
+     */
+    private static Map<String, RoomHistory.Mark> markRooms(Map<String, List<String>> rooms) {
+        Map<String, RoomHistory.Mark> marks = new HashMap<String, RoomHistory.Mark>();
+        for (Map.Entry<String, List<String>> room : rooms.entrySet()) {
+            marks.put(room.getKey(), ((RoomHistory) room.getValue()).mark());
+        }
+        return marks;
+    }
+
+    /**
+     * Copy the snapshot for another replica's message store. A transferred
+     * snapshot marks the histories in the donor's store, the receiver
+     * copies their messages into its own store and marks those instead.
+     * @param chatRoomHistory The chatrooms and their histories in this replica's store
+     * @return The copy
+     */
+    public Snapshot withHistories(Map<String, List<String>> chatRoomHistory) {
+        return new Snapshot(this, chatRoomHistory);
+    }
+
+    /**
+     * Get the last log slot included in the snapshot
+     * @return Integer log slot
+     */
+    public int getLastSlot() {
+        return this.lastSlot;
+    }
+
+    /**
+     * Get the user database
+     * @return Map of usernames and passwords
+     */
+    public Map<String, String> getUserDB() {
+        finishCopies();
+        return this.userDB;
+    }
+
+    /**
+     * Get the chatrooms and their users
+     * @return Map of chatrooms and their users
+     */
+    public Map<String, List<String>> getChatRoomUsers() {
+        finishCopies();
+        return this.chatRoomUsers;
+    }
+
+    /**
+     * Get the chatrooms and how far their histories went
+     * @return Map of chatrooms and their marks
+     */
+    public Map<String, RoomHistory.Mark> getChatRoomHistory() {
+        return this.chatRoomHistory;
+    }
+
+    /**
+     * Get the logged in users
+     * @return Set of usernames
+     */
+    public Set<String> getActiveUsers() {
+        finishCopies();
+        return this.activeUsers;
+    }
+}
@@ -0,0 +1,49 @@
+package server;
+
+import java.io.Serializable;
+
+/**
+ * A piece of a replica's serialized snapshot, sent to a replica that is
+ * rejoining so a large state is never sent in a single call.
+ */
+public class SnapshotChunk implements Serializable {
+    private int lastSlot;
+    private int totalBytes;
+    private byte[] data;
+
+    /**
+     * Constructor
+     * @param lastSlot The last log slot in the snapshot
+     * @param totalBytes Size of the whole serialized snapshot
+     * @param data The bytes of this chunk
+     */
+    public SnapshotChunk(int lastSlot, int totalBytes, byte[] data) {
+        this.lastSlot = lastSlot;
+        this.totalBytes = totalBytes;
+        this.data = data;
+    }
+
+    /**
+     * Get the last log slot in the snapshot the chunk belongs to
+     * @return Integer log slot
+     */
+    public int getLastSlot() {
+        return this.lastSlot;
+    }
+
+    /**
+     * Get the size of the whole serialized snapshot
+     * @return Integer byte count
+     */
+    public int getTotalBytes() {
+        return this.totalBytes;
+    }
+
+    /**
+     * Get the bytes of this chunk
+     * @return Byte array
+     */
+    public byte[] getData() {
+        return this.data;
+    }
+}
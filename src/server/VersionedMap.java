@@ -0,0 +1,132 @@
+package server;
+
+// Java Imports
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A concurrent map that can be copied as it was at one point while it keeps
+ * changing. Starting a copy is constant time. Until the copy finishes, the
+ * first change to each key saves the value the key had, and the copy takes
+ * the saved values over the ones it reads. Readers never lock.
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+public class VersionedMap<K, V> extends AbstractMap<K, V> {
+    // Marks a key that was not in the map when the copy started
+    private static final Object ABSENT = new Object();
+
+    private ConcurrentHashMap<K, V> live;
+
+    // Key : value it had when the open copy started, null when no copy is open
+    private volatile ConcurrentHashMap<Object, Object> saved;
+
+    /**
+     * Empty constructor
+     */
+    public VersionedMap() {
+        this.live = new ConcurrentHashMap<K, V>();
+    }
+
+    // =========================
+
+    //      Changes
+
+    // =========================
+
+    @Override
+    public V put(K key, V value) {
+        saveBeforeChange(key);
+        return this.live.put(key, value);
+    }
+
+    @Override
+    public V remove(Object key) {
+        saveBeforeChange(key);
+        return this.live.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        for (K key : this.live.keySet()) {
+            remove(key);
+        }
+    }
+
+    /**
+     * Save the value the key has before its first change since the open copy started
+     * @param key The key about to change
+     */
+    private void saveBeforeChange(Object key) {
+        Map<Object, Object> saved = this.saved;
+        if (saved == null) {
+            return;
+        }
+        V before = this.live.get(key);
+        saved.putIfAbsent(key, before == null ? ABSENT : before);
+    }
+
+    // =========================
+
+    //      Copies
+
+    // =========================
+
+    /**
+     * Start a copy of the map as it is now. Must be called while nothing
+     * changes the map and no other copy is open.
+     */
+    public void startCopy() {
+        this.saved = new ConcurrentHashMap<Object, Object>();
+    }
+
+    /**
+     * Finish the open copy. Changes made while it runs do not show in it.
+     * @return The map as it was when the copy started
+     */
+    @SuppressWarnings("unchecked")
+    public Map<K, V> finishCopy() {
+        Map<Object, Object> saved = this.saved;
+        Map<K, V> copy = new HashMap<K, V>(this.live);
+        // A key read above that changed since has its value saved by now
+        for (Map.Entry<Object, Object> before : saved.entrySet()) {
+            if (before.getValue() == ABSENT) {
+                copy.remove(before.getKey());
+            } else {
+                copy.put((K) before.getKey(), (V) before.getValue());
+            }
+        }
+        this.saved = null;
+        return copy;
+    }
+
+    // =========================
+
+    //      Reads
+
+    // =========================
+
+    @Override
+    public V get(Object key) {
+        return this.live.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return this.live.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return this.live.size();
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return Collections.unmodifiableMap(this.live).entrySet();
+    }
+}
@@ -0,0 +1,69 @@
+package server;
+
+// Java Imports
+import java.util.AbstractSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * A concurrent set that can be copied as it was at one point while it keeps
+ * changing, backed by a VersionedMap.
+ * @param <E> The element type
+ */
+public class VersionedSet<E> extends AbstractSet<E> {
+    private VersionedMap<E, Boolean> elements;
+
+    /**
+     * Empty constructor
+     */
+    public VersionedSet() {
+        this.elements = new VersionedMap<E, Boolean>();
+    }
+
+    @Override
+    public boolean add(E element) {
+        return this.elements.put(element, Boolean.TRUE) == null;
+    }
+
+    @Override
+    public boolean remove(Object element) {
+        return this.elements.remove(element) != null;
+    }
+
+    @Override
+    public void clear() {
+        this.elements.clear();
+    }
+
+    @Override
+    public boolean contains(Object element) {
+        return this.elements.containsKey(element);
+    }
+
+    @Override
+    public int size() {
+        return this.elements.size();
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return this.elements.keySet().iterator();
+    }
+
+    /**
+     * Start a copy of the set as it is now. Must be called while nothing
+     * changes the set and no other copy is open.
+     */
+    public void startCopy() {
+        this.elements.startCopy();
+    }
+
+    /**
+     * Finish the open copy. Changes made while it runs do not show in it.
+     * @return The set as it was when the copy started
+     */
+    public Set<E> finishCopy() {
+        return new HashSet<E>(this.elements.finishCopy().keySet());
+    }
+}
@@ -0,0 +1,79 @@
+package server;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Helpers for the compact encoding of the values sent between replicas and
+ * written to the log. Integers are varints and strings are a varint length
+ * followed by UTF-8 bytes.
+ */
+public class WireCodec {
+
+    /**
+     * Write a non-negative integer using 7 bits per byte
+     * @param out Where to write
+     * @param value The integer
+     * @throws IOException
+     */
+    public static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * Read an integer written by writeVarInt
+     * @param in Where to read from
+     * @return The integer
+     * @throws IOException
+     */
+    public static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint.");
+    }
+
+    /**
+     * Write a string that may be null. The length is stored plus one
+     * so zero means null.
+     * @param out Where to write
+     * @param s The string
+     * @throws IOException
+     */
+    public static void writeString(DataOutput out, String s) throws IOException {
+        if (s == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    /**
+     * Read a string written by writeString
+     * @param in Where to read from
+     * @return The string or null
+     * @throws IOException
+     */
+    public static String readString(DataInput in) throws IOException {
+        int length = readVarInt(in);
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length - 1];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,28 @@
+# only cleanup
+if [ "$1" == "--rm" ]
+then
+  rm -rf ./bin-test/ ./test/run/ ./test/data/
+  exit
+fi
+
+# build the sources with the tests
+mkdir -p ./bin-test ./test/run
+javac -d ./bin-test ./src/client/*.java ./src/gui/*.java ./src/server/*.java ./src/paxos/*.java \
+      $(find ./test -name '*Test.java') || exit 1
+
+# run every test class from test/run, so ../config holds the test settings
+failed=0
+for test in $(cd ./test && find . -name '*Test.java' | sort)
+do
+  class=${test#./}
+  class=${class%.java}
+  class=${class//\//.}
+  if (cd ./test/run && java -ea -cp ../../bin-test "$class")
+  then
+    echo "PASS $class"
+  else
+    echo "FAIL $class"
+    failed=1
+  fi
+done
+exit $failed
@@ -0,0 +1,196 @@
+package paxos;
+
+// Java Imports
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Custom Imports
+import server.DBBatch;
+import server.DBOperation;
+import server.HistoryPage;
+import server.MessageStore;
+import server.RoomHistory;
+import server.RoomMembers;
+import server.ServerConfig;
+import server.VersionedMap;
+import server.VersionedSet;
+
+/**
+ * Tests for applying committed operations: operations on one room or user
+ * keep their log order on the apply stripes while a logout runs alone, a
+ * sent message's result holds the sequence number a reader pages from,
+ * and a create that replaces a room starts it empty and hands the old
+ * history out for release only once a snapshot at or after the create's
+ * slot may be saved.
+ */
+public class LearnerTest {
+
+    // Rooms the striped batches spread over, more than there are stripes
+    private static final int ROOMS = 8;
+
+    public static void main(String[] args) throws IOException {
+        stripesKeepLogOrderPerRoom();
+        logoutRunsAfterEverythingBeforeIt();
+        sentSequenceNumbersAreHistoryCursors();
+        createAgainReplacesTheRoom();
+    }
+
+    /**
+     * Sends to many rooms in one batch land in each room in log order, and
+     * a join logged before its room's create fails
+     */
+    private static void stripesKeepLogOrderPerRoom() {
+        Learner learner = new Learner();
+        State state = new State();
+
+        List<DBOperation> ops = new ArrayList<DBOperation>();
+        ops.add(new DBOperation("join", "bob", "", "", "room0"));
+        for (int room = 0; room < ROOMS; room++) {
+            ops.add(new DBOperation("create", "alice", "", "", "room" + room));
+        }
+        for (int i = 0; i < 400; i++) {
+            ops.add(new DBOperation("send", "alice", "", "message " + i, "room" + (i % ROOMS)));
+        }
+        List<String> results = commitBatch(learner, state, 1, ops);
+
+        assert "fail".equals(results.get(0)) : results.get(0);
+        for (int i = 0; i < 400; i++) {
+            assert (Learner.SENT + i / ROOMS).equals(results.get(1 + ROOMS + i)) : results.get(1 + ROOMS + i);
+        }
+        for (int room = 0; room < ROOMS; room++) {
+            List<String> history = state.histories.get("room" + room);
+            assert history.size() == 400 / ROOMS : history.size();
+            for (int seq = 0; seq < history.size(); seq++) {
+                assert ("message " + (seq * ROOMS + room)).equals(history.get(seq)) : history.get(seq);
+            }
+        }
+        assert !state.members.getMembers("room0").contains("bob");
+        learner.close();
+    }
+
+    /**
+     * A logout leaves the rooms joined before it on other stripes, and
+     * joins and logins after it are applied after it
+     */
+    private static void logoutRunsAfterEverythingBeforeIt() {
+        Learner learner = new Learner();
+        State state = new State();
+
+        List<DBOperation> ops = new ArrayList<DBOperation>();
+        ops.add(new DBOperation("register", "bob", "pw", "", ""));
+        for (int room = 0; room < ROOMS; room++) {
+            ops.add(new DBOperation("create", "alice", "", "", "room" + room));
+            ops.add(new DBOperation("join", "bob", "", "", "room" + room));
+        }
+        ops.add(new DBOperation("logout", "bob", "", "", ""));
+        ops.add(new DBOperation("join", "bob", "", "", "room0"));
+        ops.add(new DBOperation("login", "bob", "", "", ""));
+        List<String> results = commitBatch(learner, state, 1, ops);
+
+        for (String result : results) {
+            assert "success".equals(result) : results;
+        }
+        assert state.members.getMembers("room0").contains("bob");
+        for (int room = 1; room < ROOMS; room++) {
+            assert !state.members.getMembers("room" + room).contains("bob") : room;
+        }
+        assert state.active.contains("bob");
+        assert "pw".equals(state.users.get("bob"));
+        learner.close();
+    }
+
+    /**
+     * Paging from the sequence number a send returned starts at that message,
+     * one past it returns only what was sent later
+     */
+    private static void sentSequenceNumbersAreHistoryCursors() throws IOException {
+        MessageStore store = new MessageStore(ServerConfig.getString("history.store.dir", "../data"), 9302, 4096, 32, 1024);
+        store.open(false);
+        Learner learner = new Learner();
+        learner.setMessageStore(store);
+        State state = new State();
+
+        commit(learner, state, 1, new DBOperation("create", "alice", "", "", "lobby"));
+        List<Integer> seqs = new ArrayList<Integer>();
+        for (int i = 0; i < 5; i++) {
+            String result = commit(learner, state, 2 + i, new DBOperation("send", "alice", "", "message " + i, "lobby"));
+            assert result.startsWith(Learner.SENT) : result;
+            seqs.add(Integer.parseInt(result.substring(Learner.SENT.length())));
+        }
+        assert seqs.equals(Arrays.asList(0, 1, 2, 3, 4)) : seqs;
+
+        RoomHistory history = (RoomHistory) state.histories.get("lobby");
+        for (int i = 0; i < seqs.size(); i++) {
+            HistoryPage page = history.page(seqs.get(i), 1);
+            assert page.getMessages().equals(Arrays.asList("message " + i)) : page.getMessages();
+        }
+
+        // A client that saw message 2 catches up from the sequence number after it
+        HistoryPage since = history.page(seqs.get(2) + 1, 500);
+        assert since.getMessages().equals(Arrays.asList("message 3", "message 4")) : since.getMessages();
+        assert since.getNextSeq() == history.size() && !since.hasMore();
+
+        learner.close();
+        store.close();
+    }
+
+    private static void createAgainReplacesTheRoom() throws IOException {
+        MessageStore store = new MessageStore(ServerConfig.getString("history.store.dir", "../data"), 9301, 4096, 32, 1024);
+        store.open(false);
+        Learner learner = new Learner();
+        learner.setMessageStore(store);
+        State state = new State();
+
+        commit(learner, state, 1, new DBOperation("create", "alice", "", "", "lobby"));
+        commit(learner, state, 2, new DBOperation("send", "alice", "", "hello", "lobby"));
+        RoomHistory old = (RoomHistory) state.histories.get("lobby");
+        assert old.size() == 1 : old.size();
+
+        commit(learner, state, 3, new DBOperation("create", "bob", "", "", "lobby"));
+        assert state.histories.get("lobby") != old;
+        assert state.histories.get("lobby").isEmpty();
+
+        // A snapshot before the create may still mark the old room
+        assert learner.takeReplacedRooms(2).isEmpty();
+        List<RoomHistory> replaced = learner.takeReplacedRooms(3);
+        assert replaced.size() == 1 && replaced.get(0) == old : replaced;
+        assert learner.takeReplacedRooms(3).isEmpty();
+
+        learner.close();
+        store.close();
+    }
+
+    // =========================
+
+    //      Helpers
+
+    // =========================
+
+    /**
+     * The applied state of one group
+     */
+    private static class State {
+        Map<String, String> users = new VersionedMap<String, String>();
+        RoomMembers members = new RoomMembers();
+        Map<String, List<String>> histories = new ConcurrentHashMap<String, List<String>>();
+        VersionedSet<String> active = new VersionedSet<String>();
+    }
+
+    private static String commit(Learner learner, State state, int slot, DBOperation op) {
+        List<DBOperation> ops = new ArrayList<DBOperation>();
+        ops.add(op);
+        String result = commitBatch(learner, state, slot, ops).get(0);
+        assert result.startsWith("success") : result;
+        return result;
+    }
+
+    private static List<String> commitBatch(Learner learner, State state, int slot, List<DBOperation> ops) {
+        List<String> results = learner.commit(slot, state.users, state.members, state.histories, state.active, new DBBatch(ops));
+        assert results != null && results.size() == ops.size() : results;
+        return results;
+    }
+}
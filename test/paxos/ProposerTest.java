@@ -0,0 +1,179 @@
+package paxos;
+
+// Java Imports
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Custom Imports
+import server.Response;
+
+/**
+ * Tests for proposal IDs: no two replicas ever propose with the same ID,
+ * every ID of a newer lease ballot is above every ID of an older one, and
+ * an ID tells the ballot it was made under. Also tests that no caller is
+ * left waiting on a closed proposer.
+ */
+public class ProposerTest {
+    private static final List<Integer> PORTS = Arrays.asList(5555, 5556, 5557, 5558, 5559);
+
+    public static void main(String[] args) throws Exception {
+        idsAreUniqueAcrossReplicasAndBallots();
+        newerBallotIsAboveRaisedIds();
+        roundsRunOutWithinABallot();
+        closeFailsQueuedProposals();
+        proposeAfterCloseFailsAtOnce();
+        proposalNeverTakenTimesOut();
+        closeFailsBatchBeingFilled();
+    }
+
+    /**
+     * Every replica takes many rounds under each of several ballots
+     */
+    private static void idsAreUniqueAcrossReplicasAndBallots() {
+        AtomicInteger ballot = new AtomicInteger(1);
+        List<Proposer> proposers = proposers(ballot);
+        Set<Integer> seen = new HashSet<Integer>();
+        int highestOfLastBallot = -1;
+        for (int b = 1; b <= 4; b++) {
+            ballot.set(b);
+            int lowest = Integer.MAX_VALUE;
+            int highest = -1;
+            for (int round = 0; round < 50; round++) {
+                for (Proposer proposer : proposers) {
+                    assert proposer.incrementPropID();
+                    int id = proposer.getPropId();
+                    assert seen.add(id) : "duplicate proposal ID " + id;
+                    assert Proposer.ballotOf(id) == b : id;
+                    lowest = Math.min(lowest, id);
+                    highest = Math.max(highest, id);
+                }
+            }
+            assert lowest > highestOfLastBallot : lowest;
+            highestOfLastBallot = highest;
+        }
+        close(proposers);
+    }
+
+    /**
+     * A replica that raised its ID past what it proposed itself still
+     * moves to the new ballot's range, and stays on its own residue
+     */
+    private static void newerBallotIsAboveRaisedIds() {
+        AtomicInteger ballot = new AtomicInteger(2);
+        List<Proposer> proposers = proposers(ballot);
+        Proposer proposer = proposers.get(3);
+        proposer.setPropId(2 * Proposer.BALLOT_SPAN + 700);
+        assert proposer.incrementPropID();
+        int raised = proposer.getPropId();
+        assert raised > 2 * Proposer.BALLOT_SPAN + 700 : raised;
+        assert raised % PORTS.size() == (2 * Proposer.BALLOT_SPAN + 3) % PORTS.size() : raised;
+
+        ballot.set(3);
+        assert proposer.incrementPropID();
+        int next = proposer.getPropId();
+        assert Proposer.ballotOf(next) == 3 : next;
+        assert next > raised : next;
+        close(proposers);
+    }
+
+    /**
+     * A ballot only has room for so many rounds, past that the replica
+     * must wait for a newer lease instead of running into the next ballot
+     */
+    private static void roundsRunOutWithinABallot() {
+        AtomicInteger ballot = new AtomicInteger(1);
+        List<Proposer> proposers = proposers(ballot);
+        Proposer proposer = proposers.get(4);
+        int rounds = 0;
+        while (proposer.incrementPropID()) {
+            assert Proposer.ballotOf(proposer.getPropId()) == 1 : proposer.getPropId();
+            rounds++;
+        }
+        assert rounds == (Proposer.BALLOT_SPAN - 4 - 1) / PORTS.size() : rounds;
+        ballot.set(2);
+        assert proposer.incrementPropID();
+        assert Proposer.ballotOf(proposer.getPropId()) == 2 : proposer.getPropId();
+        close(proposers);
+    }
+
+    /**
+     * An operation still queued when the proposer closes was never proposed, it fails
+     */
+    private static void closeFailsQueuedProposals() throws Exception {
+        Proposer proposer = new Proposer(0);
+        CompletableFuture<Response> result = proposeLater(proposer);
+        Thread.sleep(100);
+        assert !result.isDone();
+        proposer.close();
+        assert "fail".equals(result.get(200, TimeUnit.MILLISECONDS).getServerReply());
+    }
+
+    private static void proposeAfterCloseFailsAtOnce() throws Exception {
+        Proposer proposer = new Proposer(0);
+        proposer.close();
+        CompletableFuture<Response> result = proposeLater(proposer);
+        assert "fail".equals(result.get(200, TimeUnit.MILLISECONDS).getServerReply());
+    }
+
+    /**
+     * A caller whose operation no batch took gives up after paxos.proposeTimeoutMs,
+     * and the operation is not proposed later
+     */
+    private static void proposalNeverTakenTimesOut() throws Exception {
+        Proposer proposer = new Proposer(0);
+        long start = System.nanoTime();
+        Response res = proposer.propose("send", "alice", "", "hi", "lobby");
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assert "fail".equals(res.getServerReply()) : res.getServerReply();
+        assert waited >= 400 && waited < 2000 : waited;
+        proposer.close();
+    }
+
+    /**
+     * An operation the batching thread already took, while it waits for the
+     * batch window, fails when the proposer closes instead of being lost
+     */
+    private static void closeFailsBatchBeingFilled() throws Exception {
+        Proposer proposer = new Proposer(0);
+        proposer.start();
+        CompletableFuture<Response> result = proposeLater(proposer);
+        Thread.sleep(100);
+        assert !result.isDone();
+        proposer.close();
+        assert "fail".equals(result.get(200, TimeUnit.MILLISECONDS).getServerReply());
+    }
+
+    // =========================
+
+    //      Helpers
+
+    // =========================
+
+    private static List<Proposer> proposers(AtomicInteger ballot) {
+        List<Proposer> proposers = new ArrayList<Proposer>();
+        for (int port : PORTS) {
+            Proposer proposer = new Proposer(0);
+            proposer.setPorts(PORTS);
+            proposer.setLocalServer(null, port);
+            proposer.setLeaseBallot(ballot::get);
+            proposers.add(proposer);
+        }
+        return proposers;
+    }
+
+    private static CompletableFuture<Response> proposeLater(Proposer proposer) {
+        return CompletableFuture.supplyAsync(() -> proposer.propose("send", "alice", "", "hi", "lobby"));
+    }
+
+    private static void close(List<Proposer> proposers) {
+        for (Proposer proposer : proposers) {
+            proposer.close();
+        }
+    }
+}
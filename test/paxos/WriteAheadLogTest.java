@@ -0,0 +1,221 @@
+package paxos;
+
+// Java Imports
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Custom Imports
+import server.DBBatch;
+import server.DBOperation;
+import server.ServerConfig;
+
+/**
+ * Tests for replaying the write ahead log: records come back in order,
+ * a record whose checksum does not match ends the log, a torn tail is cut
+ * off, and a segment that ends early drops the segments after it.
+ */
+public class WriteAheadLogTest {
+    // Length and checksum in front of every record
+    private static final int HEADER_SIZE = 8;
+
+    private static Path dir = Paths.get(ServerConfig.getString("paxos.wal.dir", "../data"));
+
+    public static void main(String[] args) throws Exception {
+        replaysRecordsInOrder();
+        badChecksumEndsTheLog();
+        tornTailIsCutOff();
+        corruptMiddleSegmentDropsLaterSegments();
+    }
+
+    /**
+     * Every kind of record is replayed in the order it was appended, also
+     * after a restart appended more
+     */
+    private static void replaysRecordsInOrder() throws IOException {
+        int port = 9101;
+        clear(port);
+        WriteAheadLog wal = open(port, new Recorder());
+        appendAll(wal, WriteAheadLog.promiseRecord(7),
+                    WriteAheadLog.acceptRecord(7, 1, batch("a")),
+                    WriteAheadLog.commitRecord(1, batch("a")));
+        wal.close();
+
+        Recorder replayed = new Recorder();
+        wal = open(port, replayed);
+        assert replayed.events.equals(Arrays.asList("promise 7", "accept 7 1 a", "commit 1 a")) : replayed.events;
+        appendAll(wal, WriteAheadLog.commitRecord(2, batch("b")));
+        wal.close();
+
+        replayed = new Recorder();
+        open(port, replayed).close();
+        assert replayed.events.equals(Arrays.asList("promise 7", "accept 7 1 a", "commit 1 a", "commit 2 b")) : replayed.events;
+    }
+
+    /**
+     * A flipped byte fails the record's checksum. Replay stops before it and
+     * the record and everything after it is cut off the segment.
+     */
+    private static void badChecksumEndsTheLog() throws IOException {
+        int port = 9102;
+        clear(port);
+        byte[] first = WriteAheadLog.commitRecord(1, batch("a"));
+        WriteAheadLog wal = open(port, new Recorder());
+        appendAll(wal, first, WriteAheadLog.commitRecord(2, batch("b")), WriteAheadLog.commitRecord(3, batch("c")));
+        wal.close();
+
+        Path segment = segment(port, 1);
+        flipByte(segment, HEADER_SIZE + first.length + HEADER_SIZE + 2);
+
+        Recorder replayed = new Recorder();
+        wal = open(port, replayed);
+        assert replayed.events.equals(Arrays.asList("commit 1 a")) : replayed.events;
+        assert Files.size(segment) == HEADER_SIZE + first.length : Files.size(segment);
+
+        // Appends after the cut replay after the good records
+        appendAll(wal, WriteAheadLog.commitRecord(2, batch("d")));
+        wal.close();
+        replayed = new Recorder();
+        open(port, replayed).close();
+        assert replayed.events.equals(Arrays.asList("commit 1 a", "commit 2 d")) : replayed.events;
+    }
+
+    /**
+     * A record cut short by a crash in the middle of a write is dropped
+     */
+    private static void tornTailIsCutOff() throws IOException {
+        int port = 9103;
+        clear(port);
+        byte[] first = WriteAheadLog.commitRecord(1, batch("a"));
+        WriteAheadLog wal = open(port, new Recorder());
+        appendAll(wal, first, WriteAheadLog.commitRecord(2, batch("b")));
+        wal.close();
+
+        Path segment = segment(port, 1);
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        Recorder replayed = new Recorder();
+        open(port, replayed).close();
+        assert replayed.events.equals(Arrays.asList("commit 1 a")) : replayed.events;
+        assert Files.size(segment) == HEADER_SIZE + first.length : Files.size(segment);
+    }
+
+    /**
+     * A corrupt record in an older segment ends the log there. The later
+     * segment is not replayed, it would leave a gap of lost slots, and it
+     * is deleted.
+     */
+    private static void corruptMiddleSegmentDropsLaterSegments() throws IOException {
+        int port = 9104;
+        clear(port);
+        byte[] first = WriteAheadLog.commitRecord(1, batch("a"));
+        WriteAheadLog wal = open(port, new Recorder());
+        appendAll(wal, first, WriteAheadLog.commitRecord(2, batch("b")));
+        wal.roll(new ArrayList<byte[]>());
+        appendAll(wal, WriteAheadLog.commitRecord(3, batch("c")));
+        wal.close();
+
+        // Rolling deleted the first segment, put a copy with a bad second record back in front
+        Path rolled = segment(port, 2);
+        Path older = segment(port, 1);
+        WriteAheadLog writer = open(port + 100, new Recorder());
+        appendAll(writer, first, WriteAheadLog.commitRecord(2, batch("b")));
+        writer.close();
+        Files.move(segment(port + 100, 1), older);
+        flipByte(older, HEADER_SIZE + first.length + HEADER_SIZE + 2);
+
+        Recorder replayed = new Recorder();
+        wal = open(port, replayed);
+        assert replayed.events.equals(Arrays.asList("commit 1 a")) : replayed.events;
+        assert !Files.exists(rolled) : "later segment kept";
+        assert Files.size(older) == HEADER_SIZE + first.length : Files.size(older);
+
+        // Appends go to the cut segment and replay after its good records
+        appendAll(wal, WriteAheadLog.commitRecord(2, batch("d")));
+        wal.close();
+        replayed = new Recorder();
+        open(port, replayed).close();
+        assert replayed.events.equals(Arrays.asList("commit 1 a", "commit 2 d")) : replayed.events;
+    }
+
+    // =========================
+
+    //      Helpers
+
+    // =========================
+
+    /**
+     * Records what was replayed as readable lines
+     */
+    private static class Recorder implements WriteAheadLog.Replayer {
+        List<String> events = new ArrayList<String>();
+
+        public void promise(int propId) {
+            events.add(String.format("promise %d", propId));
+        }
+
+        public void accept(int propId, int slot, DBBatch val) {
+            events.add(String.format("accept %d %d %s", propId, slot, messages(val)));
+        }
+
+        public void commit(int slot, DBBatch val) {
+            events.add(String.format("commit %d %s", slot, messages(val)));
+        }
+
+        private static String messages(DBBatch val) {
+            StringBuilder joined = new StringBuilder();
+            for (DBOperation op : val.getOps()) {
+                joined.append(op.getMessage());
+            }
+            return joined.toString();
+        }
+    }
+
+    private static WriteAheadLog open(int port, Recorder recorder) throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(port, 0);
+        wal.replay(recorder);
+        return wal;
+    }
+
+    private static void appendAll(WriteAheadLog wal, byte[]... records) {
+        long seq = 0;
+        for (byte[] record : records) {
+            seq = wal.append(record);
+        }
+        assert wal.sync(seq) : "append not written";
+    }
+
+    private static DBBatch batch(String message) {
+        List<DBOperation> ops = new ArrayList<DBOperation>();
+        ops.add(new DBOperation("send", "user", "", message, "room"));
+        return new DBBatch(ops);
+    }
+
+    private static Path segment(int port, int number) {
+        return dir.resolve(String.format("wal-%d-%d.log", port, number));
+    }
+
+    private static void flipByte(Path file, long position) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(file.toFile(), "rw")) {
+            out.seek(position);
+            int b = out.read();
+            out.seek(position);
+            out.write(b ^ 0xFF);
+        }
+    }
+
+    private static void clear(int port) throws IOException {
+        Files.createDirectories(dir);
+        for (int number = 1; number <= 4; number++) {
+            Files.deleteIfExists(segment(port, number));
+            Files.deleteIfExists(segment(port + 100, number));
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package server;
+
+// Java Imports
+import java.util.logging.Level;
+
+// Paxos Specific
+import paxos.Learner;
+import paxos.Proposer;
+
+/**
+ * Tests for how the server reads a proposal's result: a log slot that was
+ * chosen but whose result is not known may have succeeded, and is never
+ * reported as a failure a client would retry.
+ */
+public class ChatServerImplTest {
+
+    public static void main(String[] args) {
+        chosenSlotsWithoutResultAreUnconfirmed();
+        resultsAndFailuresAreNotUnconfirmed();
+    }
+
+    /**
+     * Learners that applied the slot earlier, or not in time, do not know its result
+     */
+    private static void chosenSlotsWithoutResultAreUnconfirmed() {
+        assert ChatServerImpl.unconfirmed(new Response(Level.INFO, Learner.ALREADY_APPLIED));
+        assert ChatServerImpl.unconfirmed(new Response(Level.SEVERE, Proposer.UNKNOWN));
+    }
+
+    private static void resultsAndFailuresAreNotUnconfirmed() {
+        String[] replies = {"success", "fail", "exists", "Consensus not reached for prepare. Aborted: create"};
+        for (String reply : replies) {
+            assert !ChatServerImpl.unconfirmed(new Response(Level.INFO, reply)) : reply;
+        }
+    }
+}
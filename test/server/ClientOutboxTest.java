@@ -0,0 +1,224 @@
+package server;
+
+// RMI Imports
+import java.rmi.RemoteException;
+
+// Java Imports
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Custom Imports
+import client.ClientInterface;
+
+/**
+ * Tests for per-client outboxes: messages arrive in order and in batches,
+ * a full queue drops its oldest message or disconnects the client, a
+ * client whose calls throw loses only what was queued, and a stalled
+ * client holds up no other client.
+ */
+public class ClientOutboxTest {
+    private static ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private static ExecutorService workers = Executors.newCachedThreadPool();
+
+    public static void main(String[] args) throws Exception {
+        deliversInOrderInBatches();
+        fullQueueDropsOldest();
+        fullQueueDisconnects();
+        throwingClientKeepsDelivering();
+        stalledClientHoldsUpNoOther();
+        timer.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    private static void deliversInOrderInBatches() throws Exception {
+        ClientSessions sessions = new ClientSessions();
+        Recorder client = new Recorder();
+        sessions.bind("alice", client);
+        ClientOutbox outbox = outbox("alice", sessions, 256, ClientOutbox.OverflowPolicy.DROP_OLDEST, null);
+        for (int i = 0; i < 100; i++) {
+            outbox.offerMessage(message(i));
+        }
+        client.awaitMessages(100);
+        assert client.seqs().equals(range(0, 100)) : client.seqs();
+        // Offered within the batch window, the messages go out in calls of at most the batch size
+        assert client.calls.size() < 100 && client.calls.size() >= 100 / 8 : client.calls.size();
+        for (List<ChatMessage> call : client.calls) {
+            assert call.size() <= 8 : call.size();
+        }
+    }
+
+    /**
+     * While the client is stuck in a call, only the newest queued messages are kept
+     */
+    private static void fullQueueDropsOldest() throws Exception {
+        ClientSessions sessions = new ClientSessions();
+        Recorder client = new Recorder();
+        client.blockFirstCall();
+        sessions.bind("bob", client);
+        ClientOutbox outbox = outbox("bob", sessions, 4, ClientOutbox.OverflowPolicy.DROP_OLDEST, null);
+
+        outbox.offerMessage(message(0));
+        assert client.entered.await(1, TimeUnit.SECONDS);
+        for (int i = 1; i <= 10; i++) {
+            outbox.offerMessage(message(i));
+        }
+        client.release.countDown();
+        client.awaitMessages(5);
+        assert client.seqs().equals(Arrays.asList(0, 7, 8, 9, 10)) : client.seqs();
+    }
+
+    /**
+     * A full queue is dropped and the client disconnected once, later messages are ignored
+     */
+    private static void fullQueueDisconnects() throws Exception {
+        ClientSessions sessions = new ClientSessions();
+        Recorder client = new Recorder();
+        client.blockFirstCall();
+        sessions.bind("carol", client);
+        List<String> disconnected = Collections.synchronizedList(new ArrayList<String>());
+        ClientOutbox outbox = outbox("carol", sessions, 4, ClientOutbox.OverflowPolicy.DISCONNECT, disconnected::add);
+
+        outbox.offerMessage(message(0));
+        assert client.entered.await(1, TimeUnit.SECONDS);
+        for (int i = 1; i <= 10; i++) {
+            outbox.offerMessage(message(i));
+        }
+        assert disconnected.equals(Arrays.asList("carol")) : disconnected;
+        client.release.countDown();
+        Thread.sleep(100);
+        assert client.seqs().equals(Arrays.asList(0)) : client.seqs();
+    }
+
+    /**
+     * A call that throws drops what was queued, the next message starts a new drain
+     */
+    private static void throwingClientKeepsDelivering() throws Exception {
+        ClientSessions sessions = new ClientSessions();
+        Recorder client = new Recorder();
+        client.failNext = true;
+        sessions.bind("dave", client);
+        ClientOutbox outbox = outbox("dave", sessions, 256, ClientOutbox.OverflowPolicy.DROP_OLDEST, null);
+
+        outbox.offerMessage(message(0));
+        Thread.sleep(100);
+        outbox.offerMessage(message(1));
+        client.awaitMessages(1);
+        assert client.seqs().equals(Arrays.asList(1)) : client.seqs();
+    }
+
+    /**
+     * More stalled clients than the old fixed pool had threads do not hold up a live one
+     */
+    private static void stalledClientHoldsUpNoOther() throws Exception {
+        ClientSessions sessions = new ClientSessions();
+        List<Recorder> stalled = new ArrayList<Recorder>();
+        for (int i = 0; i < 20; i++) {
+            Recorder client = new Recorder();
+            client.blockFirstCall();
+            sessions.bind("stalled" + i, client);
+            outbox("stalled" + i, sessions, 256, ClientOutbox.OverflowPolicy.DROP_OLDEST, null).offerMessage(message(0));
+            stalled.add(client);
+        }
+        for (Recorder client : stalled) {
+            assert client.entered.await(1, TimeUnit.SECONDS);
+        }
+
+        Recorder live = new Recorder();
+        sessions.bind("erin", live);
+        ClientOutbox outbox = outbox("erin", sessions, 256, ClientOutbox.OverflowPolicy.DROP_OLDEST, null);
+        outbox.offerMessage(message(0));
+        live.awaitMessages(1);
+        for (Recorder client : stalled) {
+            client.release.countDown();
+        }
+    }
+
+    // =========================
+
+    //      Helpers
+
+    // =========================
+
+    /**
+     * Records the messages it is shown, can stall in or fail its first call
+     */
+    private static class Recorder implements ClientInterface {
+        List<List<ChatMessage>> calls = Collections.synchronizedList(new ArrayList<List<ChatMessage>>());
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(0);
+        volatile boolean failNext;
+
+        void blockFirstCall() {
+            this.release = new CountDownLatch(1);
+        }
+
+        public void displayMessages(List<ChatMessage> messages) {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            if (failNext) {
+                failNext = false;
+                throw new IllegalStateException("client failed");
+            }
+            calls.add(new ArrayList<ChatMessage>(messages));
+        }
+
+        public void displayMessage(String sender, String message) {
+        }
+
+        public void notifyJoinLeave(String chatroom, String user, boolean joined) {
+        }
+
+        public boolean sendHeartBeat() throws RemoteException {
+            return true;
+        }
+
+        List<Integer> seqs() {
+            List<Integer> seqs = new ArrayList<Integer>();
+            synchronized (calls) {
+                for (List<ChatMessage> call : calls) {
+                    for (ChatMessage message : call) {
+                        seqs.add(message.getSeq());
+                    }
+                }
+            }
+            return seqs;
+        }
+
+        void awaitMessages(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 2000;
+            while (seqs().size() < count) {
+                assert System.currentTimeMillis() < deadline : seqs();
+                Thread.sleep(5);
+            }
+        }
+    }
+
+    private static ClientOutbox outbox(String user, ClientSessions sessions, int capacity,
+                                       ClientOutbox.OverflowPolicy policy, Consumer<String> onDisconnect) {
+        return new ClientOutbox(user, sessions, timer, workers, capacity, policy, 8, 5, onDisconnect);
+    }
+
+    private static ChatMessage message(int seq) {
+        return new ChatMessage("sender", "message " + seq, seq);
+    }
+
+    private static List<Integer> range(int from, int to) {
+        List<Integer> values = new ArrayList<Integer>();
+        for (int i = from; i < to; i++) {
+            values.add(i);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,159 @@
+package server;
+
+// Java Imports
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+// Custom Imports
+import client.ClientInterface;
+
+/**
+ * Tests for the timing wheel client sweeper. test/config sets a lease of
+ * 300 ms, ticks of 20 ms and a wheel of 8 slots, so a lease is longer than
+ * one turn of the wheel.
+ */
+public class ClientSweeperTest {
+    private static final long LEASE_MS = ServerConfig.getLong("sweep.leaseMs", 5000);
+
+    public static void main(String[] args) throws InterruptedException {
+        expiredClientsAreProbedAndDeadOnesDropped();
+        clientsThatHeartbeatAreNotProbed();
+        forgottenClientsAreNotProbed();
+        stoppedSweeperProbesNothing();
+    }
+
+    /**
+     * Nobody is probed before their lease ends, even though the wheel
+     * turned over. Then every client is probed, clients that answer keep
+     * their session and the rest are reported dead, in batches.
+     */
+    private static void expiredClientsAreProbedAndDeadOnesDropped() throws InterruptedException {
+        ClientSessions sessions = new ClientSessions();
+        FakeClient alive = bind(sessions, "alive", true);
+        List<String> deadUsers = Arrays.asList("dead1", "dead2", "dead3");
+        for (String user : deadUsers) {
+            bind(sessions, user, false);
+        }
+        Set<String> dead = ConcurrentHashMap.newKeySet();
+        ClientSweeper sweeper = new ClientSweeper(sessions, dead::add);
+
+        sweeper.start(Arrays.asList("alive", "dead1", "dead2", "dead3"));
+        Thread.sleep(LEASE_MS / 2);
+        assert alive.probes.get() == 0 : "probed before the lease ended";
+        assert dead.isEmpty() : dead;
+
+        assert waitFor(() -> dead.size() == deadUsers.size(), LEASE_MS * 5) : dead;
+        assert dead.equals(new HashSet<String>(deadUsers)) : dead;
+        assert alive.probes.get() >= 1 : alive.probes.get();
+        sweeper.stop();
+    }
+
+    /**
+     * A client whose heartbeats keep extending its lease is never probed
+     */
+    private static void clientsThatHeartbeatAreNotProbed() throws InterruptedException {
+        ClientSessions sessions = new ClientSessions();
+        FakeClient busy = bind(sessions, "busy", true);
+        Set<String> dead = ConcurrentHashMap.newKeySet();
+        ClientSweeper sweeper = new ClientSweeper(sessions, dead::add);
+
+        sweeper.start(Arrays.asList("busy"));
+        long until = System.currentTimeMillis() + LEASE_MS * 4;
+        while (System.currentTimeMillis() < until) {
+            sweeper.seen("busy");
+            Thread.sleep(LEASE_MS / 6);
+        }
+        assert busy.probes.get() == 0 : busy.probes.get();
+        assert dead.isEmpty() : dead;
+        sweeper.stop();
+    }
+
+    /**
+     * A client that logged out is dropped from the wheel without a probe
+     */
+    private static void forgottenClientsAreNotProbed() throws InterruptedException {
+        ClientSessions sessions = new ClientSessions();
+        FakeClient gone = bind(sessions, "gone", false);
+        Set<String> dead = ConcurrentHashMap.newKeySet();
+        ClientSweeper sweeper = new ClientSweeper(sessions, dead::add);
+
+        sweeper.start(Arrays.asList("gone"));
+        sweeper.forget("gone");
+        Thread.sleep(LEASE_MS * 2);
+        assert gone.probes.get() == 0 : gone.probes.get();
+        assert dead.isEmpty() : dead;
+        sweeper.stop();
+    }
+
+    /**
+     * A follower runs no sweep, clients seen while stopped are not tracked
+     */
+    private static void stoppedSweeperProbesNothing() throws InterruptedException {
+        ClientSessions sessions = new ClientSessions();
+        FakeClient client = bind(sessions, "late", false);
+        Set<String> dead = ConcurrentHashMap.newKeySet();
+        ClientSweeper sweeper = new ClientSweeper(sessions, dead::add);
+
+        sweeper.start(Arrays.asList("late"));
+        sweeper.stop();
+        sweeper.seen("late");
+        Thread.sleep(LEASE_MS * 2);
+        assert client.probes.get() == 0 : client.probes.get();
+        assert dead.isEmpty() : dead;
+    }
+
+    // =========================
+
+    //      Helpers
+
+    // =========================
+
+    /**
+     * A client that answers probes or fails them, and counts them
+     */
+    private static class FakeClient implements ClientInterface {
+        AtomicInteger probes = new AtomicInteger();
+        boolean alive;
+
+        FakeClient(boolean alive) {
+            this.alive = alive;
+        }
+
+        public void displayMessage(String sender, String message) {}
+
+        public void displayMessages(List<ChatMessage> messages) {}
+
+        public void notifyJoinLeave(String chatroom, String user, boolean joined) {}
+
+        public boolean sendHeartBeat() throws RemoteException {
+            probes.incrementAndGet();
+            if (!alive) {
+                throw new RemoteException("Client is gone.");
+            }
+            return true;
+        }
+    }
+
+    private static FakeClient bind(ClientSessions sessions, String user, boolean alive) {
+        FakeClient client = new FakeClient(alive);
+        sessions.bind(user, client);
+        return client;
+    }
+
+    private static boolean waitFor(BooleanSupplier condition, long timeoutMs) throws InterruptedException {
+        long until = System.currentTimeMillis() + timeoutMs;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() >= until) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,73 @@
+package server;
+
+// Java Imports
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests for placing rooms on Paxos groups: placement only depends on the
+ * room name, every room group gets rooms, and adding a group only moves
+ * rooms onto the new group.
+ */
+public class GroupRingTest {
+    private static final int ROOMS = 10000;
+
+    public static void main(String[] args) {
+        placementIsStable();
+        roomsAreSpreadOverEveryGroup();
+        addingAGroupOnlyMovesRoomsToIt();
+    }
+
+    /**
+     * Two rings built the same way, like on two replicas, place every room on the same group
+     */
+    private static void placementIsStable() {
+        GroupRing ring = new GroupRing(4, 64);
+        GroupRing other = new GroupRing(4, 64);
+        for (int i = 0; i < ROOMS; i++) {
+            String room = "room-" + i;
+            int group = ring.groupFor(room);
+            assert group == other.groupFor(room) : room;
+            assert group == ring.groupFor(room) : room;
+        }
+    }
+
+    /**
+     * Rooms only go to groups 1 to n, group 0 holds the accounts, and no group is starved
+     */
+    private static void roomsAreSpreadOverEveryGroup() {
+        int groups = 4;
+        GroupRing ring = new GroupRing(groups, 64);
+        Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+        for (int i = 0; i < ROOMS; i++) {
+            counts.merge(ring.groupFor("room-" + i), 1, Integer::sum);
+        }
+        assert counts.size() == groups : counts;
+        for (Map.Entry<Integer, Integer> group : counts.entrySet()) {
+            assert group.getKey() >= 1 && group.getKey() <= groups : counts;
+            // An even share is 2500, virtual nodes keep every group well within half to double of it
+            assert group.getValue() > ROOMS / groups / 2 && group.getValue() < ROOMS / groups * 2 : counts;
+        }
+    }
+
+    /**
+     * With consistent hashing a new group takes rooms from the others, no
+     * room moves between the groups that were already there
+     */
+    private static void addingAGroupOnlyMovesRoomsToIt() {
+        GroupRing before = new GroupRing(4, 64);
+        GroupRing after = new GroupRing(5, 64);
+        int moved = 0;
+        for (int i = 0; i < ROOMS; i++) {
+            String room = "room-" + i;
+            int from = before.groupFor(room);
+            int to = after.groupFor(room);
+            if (from != to) {
+                assert to == 5 : room + " moved from " + from + " to " + to;
+                moved++;
+            }
+        }
+        // About a fifth of the rooms belong on the new group
+        assert moved > ROOMS / 10 && moved < ROOMS * 3 / 10 : moved;
+    }
+}
@@ -0,0 +1,123 @@
+package server;
+
+// Java Imports
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Paxos Specific
+import paxos.Proposer;
+
+/**
+ * Tests for the leader lease: a replica grants one lease at a time and
+ * none right after it starts, a replica without the lease refuses writes
+ * and does not claim to lead, and a granted lease ballot fences the
+ * proposals of the leaders before it.
+ */
+public class LeaderElectionTest {
+    private static long leaseMs = ServerConfig.getLong("election.leaseMs", 1000);
+
+    private static Path dir = Paths.get(ServerConfig.getString("paxos.wal.dir", "../data"));
+
+    public static void main(String[] args) throws Exception {
+        runningLeaseRefusesOtherCandidates();
+        replicaWithoutLeaseRefusesWrites();
+        grantedBallotFencesOlderProposals();
+    }
+
+    /**
+     * Only the candidate holding the lease may renew it until it runs out,
+     * and a lower ballot is refused even then
+     */
+    private static void runningLeaseRefusesOtherCandidates() throws Exception {
+        clear(9501);
+        ChatServerImpl server = new ChatServerImpl(9501);
+
+        // A restarted replica may have granted a lease it no longer remembers
+        assert !server.requestLease(1, 9502).isGranted();
+        Thread.sleep(leaseMs + 50);
+
+        LeaseGrant first = server.requestLease(1, 9502);
+        assert first.isGranted() && first.getLeaderPort() == 9502;
+        LeaseGrant other = server.requestLease(2, 9503);
+        assert !other.isGranted();
+        assert other.getLeaderPort() == 9502 && other.getBallot() == 1 : other.getLeaderPort();
+        assert server.requestLease(1, 9502).isGranted();
+
+        Thread.sleep(leaseMs + 50);
+        assert !server.requestLease(1, 9503).isGranted();
+        LeaseGrant next = server.requestLease(2, 9503);
+        assert next.isGranted() && next.getLeaderPort() == 9503;
+        assert !server.requestLease(1, 9502).isGranted();
+
+        server.close();
+    }
+
+    /**
+     * Granting a lease to another replica does not make this one lead
+     */
+    private static void replicaWithoutLeaseRefusesWrites() throws Exception {
+        clear(9501);
+        ChatServerImpl server = new ChatServerImpl(9501);
+        Thread.sleep(leaseMs + 50);
+        assert server.requestLease(1, 9502).isGranted();
+
+        assert !server.sendIsLeader();
+        Response res = server.registerUser("alice", "secret");
+        assert "Server is not the leader. Try again.".equals(res.getServerReply()) : res.getServerReply();
+        assert !server.getUserDB().containsKey("alice");
+
+        server.close();
+    }
+
+    /**
+     * Once a replica granted a lease ballot, proposals numbered under an
+     * older ballot are neither promised nor accepted, and the refusal says
+     * where the newer ballot's IDs start
+     */
+    private static void grantedBallotFencesOlderProposals() throws IOException {
+        clear(9502);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        PaxosGroup group = new PaxosGroup(1, 9502, null, executor);
+        group.setLeaseBallot(() -> 2);
+
+        int oldId = Proposer.BALLOT_SPAN + 5;
+        Promise refused = group.prepare(oldId, 1);
+        assert !refused.isPromised();
+        assert refused.getPromisedId() == 2 * Proposer.BALLOT_SPAN : refused.getPromisedId();
+        assert group.accept(oldId, 1, new DBBatch(), 0) == null;
+
+        int newId = 2 * Proposer.BALLOT_SPAN + 5;
+        assert group.prepare(newId, 1).isPromised();
+        assert group.accept(newId, 1, new DBBatch(), 0) != null;
+
+        group.close();
+        executor.shutdownNow();
+    }
+
+    // =========================
+
+    //      Helpers
+
+    // =========================
+
+    /**
+     * Delete what an earlier run logged and stored for the port
+     */
+    private static void clear(int port) throws IOException {
+        Files.createDirectories(dir);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.startsWith(String.format("wal-%d", port)) || name.startsWith(String.format("snapshot-%d", port))
+                    || name.startsWith(String.format("history-%d-", port))) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package server;
+
+// Java Imports
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for releasing rooms in the message store: a segment is deleted
+ * once no room holds records in it, a shared or active segment is kept,
+ * and releasing a room twice changes nothing.
+ */
+public class MessageStoreTest {
+    // Four records of a 52 byte message and its 12 byte header fill a segment
+    private static final int SEGMENT_BYTES = 256;
+
+    private static Path dir = Paths.get(ServerConfig.getString("history.store.dir", "../data"));
+
+    public static void main(String[] args) throws IOException {
+        releaseDeletesSegmentsNoRoomUses();
+        releaseTwiceChangesNothing();
+        releasedActiveSegmentGoesWhenItRolls();
+    }
+
+    /**
+     * The segments only the released room wrote go, the one it shares with another room stays
+     */
+    private static void releaseDeletesSegmentsNoRoomUses() throws IOException {
+        int port = 9201;
+        MessageStore store = open(port);
+        MessageStore.Room lobby = store.newRoom();
+        MessageStore.Room other = store.newRoom();
+        appendAll(store, lobby, 0, 8);
+        appendAll(store, other, 0, 1);
+        appendAll(store, lobby, 8, 9);
+        assert segments(port).equals(Arrays.asList(0, 1, 2)) : segments(port);
+
+        store.release(lobby);
+        assert segments(port).equals(Arrays.asList(2)) : segments(port);
+        assert MessageStore.decode(store.read(other, 0, 1)[0]).equals(message(0));
+        store.close();
+    }
+
+    private static void releaseTwiceChangesNothing() throws IOException {
+        int port = 9202;
+        MessageStore store = open(port);
+        MessageStore.Room lobby = store.newRoom();
+        MessageStore.Room other = store.newRoom();
+        appendAll(store, lobby, 0, 2);
+        appendAll(store, other, 0, 2);
+        appendAll(store, lobby, 2, 6);
+        appendAll(store, other, 2, 3);
+        assert segments(port).equals(Arrays.asList(0, 1, 2)) : segments(port);
+
+        // A second release must not count the shared segments down again
+        store.release(lobby);
+        store.release(lobby);
+        assert segments(port).equals(Arrays.asList(0, 2)) : segments(port);
+        ByteBuffer[] read = store.read(other, 0, 3);
+        for (int i = 0; i < 3; i++) {
+            assert MessageStore.decode(read[i]).equals(message(i)) : i;
+        }
+        store.close();
+    }
+
+    /**
+     * The segment being written is kept when its rooms are released, and deleted once it rolls
+     */
+    private static void releasedActiveSegmentGoesWhenItRolls() throws IOException {
+        int port = 9203;
+        MessageStore store = open(port);
+        MessageStore.Room lobby = store.newRoom();
+        appendAll(store, lobby, 0, 3);
+        store.release(lobby);
+        assert segments(port).equals(Arrays.asList(0)) : segments(port);
+
+        // A message that does not fit rolls the segment over
+        MessageStore.Room other = store.newRoom();
+        assert store.append(other, String.format("%-100s", "long message"));
+        assert segments(port).equals(Arrays.asList(1)) : segments(port);
+        store.close();
+    }
+
+    // =========================
+
+    //      Helpers
+
+    // =========================
+
+    private static MessageStore open(int port) throws IOException {
+        MessageStore store = new MessageStore(dir.toString(), port, SEGMENT_BYTES, 32, 1024);
+        // Nothing of an earlier run is kept
+        store.open(false);
+        return store;
+    }
+
+    private static void appendAll(MessageStore store, MessageStore.Room room, int from, int to) {
+        for (int i = from; i < to; i++) {
+            assert store.append(room, message(i)) : i;
+        }
+    }
+
+    private static String message(int i) {
+        return String.format("%-52s", "message " + i);
+    }
+
+    private static List<Integer> segments(int port) throws IOException {
+        String prefix = String.format("history-%d-", port);
+        List<Integer> numbers = new ArrayList<Integer>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "*.seg")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                numbers.add(Integer.parseInt(name.substring(prefix.length(), name.length() - ".seg".length())));
+            }
+        }
+        numbers.sort(null);
+        return numbers;
+    }
+}
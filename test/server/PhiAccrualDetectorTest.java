@@ -0,0 +1,118 @@
+package server;
+
+/**
+ * Tests for the phi accrual failure detector. Times are passed in, so
+ * nothing waits on the clock.
+ */
+public class PhiAccrualDetectorTest {
+    private static final double THRESHOLD = 8.0;
+
+    public static void main(String[] args) {
+        phiGrowsWithSilence();
+        slowSteadyPeerIsSuspectedLater();
+        jitteryPeerIsSuspectedLater();
+        heartbeatAfterBeingDownStartsOver();
+        oldIntervalsAreForgotten();
+    }
+
+    /**
+     * A peer that heartbeats on time is available, and suspicion only grows
+     * while it stays silent until it crosses the threshold
+     */
+    private static void phiGrowsWithSilence() {
+        PhiAccrualDetector detector = detector(100, 1000);
+        long t = beat(detector, 20, 1000);
+        assert detector.phi(t + 100) < 0.5 : detector.phi(t + 100);
+        assert detector.phi(t + 1000) < THRESHOLD : detector.phi(t + 1000);
+
+        double last = -1;
+        for (long silence = 0; silence <= 5000; silence += 100) {
+            double phi = detector.phi(t + silence);
+            assert phi >= last : silence;
+            last = phi;
+        }
+        assert detector.phi(t + 5000) >= THRESHOLD : detector.phi(t + 5000);
+    }
+
+    /**
+     * After the same silence a peer that heartbeats every 100 ms is more
+     * suspect than one that heartbeats every second
+     */
+    private static void slowSteadyPeerIsSuspectedLater() {
+        PhiAccrualDetector fast = detector(100, 100);
+        PhiAccrualDetector slow = detector(100, 1000);
+        long fastEnd = beat(fast, 50, 100);
+        long slowEnd = beat(slow, 50, 1000);
+        assert fast.phi(fastEnd + 400) > slow.phi(slowEnd + 400) : fast.phi(fastEnd + 400);
+        assert fast.phi(fastEnd + 400) >= THRESHOLD : fast.phi(fastEnd + 400);
+        assert slow.phi(slowEnd + 400) < THRESHOLD : slow.phi(slowEnd + 400);
+    }
+
+    /**
+     * Two peers with the same mean interval, the one whose heartbeats
+     * spread more is suspected later
+     */
+    private static void jitteryPeerIsSuspectedLater() {
+        PhiAccrualDetector regular = detector(100, 1000);
+        PhiAccrualDetector jittery = detector(100, 1000);
+        long regularEnd = beat(regular, 40, 1000);
+        long jitteryEnd = System.currentTimeMillis();
+        for (int i = 0; i < 40; i++) {
+            jitteryEnd += i % 2 == 0 ? 500 : 1500;
+            jittery.heartbeat(jitteryEnd);
+        }
+        assert jittery.phi(jitteryEnd + 1800) < regular.phi(regularEnd + 1800) : jittery.phi(jitteryEnd + 1800);
+    }
+
+    /**
+     * The gap before a peer comes back says nothing about its heartbeats,
+     * its history starts over from the assumed interval
+     */
+    private static void heartbeatAfterBeingDownStartsOver() {
+        PhiAccrualDetector detector = detector(100, 1000);
+        long t = beat(detector, 20, 1000);
+        long back = t + 60000;
+        assert detector.phi(back) >= THRESHOLD;
+        detector.heartbeat(back);
+        assert detector.phi(back + 1000) < 1.0 : detector.phi(back + 1000);
+        assert detector.phi(back + 5000) >= THRESHOLD : detector.phi(back + 5000);
+    }
+
+    /**
+     * Only the latest window of intervals counts, so a peer that slowed down is learned anew
+     */
+    private static void oldIntervalsAreForgotten() {
+        PhiAccrualDetector detector = detector(10, 1000);
+        long t = beat(detector, 100, 100);
+        for (int i = 0; i < 20; i++) {
+            // Slow down in steps the detector does not take as the peer being down
+            t += Math.min(100 + 100 * (i + 1), 1000);
+            assert detector.phi(t) < THRESHOLD : i;
+            detector.heartbeat(t);
+        }
+        assert detector.phi(t + 1200) < THRESHOLD : detector.phi(t + 1200);
+    }
+
+    // =========================
+
+    //      Helpers
+
+    // =========================
+
+    private static PhiAccrualDetector detector(int window, long firstIntervalMs) {
+        return new PhiAccrualDetector(THRESHOLD, window, 50, 0, firstIntervalMs);
+    }
+
+    /**
+     * Heartbeat at a steady interval, starting one interval after the detector was made
+     * @return When the last heartbeat arrived
+     */
+    private static long beat(PhiAccrualDetector detector, int count, long intervalMs) {
+        long t = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            t += intervalMs;
+            detector.heartbeat(t);
+        }
+        return t;
+    }
+}
@@ -0,0 +1,146 @@
+package server;
+
+// Java Imports
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for paging through room histories: pages walk the whole history
+ * across store segments, a coarsened index and in-memory chunks, no
+ * message is dropped, and a history comes back whole from its mark.
+ */
+public class RoomHistoryTest {
+    private static final int MESSAGES = 1000;
+
+    public static void main(String[] args) throws Exception {
+        storedHistoryPagesEveryMessage();
+        memoryHistoryKeepsEveryMessage();
+        latestPageAndCursorPastTheEnd();
+        memoryMarkRestoresWhole();
+    }
+
+    /**
+     * Small segments and a small index make the pages cross segment rolls and index strides
+     */
+    private static void storedHistoryPagesEveryMessage() throws IOException {
+        MessageStore store = new MessageStore(ServerConfig.getString("history.store.dir", "../data"), 9401, 1024, 4, 8);
+        store.open(false);
+        RoomHistory history = filled(new RoomHistory(store));
+        assertEveryMessage(history);
+        for (int limit : new int[] {1, 7, 64, 500}) {
+            assertPagesWalkHistory(history, limit);
+        }
+        store.close();
+    }
+
+    /**
+     * Far more messages than a chunk holds, the oldest are still there
+     */
+    private static void memoryHistoryKeepsEveryMessage() {
+        RoomHistory history = filled(new RoomHistory());
+        assert MESSAGES > 3 * RoomHistory.CHUNK_SIZE;
+        assertEveryMessage(history);
+        assert history.page(0, 10).getFirstSeq() == 0;
+        for (int limit : new int[] {1, 255, 256, 257, 500}) {
+            assertPagesWalkHistory(history, limit);
+        }
+    }
+
+    private static void latestPageAndCursorPastTheEnd() {
+        RoomHistory history = filled(new RoomHistory());
+        HistoryPage latest = history.page(-1, 50);
+        assert latest.getFirstSeq() == MESSAGES - 50 : latest.getFirstSeq();
+        assert latest.getMessages().equals(expected(MESSAGES - 50, MESSAGES)) : latest.getMessages();
+        assert !latest.hasMore();
+
+        HistoryPage past = history.page(MESSAGES + 10, 50);
+        assert past.getMessages().isEmpty();
+        assert past.getFirstSeq() == MESSAGES : past.getFirstSeq();
+        assert !past.hasMore();
+
+        // Fewer messages than the limit start at the first one
+        RoomHistory small = new RoomHistory();
+        small.add("only");
+        assert small.page(-1, 50).getFirstSeq() == 0;
+    }
+
+    /**
+     * A mark taken while appends go on restores only what it marked, also once read back
+     */
+    private static void memoryMarkRestoresWhole() throws Exception {
+        RoomHistory history = filled(new RoomHistory());
+        RoomHistory.Mark mark = history.mark();
+        history.add("after the mark");
+
+        RoomHistory restored = RoomHistory.restore(null, mark);
+        assert restored.size() == MESSAGES : restored.size();
+        assertEveryMessage(restored);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(mark);
+        }
+        RoomHistory.Mark read;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            read = (RoomHistory.Mark) in.readObject();
+        }
+        assert !read.isStored();
+        assertEveryMessage(RoomHistory.restore(null, read));
+    }
+
+    // =========================
+
+    //      Helpers
+
+    // =========================
+
+    private static RoomHistory filled(RoomHistory history) {
+        for (int i = 0; i < MESSAGES; i++) {
+            assert history.add(message(i)) : i;
+        }
+        return history;
+    }
+
+    private static void assertEveryMessage(RoomHistory history) {
+        assert history.size() == MESSAGES : history.size();
+        for (int seq = 0; seq < MESSAGES; seq++) {
+            assert message(seq).equals(history.get(seq)) : seq;
+        }
+    }
+
+    /**
+     * Following each page's next sequence number reads every message once, in order
+     */
+    private static void assertPagesWalkHistory(RoomHistory history, int limit) {
+        List<String> read = new ArrayList<String>();
+        int cursor = 0;
+        while (true) {
+            HistoryPage page = history.page(cursor, limit);
+            assert page.getFirstSeq() == cursor : page.getFirstSeq();
+            assert page.getMessages().size() <= limit : page.getMessages().size();
+            read.addAll(page.getMessages());
+            cursor = page.getNextSeq();
+            if (!page.hasMore()) {
+                break;
+            }
+        }
+        assert read.equals(expected(0, MESSAGES)) : limit;
+    }
+
+    private static List<String> expected(int from, int to) {
+        List<String> messages = new ArrayList<String>();
+        for (int i = from; i < to; i++) {
+            messages.add(message(i));
+        }
+        return messages;
+    }
+
+    private static String message(int i) {
+        return "message " + i;
+    }
+}
@@ -0,0 +1,116 @@
+package server;
+
+// Java Imports
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for room membership and its reverse index: joining or leaving
+ * twice changes nothing, logging out only leaves the user's own rooms,
+ * and a copy shows the rooms as they were when it started.
+ */
+public class RoomMembersTest {
+
+    public static void main(String[] args) {
+        joinTwiceChangesNothing();
+        leaveTwiceChangesNothing();
+        logoutLeavesOnlyTheUsersRooms();
+        createReplacesMembers();
+        missingRoomsAreRefused();
+        copyShowsRoomsWhenItStarted();
+    }
+
+    private static void joinTwiceChangesNothing() {
+        RoomMembers members = new RoomMembers();
+        members.create("lobby", "alice");
+        assert members.join("lobby", "bob");
+        assert members.join("lobby", "bob");
+        assert members.getMembers("lobby").equals(set("alice", "bob")) : members.getMembers("lobby");
+        assert members.getRoomsOf("bob").equals(set("lobby")) : members.getRoomsOf("bob");
+        assert members.toMap().get("lobby").size() == 2 : members.toMap();
+    }
+
+    private static void leaveTwiceChangesNothing() {
+        RoomMembers members = new RoomMembers();
+        members.create("lobby", "alice");
+        members.join("lobby", "bob");
+        assert members.leave("lobby", "bob");
+        assert members.leave("lobby", "bob");
+        assert members.getMembers("lobby").equals(set("alice")) : members.getMembers("lobby");
+        assert members.getRoomsOf("bob").isEmpty() : members.getRoomsOf("bob");
+
+        // Leaving a room the user never joined changes nothing either
+        assert members.leave("lobby", "carol");
+        assert members.getMembers("lobby").equals(set("alice")) : members.getMembers("lobby");
+    }
+
+    private static void logoutLeavesOnlyTheUsersRooms() {
+        RoomMembers members = new RoomMembers();
+        members.create("a", "alice");
+        members.create("b", "bob");
+        members.create("c", "alice");
+        members.join("a", "bob");
+
+        members.logout("alice");
+        assert members.getMembers("a").equals(set("bob")) : members.getMembers("a");
+        assert members.getMembers("b").equals(set("bob")) : members.getMembers("b");
+        assert members.getMembers("c").isEmpty() : members.getMembers("c");
+        assert members.getRoomsOf("alice").isEmpty() : members.getRoomsOf("alice");
+        assert members.getRoomsOf("bob").equals(set("a", "b")) : members.getRoomsOf("bob");
+
+        // A second logout finds nothing to do
+        members.logout("alice");
+        assert members.getRoomsOf("bob").equals(set("a", "b")) : members.getRoomsOf("bob");
+    }
+
+    private static void createReplacesMembers() {
+        RoomMembers members = new RoomMembers();
+        members.create("lobby", "alice");
+        members.join("lobby", "bob");
+        members.create("lobby", "carol");
+        assert members.getMembers("lobby").equals(set("carol")) : members.getMembers("lobby");
+        assert members.getRoomsOf("alice").isEmpty() : members.getRoomsOf("alice");
+        assert members.getRoomsOf("bob").isEmpty() : members.getRoomsOf("bob");
+    }
+
+    private static void missingRoomsAreRefused() {
+        RoomMembers members = new RoomMembers();
+        assert !members.join("nowhere", "alice");
+        assert !members.leave("nowhere", "alice");
+        assert members.getMembers("nowhere") == null;
+        assert members.getRoomsOf("alice").isEmpty();
+        assert members.isEmpty();
+    }
+
+    /**
+     * Changes made while a copy is open do not show in it, but do in the rooms
+     */
+    private static void copyShowsRoomsWhenItStarted() {
+        RoomMembers members = new RoomMembers();
+        members.create("a", "alice");
+        members.join("a", "bob");
+
+        members.startCopy();
+        members.join("a", "carol");
+        members.leave("a", "alice");
+        members.create("b", "dave");
+        members.logout("bob");
+        Map<String, List<String>> copy = members.finishCopy();
+
+        assert copy.keySet().equals(set("a")) : copy;
+        assert new HashSet<String>(copy.get("a")).equals(set("alice", "bob")) : copy;
+        assert members.getMembers("a").equals(set("carol")) : members.getMembers("a");
+        assert members.getMembers("b").equals(set("dave")) : members.getMembers("b");
+
+        // Once finished, changes are no longer saved and the next copy sees them
+        members.join("b", "erin");
+        members.startCopy();
+        assert new HashSet<String>(members.finishCopy().get("b")).equals(set("dave", "erin"));
+    }
+
+    private static HashSet<String> set(String... users) {
+        return new HashSet<String>(Arrays.asList(users));
+    }
+}
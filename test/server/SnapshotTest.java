@@ -0,0 +1,114 @@
+package server;
+
+// Java Imports
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tests for snapshots taken without copying the applied state: state
+ * applied after the snapshot was taken does not show in it, whether its
+ * copies are finished by the snapshot thread, by a getter or by writing it.
+ */
+public class SnapshotTest {
+
+    public static void main(String[] args) throws Exception {
+        showsStateAtItsSlot();
+        writtenSnapshotShowsStateAtItsSlot();
+    }
+
+    private static void showsStateAtItsSlot() {
+        State state = new State();
+        Snapshot snap = state.snapshot(10);
+        state.applyMore();
+
+        snap.finishCopies();
+        assertStateBefore(snap);
+        // Finishing twice changes nothing, and the state applied since stays
+        snap.finishCopies();
+        assertStateBefore(snap);
+        assert state.users.containsKey("carol");
+        assert state.history.size() == 2 : state.history.size();
+
+        // The next snapshot sees everything applied before it
+        Snapshot next = state.snapshot(20);
+        next.finishCopies();
+        assert next.getUserDB().keySet().equals(new HashSet<String>(Arrays.asList("alice", "carol")));
+        assert next.getChatRoomHistory().get("lobby").getCount() == 2;
+    }
+
+    /**
+     * Writing a snapshot whose copies are still open finishes them first
+     */
+    private static void writtenSnapshotShowsStateAtItsSlot() throws IOException, ClassNotFoundException {
+        State state = new State();
+        Snapshot snap = state.snapshot(10);
+        state.applyMore();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(snap);
+        }
+        Snapshot read;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            read = (Snapshot) in.readObject();
+        }
+        assertStateBefore(read);
+        assert RoomHistory.restore(null, read.getChatRoomHistory().get("lobby")).equals(Arrays.asList("hello"));
+    }
+
+    // =========================
+
+    //      Helpers
+
+    // =========================
+
+    /**
+     * The applied state of one group with a user, a room with a message and a logged in user
+     */
+    private static class State {
+        VersionedMap<String, String> users = new VersionedMap<String, String>();
+        RoomMembers members = new RoomMembers();
+        Map<String, List<String>> histories = new ConcurrentHashMap<String, List<String>>();
+        VersionedSet<String> active = new VersionedSet<String>();
+        RoomHistory history = new RoomHistory();
+
+        State() {
+            users.put("alice", "secret");
+            members.create("lobby", "alice");
+            history.add("hello");
+            histories.put("lobby", history);
+            active.add("alice");
+        }
+
+        Snapshot snapshot(int slot) {
+            return new Snapshot(slot, users, members, histories, active);
+        }
+
+        void applyMore() {
+            users.put("carol", "pw");
+            users.put("alice", "changed");
+            members.join("lobby", "carol");
+            members.create("other", "carol");
+            history.add("after");
+            active.remove("alice");
+            active.add("carol");
+        }
+    }
+
+    private static void assertStateBefore(Snapshot snap) {
+        assert snap.getLastSlot() == 10 : snap.getLastSlot();
+        assert snap.getUserDB().size() == 1 && "secret".equals(snap.getUserDB().get("alice")) : snap.getUserDB();
+        assert snap.getChatRoomUsers().keySet().equals(new HashSet<String>(Arrays.asList("lobby"))) : snap.getChatRoomUsers();
+        assert snap.getChatRoomUsers().get("lobby").equals(Arrays.asList("alice")) : snap.getChatRoomUsers();
+        assert snap.getChatRoomHistory().get("lobby").getCount() == 1;
+        assert snap.getActiveUsers().equals(new HashSet<String>(Arrays.asList("alice"))) : snap.getActiveUsers();
+    }
+}
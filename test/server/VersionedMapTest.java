@@ -0,0 +1,93 @@
+package server;
+
+// Java Imports
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Tests for copy-on-write copies of maps and sets: a copy shows the
+ * entries as they were when it started, whatever changed while it was
+ * open, and changes after it finished are not saved any more.
+ */
+public class VersionedMapTest {
+
+    public static void main(String[] args) {
+        copyIgnoresChangesWhileOpen();
+        keyChangedTwiceKeepsFirstValue();
+        clearWhileOpen();
+        setCopyIgnoresChangesWhileOpen();
+    }
+
+    private static void copyIgnoresChangesWhileOpen() {
+        VersionedMap<String, String> map = new VersionedMap<String, String>();
+        map.put("alice", "a");
+        map.put("bob", "b");
+
+        map.startCopy();
+        map.put("alice", "changed");
+        map.remove("bob");
+        map.put("carol", "c");
+        Map<String, String> copy = map.finishCopy();
+
+        assert copy.equals(entries("alice", "a", "bob", "b")) : copy;
+        assert map.equals(entries("alice", "changed", "carol", "c")) : map;
+
+        // Nothing is saved once the copy finished, the next copy sees the live map
+        map.put("dave", "d");
+        map.startCopy();
+        assert map.finishCopy().equals(entries("alice", "changed", "carol", "c", "dave", "d"));
+    }
+
+    /**
+     * Only the value before the first change counts, also for a key added and removed again
+     */
+    private static void keyChangedTwiceKeepsFirstValue() {
+        VersionedMap<String, String> map = new VersionedMap<String, String>();
+        map.put("alice", "a");
+
+        map.startCopy();
+        map.put("alice", "1");
+        map.put("alice", "2");
+        map.remove("alice");
+        map.put("erin", "e");
+        map.remove("erin");
+        map.put("erin", "again");
+        Map<String, String> copy = map.finishCopy();
+
+        assert copy.equals(entries("alice", "a")) : copy;
+        assert map.equals(entries("erin", "again")) : map;
+    }
+
+    private static void clearWhileOpen() {
+        VersionedMap<String, String> map = new VersionedMap<String, String>();
+        map.put("alice", "a");
+        map.put("bob", "b");
+
+        map.startCopy();
+        map.clear();
+        assert map.isEmpty();
+        assert map.finishCopy().equals(entries("alice", "a", "bob", "b"));
+    }
+
+    private static void setCopyIgnoresChangesWhileOpen() {
+        VersionedSet<String> set = new VersionedSet<String>();
+        set.add("alice");
+        set.add("bob");
+
+        set.startCopy();
+        set.remove("alice");
+        set.add("carol");
+        assert set.finishCopy().equals(new HashSet<String>(Arrays.asList("alice", "bob")));
+        assert set.equals(new HashSet<String>(Arrays.asList("bob", "carol"))) : set;
+    }
+
+    private static Map<String, String> entries(String... keysAndValues) {
+        Map<String, String> map = new HashMap<String, String>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            map.put(keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return map;
+    }
+}
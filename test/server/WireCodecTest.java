@@ -0,0 +1,180 @@
+package server;
+
+// Java Imports
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * Round trip tests for the compact encoding of the values sent between
+ * replicas and written to the log
+ */
+public class WireCodecTest {
+
+    public static void main(String[] args) throws Exception {
+        varIntsRoundTrip();
+        stringsRoundTrip();
+        operationsRoundTrip();
+        batchesRoundTrip();
+        responsesRoundTrip();
+        historyPagesRoundTrip();
+    }
+
+    /**
+     * Small values take one byte, and every value comes back including negative ones
+     */
+    private static void varIntsRoundTrip() throws IOException {
+        int[] values = {0, 1, 127, 128, 300, 16383, 16384, Integer.MAX_VALUE, -1, Integer.MIN_VALUE};
+        for (int value : values) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            WireCodec.writeVarInt(new DataOutputStream(bytes), value);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+            assert WireCodec.readVarInt(in) == value : value;
+            assert in.available() == 0 : value;
+            if (value >= 0 && value < 128) {
+                assert bytes.size() == 1 : bytes.size();
+            }
+        }
+    }
+
+    /**
+     * Null and empty strings stay apart, and multi byte characters survive
+     */
+    private static void stringsRoundTrip() throws IOException {
+        String[] values = {null, "", "hello", "caf\u00e9", "\u4f60\u597d", "\ud83d\ude00 smile"};
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (String value : values) {
+            WireCodec.writeString(out, value);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (String value : values) {
+            String read = WireCodec.readString(in);
+            assert value == null ? read == null : value.equals(read) : value;
+        }
+        assert in.available() == 0;
+    }
+
+    /**
+     * Every operation keeps its opcode and fields, written directly and through serialization
+     */
+    private static void operationsRoundTrip() throws Exception {
+        String[] names = {"register", "login", "logout", "create", "join", "send", "leave", "barrier"};
+        for (String name : names) {
+            DBOperation op = new DBOperation(name, "alice", "secret", "hi \u00e9", "lobby");
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            op.write(new DataOutputStream(bytes));
+            DBOperation read = DBOperation.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            assertSameOp(op, read);
+            assertSameOp(op, serialized(op));
+        }
+
+        DBOperation empty = new DBOperation("send", "bob", null, "", null);
+        assertSameOp(empty, serialized(empty));
+    }
+
+    /**
+     * A batch keeps its operations in proposal order
+     */
+    private static void batchesRoundTrip() throws Exception {
+        List<DBOperation> ops = new ArrayList<DBOperation>();
+        for (int i = 0; i < 200; i++) {
+            ops.add(new DBOperation("send", "user" + i, "", "message " + i, "room" + (i % 7)));
+        }
+        DBBatch batch = new DBBatch(ops);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        batch.write(new DataOutputStream(bytes));
+        DBBatch read = DBBatch.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assert read.size() == ops.size() : read.size();
+        for (int i = 0; i < ops.size(); i++) {
+            assertSameOp(ops.get(i), read.getOps().get(i));
+        }
+
+        DBBatch copy = serialized(batch);
+        assert copy.size() == ops.size() : copy.size();
+        assertSameOp(ops.get(199), copy.getOps().get(199));
+        assert serialized(new DBBatch()).isEmpty();
+    }
+
+    /**
+     * The level, reply, slot and sequence number come back, also when they are not set
+     */
+    private static void responsesRoundTrip() throws Exception {
+        Response res = new Response(Level.SEVERE, "sent");
+        res.setSlot(123456);
+        res.setSeq(0);
+        Response read = serialized(res);
+        assert Level.SEVERE.equals(read.getLogLevel()) : read.getLogLevel();
+        assert "sent".equals(read.getServerReply()) : read.getServerReply();
+        assert read.getSlot() == 123456 : read.getSlot();
+        assert read.getSeq() == 0 : read.getSeq();
+
+        Response unset = serialized(new Response());
+        assert unset.getLogLevel() == null;
+        assert unset.getServerReply() == null;
+        assert unset.getSeq() == new Response().getSeq() : unset.getSeq();
+    }
+
+    /**
+     * A page read from the store and a page of strings encode the same way
+     */
+    private static void historyPagesRoundTrip() throws Exception {
+        List<String> messages = Arrays.asList("first", null, "", "\u00e9t\u00e9");
+        ByteBuffer[] slices = new ByteBuffer[messages.size()];
+        for (int i = 0; i < slices.length; i++) {
+            String message = messages.get(i);
+            slices[i] = message == null ? null : ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8));
+        }
+
+        HistoryPage fromList = serialized(new HistoryPage(40, messages, true));
+        HistoryPage fromSlices = serialized(HistoryPage.fromSlices(40, slices, true));
+        for (HistoryPage page : Arrays.asList(fromList, fromSlices)) {
+            assert page.getFirstSeq() == 40 : page.getFirstSeq();
+            assert page.hasMore();
+            assert page.getNextSeq() == 44 : page.getNextSeq();
+            assert page.getMessages().equals(messages) : page.getMessages();
+        }
+    }
+
+    // =========================
+
+    //      Helpers
+
+    // =========================
+
+    private static void assertSameOp(DBOperation expected, DBOperation actual) {
+        assert expected.getOpCode() == actual.getOpCode() : actual.getOp();
+        assert expected.getOp().equals(actual.getOp()) : actual.getOp();
+        assert same(expected.getUsername(), actual.getUsername()) : actual.getUsername();
+        assert same(expected.getPassword(), actual.getPassword()) : actual.getPassword();
+        assert same(expected.getMessage(), actual.getMessage()) : actual.getMessage();
+        assert same(expected.getChatroom(), actual.getChatroom()) : actual.getChatroom();
+    }
+
+    private static boolean same(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T serialized(T value) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (T) in.readObject();
+        }
+    }
+}